@@ -0,0 +1,96 @@
+package vm;
+
+import codegen.Instruction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Counts instructions the switch interpreter dispatches for object files, and the straight line
+ * sequences of two to four instructions that run most often. Superinstructions are picked from these.
+ *
+ * $ make dispatch
+ */
+public class DispatchReport {
+    private static final int LONGEST = 4;
+    private static final int SHOWN = 6;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: DispatchReport file.obj...");
+            return;
+        }
+
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Instruction[] instructions = Instruction.values();
+
+        long total = 0;
+        HashMap<Long, long[]> sequences = new HashMap<>();     // Opcodes packed a byte each, oldest highest
+
+        for (String file : args) {
+            ProgramImage image = ProgramImage.load(file);
+            byte[] codeData = image.codeData;
+
+            long[] dispatched = { 0 };
+            int[] window = new int[LONGEST];   // Addresses of the last instructions, oldest first
+            int[] length = { 0 };
+
+            MijaVM vm = new MijaVM(image, InputStream.nullInputStream(), discard, System.err);
+            vm.tracer = address -> {
+                dispatched[0]++;
+
+                // A taken jump or a call starts a new sequence
+                if (length[0] > 0) {
+                    int previous = window[length[0] - 1];
+                    if (previous + instructions[codeData[previous]].size != address) length[0] = 0;
+                }
+
+                if (length[0] == LONGEST) {
+                    System.arraycopy(window, 1, window, 0, LONGEST - 1);
+                    length[0]--;
+                }
+
+                window[length[0]++] = address;
+
+                long sequence = codeData[address];
+                for (int i = length[0] - 2, n = 1; i >= 0; i--, n++) {
+                    sequence |= (long) codeData[window[i]] << (8 * n);
+                    sequences.computeIfAbsent(sequence | (long) (n + 1) << 56, k -> new long[1])[0]++;
+                }
+            };
+
+            vm.run(Engine.SWITCH);
+            total += dispatched[0];
+
+            System.out.printf("%-28s %,14d%n", file, dispatched[0]);
+        }
+
+        System.out.printf("%-28s %,14d%n%n", "total", total);
+
+        for (int n = 2; n <= LONGEST; n++) {
+            long length = n;
+            List<Map.Entry<Long, long[]>> top = sequences.entrySet().stream()
+                    .filter(e -> e.getKey() >>> 56 == length)
+                    .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+                    .limit(SHOWN)
+                    .collect(Collectors.toList());
+
+            for (Map.Entry<Long, long[]> e : top) {
+                StringBuilder names = new StringBuilder();
+                for (int i = n - 1; i >= 0; i--) {
+                    names.append(instructions[(int) (e.getKey() >> (8 * i) & 0xff)].niceName).append(i > 0 ? " " : "");
+                }
+
+                long count = e.getValue()[0];
+                System.out.printf("%-40s %,14d %5.1f%%%n", names, count, 100.0 * count / total);
+            }
+            System.out.println();
+        }
+    }
+}
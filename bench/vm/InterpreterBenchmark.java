@@ -0,0 +1,61 @@
+package vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Runs object files with every engine but the profiler and reports the best and average wall time.
+ * Engines take turns in every round, so JIT warm-up and machine noise hit all of them alike.
+ *
+ * $ make bench
+ */
+public class InterpreterBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: InterpreterBenchmark file.obj...");
+            return;
+        }
+
+        PrintStream out = System.out;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Engine[] engines = Arrays.stream(Engine.values()).filter(e -> e != Engine.PROFILE).toArray(Engine[]::new);
+
+        out.printf("%-16s %-10s %10s %10s %10s%n", "program", "engine", "best ms", "avg ms", "speedup");
+
+        for (String file : args) {
+            long[] best = new long[Engine.values().length];
+            long[] total = new long[Engine.values().length];
+            ProgramImage image = ProgramImage.load(file);
+
+            for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+                for (Engine engine : engines) {
+                    long start = System.nanoTime();
+                    new MijaVM(image, System.in, discard, System.err).run(engine);
+                    long time = System.nanoTime() - start;
+
+                    if (round < WARMUP_ROUNDS) continue;
+
+                    int e = engine.ordinal();
+                    best[e] = round == WARMUP_ROUNDS ? time : Math.min(best[e], time);
+                    total[e] += time;
+                }
+            }
+
+            String name = file.substring(file.lastIndexOf('/') + 1);
+            for (Engine engine : engines) {
+                int e = engine.ordinal();
+                out.printf("%-16s %-10s %10.1f %10.1f %9.2fx%n",
+                        name,
+                        engine.name().toLowerCase(),
+                        best[e] / 1e6,
+                        total[e] / 1e6 / MEASURED_ROUNDS,
+                        (double) total[Engine.SWITCH.ordinal()] / total[e]);
+            }
+        }
+    }
+}
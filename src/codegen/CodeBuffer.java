@@ -1,7 +1,6 @@
 package codegen;
 
 import parser.Parser;
-import parser.TypeKind;
 import scanner.Scanner;
 
 import java.io.*;
@@ -19,6 +18,10 @@ public class CodeBuffer {
     public static int pc = CODE_START_ADDRESS;
     public static int mainStart;
 
+    /* Start addresses of the last instructions, newest first, for fusing them into superinstructions */
+    private static final int[] recent = { -1, -1, -1 };
+    static int lastTarget;                  // Highest address a label was placed at
+
     public static void printCode() {
         writeHeader();
 
@@ -40,21 +43,24 @@ public class CodeBuffer {
             int iSize = instruction.size;
             if (iSize > 1) {
                 int paramValue = 0;
+                int valueEnd = iSize > 5 ? i + 3 : i + iSize; // Longer instructions show the jump offset
 
                 int j = i + 1;
                 while (j < i + iSize) {
                     byte b = buffer[j];
                     System.out.printf("%03d ", b);
 
-                    paramValue <<= 8;
-                    int getSign = (8 * (4 - j + i));
-                    paramValue = paramValue << getSign >> getSign;
-                    paramValue |= (b & 0b11111111);
+                    if (j < valueEnd) {
+                        paramValue <<= 8;
+                        int getSign = (8 * (4 - j + i));
+                        paramValue = paramValue << getSign >> getSign;
+                        paramValue |= (b & 0b11111111);
+                    }
 
                     j++;
                 }
 
-                System.out.printf("%s (%d)", " ".repeat(4 * (4 - iSize + 1)), paramValue);
+                System.out.printf("%s (%d)", " ".repeat(Math.max(0, 4 * (4 - iSize + 1))), paramValue);
             }
 
             i += instruction.size;
@@ -102,6 +108,11 @@ public class CodeBuffer {
 
         OutputStream os = new FileOutputStream(outputFile);
         os.write(Arrays.copyOf(buffer, pc)); // Trim
+
+        // The maps come after the code, the size limit is only on the code
+        os.write(ReferenceMap.toByteArray());
+        os.write(NameMap.toByteArray());
+
         os.close();
 
         return outputFile;
@@ -117,6 +128,9 @@ public class CodeBuffer {
     }
 
     public static void putByte(Instruction instruction) {
+        System.arraycopy(recent, 0, recent, 1, recent.length - 1);
+        recent[0] = pc;
+
         putByte(instruction.ordinal());
     }
 
@@ -150,103 +164,150 @@ public class CodeBuffer {
 
     public static byte[] getBuffer() { return buffer; }
 
+    public static int codeSize() { return pc - CODE_START_ADDRESS; }
 
-    public static void load(Operand operand) {
-        if (operand.kind == null) return;
 
-        switch (operand.kind) {
-            case CONSTANT:
-                int value = operand.value;
-                if (value == -1)  {
-                    putByte(CONST_M1);
-                } else if (value >= 0 && value <= 5) {
-                    putByte(Instruction.valueOf("CONST_" + value));
-                } else {
-                    putByte(CONST);
-                    putWord(value);
-                }
-                break;
+    public static void loadConstant(int value) {
+        if (value >= -1 && value <= 5)  {
+            putByte(Instruction.values()[CONST_0.ordinal() + value]);
+        } else {
+            putByte(CONST);
+            putWord(value);
+        }
+    }
 
-            case LOCAL:
-                int address = operand.address;
+    public static void loadLocal(int address) {
+        if (address >= 0 && address <= 5) {
+            putByte(Instruction.values()[LOAD_0.ordinal() + address]);
+        } else {
+            putByte(LOAD);
+            putByte(address);
+        }
+    }
 
-                if (address >= 0 && address <= 5) {
-                    putByte(LOAD_0.ordinal() + address);
-                } else {
-                    putByte(LOAD);
-                    putByte(operand.address);
-                }
+    public static void storeLocal(int address) {
+        if (increment(address)) return;
 
-                break;
+        if (address >= 0 && address <= 5) {
+            putByte(Instruction.values()[STORE_0.ordinal() + address]);
+        } else {
+            putByte(STORE);
+            putByte(address);
+        }
+    }
 
-            case GLOBAL:
-                putByte(LOAD_GLOBAL);
-                putShort(operand.address);
-                break;
+    public static void loadField(int field) {
+        int local = recentLocal(0, LOAD_0, LOAD);
 
-            case ESTACK:
-                break;
+        if (local >= 0) {
+            // Field of a struct in a local
+            rewind(0);
+            putByte(LOAD_FIELD_LOCAL);
+            putByte(local);
+        } else {
+            putByte(LOAD_FIELD);
+        }
 
-            case STRUCT_FIELD:
-                putByte(LOAD_FIELD);
-                putByte(operand.address);
-                break;
+        putByte(field);
+    }
 
-            case CONDITION:
-                putByte(operand.condition.jumpInstruction);
-                break;
+    /**
+     * Comparisons of a local with a constant and comparisons with zero are fused with their operands
+     */
+    public static void conditionalJump(Instruction jump, Label label) {
+        int local = recentLocal(1, LOAD_0, LOAD);
+        Integer value = recentConstant(0);
+
+        if (local >= 0 && value != null) {
+            rewind(1);
+            putByte(JCMP_LOCAL);
+            label.put();
+            putByte(local);
+            putByte(jump.ordinal() - JEQ.ordinal());
+            putWord(value);
+        } else if ((jump == JEQ || jump == JNE) && value != null && value == 0) {
+            rewind(0);
+            putByte(jump == JEQ ? JZ : JNZ);
+            label.put();
+        } else {
+            putByte(jump);
+            label.put();
+        }
+    }
 
-            case ARRAY_ELEMENT:
-                putByte(operand.symbol.symbolType.typeKind == TypeKind.CHAR ? BARRAY_LOAD : ARRAY_LOAD);
-                break;
+    /**
+     * Replaces load, constant, add or sub, just emitted for a store to the same local, with inc
+     */
+    private static boolean increment(int local) {
+        Integer value = recentConstant(1);
+        Instruction operation = recent(0);
 
-            case FUNCTION:
-                break;
+        if (recentLocal(2, LOAD_0, LOAD) != local || value == null || (operation != ADD && operation != SUB)) {
+            return false;
         }
 
-        operand.kind = OperandKind.ESTACK;
-    }
+        int delta = operation == ADD ? value : -value;
+        if (delta != (byte) delta) return false;
 
-    public static void store(Operand location, Operand operand) {
-        int address;
-
-        switch (location.kind) {
-            case LOCAL:
-                address = location.address;
-                if (address >= 0 && address <= 5) {
-                    putByte(STORE_0.ordinal() + address);
-                } else {
-                    putByte(STORE);
-                    putByte(address);
-                }
+        rewind(2);
+        putByte(INC);
+        putByte(local);
+        putByte(delta);
 
-                break;
+        return true;
+    }
 
-            case GLOBAL:
-                putByte(STORE_GLOBAL);
-                putShort(location.address);
-                break;
+    /**
+     * The n-th last instruction, if it and the ones after it can be fused. They have to follow
+     * each other up to pc and no label may point past its start, a label at its start still fits.
+     */
+    private static Instruction recent(int n) {
+        int end = pc;
 
-            case STRUCT_FIELD:
-                putByte(STORE_FIELD);
-                putByte(location.address);
-                break;
+        for (int i = 0; i <= n; i++) {
+            int start = recent[i];
+            if (start < 0 || start + Instruction.values()[buffer[start]].size != end) return null;
 
-            case ARRAY_ELEMENT:
-                putByte(operand.symbol.symbolType.typeKind == TypeKind.CHAR ?
-                     BARRAY_STORE : ARRAY_STORE);
-                break;
+            end = start;
         }
+
+        return recent[n] < lastTarget ? null : Instruction.values()[buffer[recent[n]]];
     }
 
-    public static void trueJump(Operand condOperand) {
-        putByte(condOperand.condition.jumpInstruction);
-        condOperand.trueLabel.put();
+    /**
+     * Local the n-th last instruction loads or stores, -1 if it is not a fusable load or store
+     */
+    private static int recentLocal(int n, Instruction first, Instruction general) {
+        Instruction instruction = recent(n);
+        if (instruction == null) return -1;
+
+        if (instruction == general) return buffer[recent[n] + 1] & 0xff;
+
+        int local = instruction.ordinal() - first.ordinal();
+        return local >= 0 && local <= 5 ? local : -1;
+    }
+
+    /**
+     * Value the n-th last instruction pushes, null if it is not a fusable constant
+     */
+    private static Integer recentConstant(int n) {
+        Instruction instruction = recent(n);
+        if (instruction == null) return null;
+
+        if (instruction == CONST) return getWord(recent[n] + 1);
+
+        int value = instruction.ordinal() - CONST_0.ordinal();
+        return value >= -1 && value <= 5 ? value : null;
     }
 
-    public static void falseJump(Operand condOperand) {
-        putByte(condOperand.condition.inverseJumpInstruction());
-        condOperand.falseLabel.put();
+    /**
+     * Removes the last n + 1 instructions
+     */
+    private static void rewind(int n) {
+        pc = recent[n];
+
+        System.arraycopy(recent, n + 1, recent, 0, recent.length - n - 1);
+        Arrays.fill(recent, recent.length - n - 1, recent.length, -1);
     }
 
     public static void jump(Label label) {
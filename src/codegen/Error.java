@@ -1,12 +1,16 @@
 package codegen;
 
+import java.io.PrintStream;
+
 public enum Error {
     NULL_POINTER("Null pointer", 1),
     NO_RETURN("No return value", 2),
     HEAP_OVERFLOW("Heap overflow ", 3),
     STACK_OVERFLOW("Stack overflow", 4),
     INDEX_OUT_OF_BOUNDS("Index out of bounds", 5),
-    RUNTIME("Runtime ", 6);
+    RUNTIME("Runtime ", 6),
+    DIVISION_BY_ZERO("Division by zero", 7),
+    INVALID_ARGUMENT("Invalid argument", 8);
 
     public final String message;
     public final int status;
@@ -16,9 +20,8 @@ public enum Error {
         this.status = status;
     }
 
-    public static void exit(Error e, int pc, String instruction) {
-        System.err.printf("\n%s error at instruction %d: %s%n", e.message, pc, instruction);
-        System.err.println("Use -i option when compiling to have a better view at where it happened");
-        System.exit(e.status);
+    public void report(PrintStream err, int pc, String instruction) {
+        err.printf("\n%s error at instruction %d: %s%n", message, pc, instruction);
+        err.println("Use -i option when compiling to have a better view at where it happened");
     }
 }
@@ -64,8 +64,14 @@ public enum Instruction {
     BPRINT("bprint", 1),           // 60
     LOAD_STRING("load_string", 5), // 61
     TRAP("trap", 2),               // 62
-    RAND("rand", 1),               // 62
-    PRINTS("prints", 1);           // 63
+    RAND("rand", 1),               // 63
+    PRINTS("prints", 1),           // 64
+    JZ("jz", 3),                   // 65
+    JNZ("jnz", 3),                 // 66
+    JCMP_LOCAL("jcmpl", 9),        // 67 offset, local, condition, value
+    LOAD_FIELD_LOCAL("lfieldl", 3),// 68 local, field
+    FREE("free", 1),               // 69
+    DUMP("dump", 1);               // 70
 
     Instruction(String niceName, int size) {
         this.niceName = niceName;
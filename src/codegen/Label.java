@@ -1,6 +1,8 @@
 package codegen;
 
 public class Label {
+    public static int backpatches;  // Jumps resolved when their label was placed after them
+
     private int address;
     private boolean defined;
 
@@ -36,9 +38,11 @@ public class Label {
             address = CodeBuffer.getShort(lastUnresolved); // Before last
 
             CodeBuffer.putShort(CodeBuffer.pc - (lastUnresolved - 1), lastUnresolved);
+            backpatches++;
         }
 
         defined = true;
         address = CodeBuffer.pc;
+        CodeBuffer.lastTarget = address;
     }
 }
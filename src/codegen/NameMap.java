@@ -0,0 +1,46 @@
+package codegen;
+
+import parser.Symbol;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Names of functions, for profiles. Written after the reference maps:
+ *
+ * 'N' 'M'
+ * functions: count (short), then for each function: address (short), name length (byte), name in UTF-8
+ */
+public class NameMap {
+    private static final int MAX_NAME_LENGTH = 0xff;
+
+    private static final Map<Integer, String> functions = new LinkedHashMap<>();
+
+    public static void function(Symbol function) {
+        functions.put(function.address, function.name);
+    }
+
+    public static byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write('N');
+        out.write('M');
+
+        out.write(functions.size() >> 8);
+        out.write(functions.size());
+
+        for (Map.Entry<Integer, String> function : functions.entrySet()) {
+            byte[] name = function.getValue().getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(name.length, MAX_NAME_LENGTH);
+
+            out.write(function.getKey() >> 8);
+            out.write(function.getKey());
+            out.write(length);
+            out.write(name, 0, length);
+        }
+
+        return out.toByteArray();
+    }
+}
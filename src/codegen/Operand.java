@@ -1,9 +1,10 @@
 package codegen;
 
+import ir.Block;
 import parser.Parser;
 import parser.Symbol;
 import parser.Type;
-import parser.TypeKind;
+import parser.Types;
 import scanner.TokenKind;
 
 public class Operand {
@@ -11,8 +12,8 @@ public class Operand {
     public Type type;
     public Symbol symbol;
     public Condition condition;
-    public Label trueLabel;
-    public Label falseLabel;
+    public Block trueLabel;
+    public Block falseLabel;
 
     public int value;
     public int address;
@@ -51,7 +52,7 @@ public class Operand {
 
     public Operand(int constantValue) {
         this.kind = OperandKind.CONSTANT;
-        this.type = new Type(TypeKind.INT);
+        this.type = Types.INT;
         this.value = constantValue;
     }
 
@@ -59,8 +60,8 @@ public class Operand {
         this.kind = OperandKind.CONDITION;
         condition = Condition.getByToken(condOperator);
 
-        trueLabel = new Label();
-        falseLabel = new Label();
+        trueLabel = new Block();
+        falseLabel = new Block();
     }
 
     @Override
@@ -0,0 +1,138 @@
+package codegen;
+
+import parser.Symbol;
+import parser.Type;
+import parser.TypeKind;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where references are, for the garbage collector. Written after the code of the object file:
+ *
+ * 'R' 'M'
+ * globals:   count (short), bitmap
+ * layouts:   count (short), then for each struct layout: field count (byte), bitmap
+ * sites:     count (short), then for each allocation: address (short), info (short),
+ *            layout of a new struct, 1 for a new array of references and 0 for other arrays
+ * functions: count (short), then for each function: address (short), 1 if it returns a reference (byte),
+ *            parameter and local count (byte), bitmap
+ *
+ * Bitmaps have a bit for each word, lowest bit of the first byte first.
+ */
+public class ReferenceMap {
+    private static final BitSet globals = new BitSet();
+    private static final ArrayList<boolean[]> layouts = new ArrayList<>();
+    private static final Map<Integer, Integer> sites = new LinkedHashMap<>();
+    private static final Map<Integer, boolean[]> functions = new LinkedHashMap<>();
+    private static final Map<Integer, Boolean> returnsReference = new LinkedHashMap<>();
+
+    public static void global(Symbol var) {
+        if (isReference(var.symbolType)) globals.set(var.address);
+    }
+
+    /**
+     * Which slots of the frame are references, locals is the map of the slots
+     */
+    public static void function(Symbol function, boolean[] locals) {
+        functions.put(function.address, locals);
+        returnsReference.put(function.address, isReference(function.symbolType));
+    }
+
+    /**
+     * Map of the slots of parameters and locals by their addresses
+     */
+    public static boolean[] locals(Collection<Symbol> locals, int slots) {
+        boolean[] map = new boolean[slots];
+
+        for (Symbol local : locals) {
+            if (local.address < map.length) map[local.address] = isReference(local.symbolType);
+        }
+
+        return map;
+    }
+
+    /**
+     * Struct allocated by the NEW at address
+     */
+    public static void newStruct(int address, Type type) {
+        if (!type.isStruct()) return;
+
+        boolean[] layout = new boolean[type.fields.size()];
+
+        for (Symbol field : type.fields.values()) {
+            layout[field.address] = isReference(field.symbolType);
+        }
+
+        int index = 0;
+        while (index < layouts.size() && !Arrays.equals(layouts.get(index), layout)) index++;
+        if (index == layouts.size()) layouts.add(layout);
+
+        sites.put(address, index);
+    }
+
+    /**
+     * Array allocated by the NEW_ARRAY at address
+     */
+    public static void newArray(int address, Type elementType) {
+        sites.put(address, isReference(elementType) ? 1 : 0);
+    }
+
+    private static boolean isReference(Type type) {
+        return type != null && type.typeKind == TypeKind.REFERENCE;
+    }
+
+    public static byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write('R');
+        out.write('M');
+
+        putShort(out, globals.length());
+        putBitmap(out, globals, globals.length());
+
+        putShort(out, layouts.size());
+        for (boolean[] layout : layouts) {
+            out.write(layout.length);
+            putBitmap(out, layout);
+        }
+
+        putShort(out, sites.size());
+        for (Map.Entry<Integer, Integer> site : sites.entrySet()) {
+            putShort(out, site.getKey());
+            putShort(out, site.getValue());
+        }
+
+        putShort(out, functions.size());
+        for (Map.Entry<Integer, boolean[]> function : functions.entrySet()) {
+            putShort(out, function.getKey());
+            out.write(returnsReference.get(function.getKey()) ? 1 : 0);
+            out.write(function.getValue().length);
+            putBitmap(out, function.getValue());
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void putShort(ByteArrayOutputStream out, int x) {
+        out.write(x >> 8);
+        out.write(x);
+    }
+
+    private static void putBitmap(ByteArrayOutputStream out, boolean[] bits) {
+        BitSet set = new BitSet();
+        for (int i = 0; i < bits.length; i++) set.set(i, bits[i]);
+
+        putBitmap(out, set, bits.length);
+    }
+
+    private static void putBitmap(ByteArrayOutputStream out, BitSet bits, int length) {
+        byte[] bytes = Arrays.copyOf(bits.toByteArray(), (length + 7) / 8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
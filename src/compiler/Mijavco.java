@@ -1,14 +1,26 @@
 package compiler;
 
 import codegen.CodeBuffer;
+import ir.PassManager;
 import parser.Parser;
 import scanner.Scanner;
+import vm.Engine;
+import vm.HeapAnalyzer;
+import vm.MemorySizes;
 import vm.MijaVM;
+import vm.RunOptions;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.rmi.ServerError;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 public class Mijavco {
     private static int errors = 0;
@@ -16,12 +28,45 @@ public class Mijavco {
     private static final char ARGUMENT_PRINT_INSTRUCTIONS = 'i';
     private static final char ARGUMENT_PRINT_BYTECODE = 'b';
     private static final char ARGUMENT_RUN = 'r';
+    private static final char ARGUMENT_SWITCH_INTERPRETER = 'l';
+    private static final char ARGUMENT_REGISTER_ENGINE = 'g';
+    private static final char ARGUMENT_JIT = 'j';
+    private static final char ARGUMENT_PROFILE = 'p';
+    private static final char ARGUMENT_CLOSURES = 'c';
+    private static final char ARGUMENT_ALLOCATIONS = 'a';
+    private static final char ARGUMENT_METRICS = 'm';
+    private static final char ARGUMENT_PHASE_TIMES = 't';
+
+    /* Optimization level, -O0 to -O2 */
+    private static final String OPTION_OPTIMIZE = "-O";
+
+    /* Memory sizes in words, as in --heap=64m */
+    private static final String OPTION_HEAP = "--heap=";
+    private static final String OPTION_FRAME_STACK = "--fstack=";
+    private static final String OPTION_EXPRESSION_STACK = "--estack=";
+
+    /* Input of the program is mapped from the file instead of read from standard input */
+    private static final String OPTION_INPUT = "--input=";
+
+    /* Stacks of the program are sampled and written to the file for flame graphs */
+    private static final String OPTION_SAMPLES = "--samples=";
+
+    /* Heap is dumped to the file when the program ends, dump() writes there too. Dumps are analyzed with mijavco file.hdump */
+    private static final String OPTION_DUMP = "--dump=";
 
     private static boolean printInstructionsFlag = false;
     private static boolean printBytecodeFlag = false;
     private static boolean runFlag = false;
-
-    public static void main(String[] args) throws IOException {
+    private static boolean allocationsFlag = false;
+    private static boolean metricsFlag = false;
+    private static boolean phaseTimesFlag = false;
+    private static Engine engine = Engine.DECODED;
+    private static MemorySizes sizes = MemorySizes.DEFAULT;
+    private static InputStream input = System.in;
+    private static String samplesFileName = null;
+    private static String dumpFileName = null;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         if (args.length == 0) {
             System.out.println("mijavco requires parameters, usage:\n$ mijavco program.mj");
             return;
@@ -29,46 +74,145 @@ public class Mijavco {
 
         String inputFileName = args[0];
 
+        try {
+            for (String arg : args) {
+                if (arg.startsWith(OPTION_HEAP)) {
+                    sizes = sizes.withHeap(MemorySizes.parse(arg.substring(OPTION_HEAP.length())));
+                } else if (arg.startsWith(OPTION_FRAME_STACK)) {
+                    sizes = sizes.withFrameStack(MemorySizes.parse(arg.substring(OPTION_FRAME_STACK.length())));
+                } else if (arg.startsWith(OPTION_EXPRESSION_STACK)) {
+                    sizes = sizes.withExpressionStack(MemorySizes.parse(arg.substring(OPTION_EXPRESSION_STACK.length())));
+                } else if (arg.startsWith(OPTION_INPUT)) {
+                    input = new FileInputStream(arg.substring(OPTION_INPUT.length()));
+                } else if (arg.startsWith(OPTION_SAMPLES)) {
+                    samplesFileName = arg.substring(OPTION_SAMPLES.length());
+                } else if (arg.startsWith(OPTION_DUMP)) {
+                    dumpFileName = arg.substring(OPTION_DUMP.length());
+                } else if (arg.startsWith(OPTION_OPTIMIZE)) {
+                    PassManager.level = parseLevel(arg.substring(OPTION_OPTIMIZE.length()));
+                } else if (arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Invalid option " + arg);
+                }
+            }
+        } catch (IllegalArgumentException | FileNotFoundException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+
+        Arrays.stream(args).filter(s -> s.startsWith("-") && !s.startsWith("--") && !s.startsWith(OPTION_OPTIMIZE)).map(s -> s.substring(1).chars()).forEach(s -> s.forEach(i -> {
+            switch (i) {
+                case ARGUMENT_RUN:                  runFlag = true;                 break;
+                case ARGUMENT_PRINT_BYTECODE:       printBytecodeFlag = true;       break;
+                case ARGUMENT_PRINT_INSTRUCTIONS:   printInstructionsFlag = true;   break;
+                case ARGUMENT_SWITCH_INTERPRETER:   engine = Engine.SWITCH;         break;
+                case ARGUMENT_REGISTER_ENGINE:      engine = Engine.REGISTER;       break;
+                case ARGUMENT_JIT:                  engine = Engine.JIT;            break;
+                case ARGUMENT_PROFILE:              engine = Engine.PROFILE;        break;
+                case ARGUMENT_CLOSURES:             engine = Engine.CLOSURE;        break;
+                case ARGUMENT_ALLOCATIONS:          allocationsFlag = true;         break;
+                case ARGUMENT_METRICS:              metricsFlag = true;             break;
+                case ARGUMENT_PHASE_TIMES:          phaseTimesFlag = true;          break;
+
+                default: System.err.println("Invalid option -" + (char) i); System.exit(1);
+            }
+        }));
+
+        RunOptions options = RunOptions.DEFAULT
+                .withEngine(engine)
+                .withSizes(sizes)
+                .withInput(input)
+                .withSamples(samplesFileName)
+                .withDump(dumpFileName)
+                .withAllocations(allocationsFlag)
+                .withMetrics(metricsFlag);
+
+        List<String> objectFiles = Arrays.stream(args).filter(s -> s.matches(".*[.]obj")).collect(Collectors.toList());
+
+        // Several object files run concurrently in this JVM
+        if (objectFiles.size() > 1) {
+            if (input != System.in || samplesFileName != null || dumpFileName != null) {
+                System.err.println("Options " + OPTION_INPUT + ", " + OPTION_SAMPLES + " and " + OPTION_DUMP + " take a single object file");
+                System.exit(1);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+            try {
+                int status = MijaVM.runAll(objectFiles, options, executor);
+                if (status != 0) System.exit(status);
+            } finally {
+                executor.shutdown();
+            }
+
+            return;
+        }
+
         if (inputFileName.matches(".*[.]obj")) {
-            MijaVM.runFromFile(inputFileName);
+            MijaVM.runFromFile(inputFileName, options);
+            return;
+        }
+
+        if (inputFileName.matches(".*[.]hdump")) {
+            try {
+                HeapAnalyzer.analyze(inputFileName, System.out);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
             return;
         }
 
+        PhaseTimes times = new PhaseTimes(phaseTimesFlag);
+
+        times.begin();
         Scanner.init(inputFileName);
+        times.ended("read", Scanner.getInputFile().length());
+
+        times.begin();
         Parser.parse();
+        times.parsed();
 
         if (errors > 0) {
+            times.report(System.err);
             System.out.println("Number of errors: " + errors);
             return;
         }
 
-        Arrays.stream(args).filter(s -> s.startsWith("-")).map(s -> s.substring(1).chars()).forEach(s -> s.forEach(i -> {
-            switch (i) {
-                case ARGUMENT_RUN:                  runFlag = true;                 break;
-                case ARGUMENT_PRINT_BYTECODE:       printBytecodeFlag = true;       break;
-                case ARGUMENT_PRINT_INSTRUCTIONS:   printInstructionsFlag = true;   break;
+        times.begin();
+        File outputFile = CodeBuffer.createObjectFile();
+        times.ended("write", outputFile.length());
 
-                default: System.err.println("Invalid option -" + (char) i); System.exit(1);
+        if (printInstructionsFlag || printBytecodeFlag) {
+            times.begin();
+
+            if (printInstructionsFlag) {
+                CodeBuffer.printCode();
+                System.out.println();
             }
-        }));
 
-        File outputFile = CodeBuffer.createObjectFile();
+            if (printBytecodeFlag) {
+                System.out.print("Dump: ");
+                CodeBuffer.dump();
+            }
 
-        if (printInstructionsFlag) {
-            CodeBuffer.printCode();
-            System.out.println();
+            times.ended("print");
         }
 
-        if (printBytecodeFlag) {
-            System.out.print("Dump: ");
-            CodeBuffer.dump();
-        }
+        times.report(System.err);
 
         if (runFlag) {
-            MijaVM.runFromFile(outputFile.getName());
+            MijaVM.runFromFile(outputFile.getName(), options);
         }
     }
 
+    private static int parseLevel(String level) {
+        if (!level.matches("[0-9]") || Integer.parseInt(level) > PassManager.MAX_LEVEL) {
+            throw new IllegalArgumentException("Invalid optimization level -O" + level);
+        }
+
+        return Integer.parseInt(level);
+    }
+
     /**
      * Called by other parts of compiler
      */
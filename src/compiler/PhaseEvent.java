@@ -0,0 +1,48 @@
+package compiler;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A phase of a compilation in a JFR recording, as in java -XX:StartFlightRecording ... compiler.Mijavco program.mj.
+ * Scan and parse share the span of the parser, time is what each of them took of it.
+ * Counts a phase does not have are -1.
+ */
+@Name("mijavco.CompilerPhase")
+@Label("Compiler Phase")
+@Category("Mijavco")
+@StackTrace(false)
+final class PhaseEvent extends Event {
+    static final long NONE = -1;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long time;
+
+    @Label("Tokens")
+    long tokens = NONE;
+
+    @Label("Symbols")
+    @Description("Symbols inserted into the symbol table, builtins included")
+    long symbols = NONE;
+
+    @Label("Scopes")
+    long scopes = NONE;
+
+    @Label("Bytes")
+    @DataAmount(DataAmount.BYTES)
+    long bytes = NONE;
+
+    @Label("Backpatches")
+    @Description("Forward jumps resolved when their label was placed")
+    long backpatches = NONE;
+}
@@ -0,0 +1,116 @@
+package compiler;
+
+import codegen.CodeBuffer;
+import codegen.Label;
+import ir.PassManager;
+import parser.Parser;
+import scanner.Scanner;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wall time and work of the phases of a compilation, printed with -t and committed as JFR events.
+ * Reading the source into memory is its own phase, before scanning begins.
+ *
+ * The parser pulls tokens from the scanner one at a time and emits code as it goes, so the scanner is timed
+ * around every token and its time is taken out of parse, which is left with the symbol table and code generation.
+ * Timing every token costs, so the scanner is only timed when the times are printed or recorded.
+ * Each function is optimized when it is parsed, that time is taken out of parse as well.
+ */
+final class PhaseTimes {
+    private static final long NONE = PhaseEvent.NONE;
+
+    private final boolean print;
+    private final List<PhaseEvent> phases = new ArrayList<>();
+
+    /* Of the phase being timed, scanning has its own event as it runs inside parsing */
+    private long begin;
+    private PhaseEvent event;
+    private PhaseEvent scanEvent;
+    private PhaseEvent optimizeEvent;
+
+    PhaseTimes(boolean print) {
+        this.print = print;
+        Scanner.timed = print || new PhaseEvent().isEnabled();
+    }
+
+    void begin() {
+        event = new PhaseEvent();
+        scanEvent = new PhaseEvent();
+        optimizeEvent = new PhaseEvent();
+        event.begin();
+        scanEvent.begin();
+        optimizeEvent.begin();
+        begin = System.nanoTime();
+    }
+
+    /**
+     * Ends scanning, parsing and optimizing, they began together
+     */
+    void parsed() {
+        long time = System.nanoTime() - begin;
+
+        scanEvent.phase = "scan";
+        scanEvent.time = Scanner.time;
+        scanEvent.tokens = Scanner.tokens;
+        add(scanEvent);
+
+        optimizeEvent.phase = "optimize";
+        optimizeEvent.time = PassManager.time;
+        add(optimizeEvent);
+
+        event.phase = "parse";
+        event.time = time - Scanner.time - PassManager.time;
+        event.symbols = Parser.symbolTable.insertedSymbols();
+        event.scopes = Parser.symbolTable.openedScopes();
+        event.bytes = CodeBuffer.codeSize();
+        event.backpatches = Label.backpatches;
+        add(event);
+    }
+
+    /**
+     * Ends a phase other than parsing, bytes is NONE unless it wrote some
+     */
+    void ended(String phase, long bytes) {
+        event.phase = phase;
+        event.time = System.nanoTime() - begin;
+        event.bytes = bytes;
+        add(event);
+    }
+
+    void ended(String phase) {
+        ended(phase, NONE);
+    }
+
+    private void add(PhaseEvent event) {
+        event.end();
+        if (event.shouldCommit()) event.commit();
+
+        phases.add(event);
+    }
+
+    /**
+     * Phases in the order they ran, if the times are printed
+     */
+    void report(PrintStream out) {
+        if (!print) return;
+
+        long total = phases.stream().mapToLong(e -> e.time).sum();
+
+        out.printf("%n%-8s %10s %7s %10s %10s %10s %10s %12s%n", "phase", "ms", "%", "tokens", "symbols", "scopes", "bytes", "backpatches");
+
+        for (PhaseEvent e : phases) {
+            out.printf("%-8s %10.3f %6.1f%% %10s %10s %10s %10s %12s%n", e.phase, e.time / 1e6, 100.0 * e.time / Math.max(1, total),
+                    count(e.tokens), count(e.symbols), count(e.scopes), count(e.bytes), count(e.backpatches));
+        }
+
+        out.printf("%-8s %10.3f%n", "total", total / 1e6);
+        out.flush();
+    }
+
+    private static String count(long value) {
+        return value == NONE ? "" : String.format("%,d", value);
+    }
+}
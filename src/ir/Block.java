@@ -0,0 +1,26 @@
+package ir;
+
+import codegen.Label;
+
+import java.util.ArrayList;
+
+/**
+ * Basic block, jumps only end one and only lead to the start of one placed by the parser.
+ * It falls through to the next block of its function unless it ends with jmp, return or trap.
+ */
+public final class Block {
+    final ArrayList<Inst> code = new ArrayList<>();
+    boolean placed;             // Where a label of the parser is, jumps may lead here
+    int index;                  // In its function
+
+    Label label;                // Of lowering
+
+    Inst last() {
+        return code.isEmpty() ? null : code.get(code.size() - 1);
+    }
+
+    boolean fallsThrough() {
+        Inst last = last();
+        return last == null || !last.isTerminator();
+    }
+}
@@ -0,0 +1,142 @@
+package ir;
+
+import codegen.Instruction;
+import codegen.Operand;
+import codegen.OperandKind;
+import codegen.ReferenceMap;
+import parser.Symbol;
+import parser.Type;
+import parser.TypeKind;
+import parser.Types;
+
+import java.util.Collection;
+
+import static codegen.Instruction.*;
+
+/**
+ * The parser emits the code of a function here, it is optimized and lowered when the function ends
+ */
+public class Builder {
+    private static Function function;
+    private static Block block;
+
+    public static void begin(Symbol symbol, int parameters, int locals, Collection<Symbol> localSymbols) {
+        function = new Function(symbol, parameters, locals, ReferenceMap.locals(localSymbols, parameters + locals));
+        block = new Block();
+        function.blocks.add(block);
+    }
+
+    public static void end() {
+        if (block.code.isEmpty() && !block.placed) function.blocks.remove(block);
+
+        function.number();
+        PassManager.run(function);
+        Lowering.lower(function);
+
+        function = null;
+        block = null;
+    }
+
+    private static Inst add(Instruction op, int value) {
+        Inst inst = new Inst(op, value);
+        block.code.add(inst);
+
+        if (inst.isTerminator()) {
+            block = new Block();
+            function.blocks.add(block);
+        }
+
+        return inst;
+    }
+
+    public static void put(Instruction op) {
+        add(op, 0);
+    }
+
+    public static void put(Instruction op, int value) {
+        add(op, value);
+    }
+
+    public static void constant(int value) {
+        add(CONST, value).type = Types.INT;
+    }
+
+    public static void load(Operand operand) {
+        if (operand.kind == null) return;
+
+        switch (operand.kind) {
+            case CONSTANT:      add(CONST, operand.value).type = operand.type; break;
+            case LOCAL:         add(LOAD, operand.address).type = operand.type; break;
+            case GLOBAL:        add(LOAD_GLOBAL, operand.address).type = operand.type; break;
+            case STRUCT_FIELD:  add(LOAD_FIELD, operand.address).type = operand.type; break;
+
+            case ARRAY_ELEMENT:
+                add(operand.symbol.symbolType.typeKind == TypeKind.CHAR ? BARRAY_LOAD : ARRAY_LOAD, 0).type = operand.type;
+                break;
+        }
+
+        operand.kind = OperandKind.ESTACK;
+    }
+
+    public static void store(Operand location) {
+        switch (location.kind) {
+            case LOCAL:         add(STORE, location.address).type = location.type; break;
+            case GLOBAL:        add(STORE_GLOBAL, location.address).type = location.type; break;
+            case STRUCT_FIELD:  add(STORE_FIELD, location.address).type = location.type; break;
+
+            case ARRAY_ELEMENT:
+                add(location.symbol.symbolType.typeKind == TypeKind.CHAR ? BARRAY_STORE : ARRAY_STORE, 0).type = location.type;
+                break;
+        }
+    }
+
+    public static void call(Symbol called) {
+        add(CALL, 0).function = called;
+    }
+
+    public static void string(String text, int length) {
+        add(LOAD_STRING, length).text = text;
+    }
+
+    public static void newStruct(Type type) {
+        add(NEW, type.fields.size()).type = type;
+    }
+
+    /**
+     * Element references are words
+     */
+    public static void newArray(Type elementType) {
+        add(NEW_ARRAY, elementType.typeKind == TypeKind.REFERENCE ? 4 : elementType.sizeInBytes).type = elementType;
+    }
+
+    public static void trueJump(Operand condition) {
+        jump(condition.condition.jumpInstruction, condition.trueLabel);
+    }
+
+    public static void falseJump(Operand condition) {
+        jump(condition.condition.inverseJumpInstruction(), condition.falseLabel);
+    }
+
+    public static void jump(Block target) {
+        jump(JMP, target);
+    }
+
+    private static void jump(Instruction op, Block target) {
+        add(op, 0).target = target;
+
+        // Conditional jumps end a block too
+        if (op != JMP) {
+            block = new Block();
+            function.blocks.add(block);
+        }
+    }
+
+    /**
+     * Jumps to the block lead here
+     */
+    public static void place(Block target) {
+        target.placed = true;
+        block = target;
+        function.blocks.add(block);
+    }
+}
@@ -0,0 +1,157 @@
+package ir;
+
+import codegen.Instruction;
+import parser.Types;
+
+import java.util.List;
+
+import static codegen.Instruction.*;
+
+/**
+ * Operations on constants become their result and jumps on constants become jmp or nothing, leaving
+ * the branch they skip to unreachable blocks. A constant operand that does not change the value is dropped,
+ * multiplication by a power of two becomes a shift. Division stays, it rounds toward zero and a shift does not.
+ */
+final class ConstantFolding implements Pass {
+    @Override
+    public boolean run(Function function) {
+        boolean changed = false;
+        for (Block block : function.blocks) changed |= fold(block);
+        return changed;
+    }
+
+    private static boolean fold(Block block) {
+        List<Inst> code = block.code;
+        boolean changed = false;
+        int i = 1;
+
+        while (i < code.size()) {
+            if (fold(code, i)) {
+                changed = true;
+                i = Math.max(1, i - 2);
+            } else {
+                i++;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Rewrites the code ending with instruction i if it can
+     */
+    private static boolean fold(List<Inst> code, int i) {
+        Inst inst = code.get(i);
+        Inst right = code.get(i - 1);
+        Inst left = i >= 2 ? code.get(i - 2) : null;
+
+        if (inst.op == NEG && right.op == CONST) {
+            replace(code, i - 1, i + 1, constant(-right.value));
+            return true;
+        }
+
+        if (right.op != CONST) {
+            // Constant first, the operand it is swapped with pushes one value and does nothing else
+            if ((inst.op == ADD || inst.op == MUL) && left != null && left.op == CONST
+                    && (right.op == LOAD || right.op == LOAD_GLOBAL)) {
+                code.set(i - 2, right);
+                code.set(i - 1, left);
+                return true;
+            }
+
+            return false;
+        }
+
+        int value = right.value;
+
+        if (left != null && left.op == CONST) {
+            if (inst.pureOperands() == 2 || (inst.op == DIV || inst.op == REM) && value != 0) {
+                replace(code, i - 2, i + 1, constant(evaluate(inst.op, left.value, value)));
+                return true;
+            }
+
+            if (inst.isJump() && inst.op != JMP) {
+                Inst jump = null;
+
+                if (isTaken(inst.op, left.value, value)) {
+                    jump = new Inst(JMP, 0);
+                    jump.target = inst.target;
+                }
+
+                replace(code, i - 2, i + 1, jump);
+                return true;
+            }
+        }
+
+        switch (inst.op) {
+            case ADD: case SUB: case SHL: case SHR:
+                if (value != 0) return false;
+                replace(code, i - 1, i + 1, null);
+                return true;
+
+            case DIV:
+                if (value != 1) return false;
+                replace(code, i - 1, i + 1, null);
+                return true;
+
+            case MUL:
+                if (value == 1) {
+                    replace(code, i - 1, i + 1, null);
+                } else if (value == -1) {
+                    replace(code, i - 1, i + 1, new Inst(NEG, 0));
+                } else if (value == 0 && left != null && left.isPureValue()) {
+                    replace(code, i - 2, i + 1, constant(0));
+                } else if (value > 1 && (value & value - 1) == 0) {
+                    code.set(i - 1, constant(Integer.numberOfTrailingZeros(value)));
+                    code.set(i, new Inst(SHL, 0));
+                } else {
+                    return false;
+                }
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Puts inst, if not null, in place of the code from start to end
+     */
+    private static void replace(List<Inst> code, int start, int end, Inst inst) {
+        code.subList(start, end).clear();
+        if (inst != null) code.add(start, inst);
+    }
+
+    private static Inst constant(int value) {
+        Inst inst = new Inst(CONST, value);
+        inst.type = Types.INT;
+        return inst;
+    }
+
+    private static int evaluate(Instruction op, int a, int b) {
+        switch (op) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case MUL: return a * b;
+            case DIV: return a / b;
+            case REM: return a % b;
+            case SHL: return a << b;
+            case SHR: return a >> b;
+            default:
+                throw new IllegalArgumentException(op.niceName);
+        }
+    }
+
+    private static boolean isTaken(Instruction jump, int a, int b) {
+        switch (jump) {
+            case JEQ: return a == b;
+            case JNE: return a != b;
+            case JGT: return a > b;
+            case JLE: return a <= b;
+            case JLT: return a < b;
+            case JGE: return a >= b;
+            default:
+                throw new IllegalArgumentException(jump.niceName);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ir;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static codegen.Instruction.*;
+
+/**
+ * After a local is stored a value just loaded from another local, loads of it read the other local
+ * until either of them is stored again. The copies that hold at the start of each block are the ones
+ * that hold at the end of all blocks before it, found forwards until they no longer change.
+ * The store of the copy is then often dead.
+ */
+final class CopyPropagation implements Pass {
+    private static final int NONE = -1;
+
+    @Override
+    public boolean run(Function function) {
+        List<Block> blocks = function.blocks;
+        List<List<Block>> predecessors = function.predecessors();
+        int[][] copiesOut = new int[blocks.size()][];        // Local each local is a copy of, null until reached
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+
+            for (Block block : blocks) {
+                int[] copies = copiesIn(function, block, predecessors, copiesOut);
+                transfer(block, copies, false);
+
+                if (!Arrays.equals(copies, copiesOut[block.index])) {
+                    copiesOut[block.index] = copies;
+                    changed = true;
+                }
+            }
+        }
+
+        boolean changed = false;
+        for (Block block : blocks) {
+            changed |= transfer(block, copiesIn(function, block, predecessors, copiesOut), true);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Copies that hold at the end of every predecessor reached so far, none at the entry
+     */
+    private static int[] copiesIn(Function function, Block block, List<List<Block>> predecessors, int[][] copiesOut) {
+        int[] copies = null;
+
+        for (Block predecessor : predecessors.get(block.index)) {
+            int[] out = copiesOut[predecessor.index];
+            if (out == null) continue;
+
+            if (copies == null) {
+                copies = out.clone();
+            } else {
+                for (int i = 0; i < copies.length; i++) {
+                    if (copies[i] != out[i]) copies[i] = NONE;
+                }
+            }
+        }
+
+        if (copies == null || block.index == 0) {
+            copies = new int[function.slots()];
+            Arrays.fill(copies, NONE);
+        }
+
+        return copies;
+    }
+
+    /**
+     * Takes copies from the start of the block to its end, loads of copies read the original if rewriting
+     */
+    private static boolean transfer(Block block, int[] copies, boolean rewriting) {
+        boolean changed = false;
+
+        for (int i = 0; i < block.code.size(); i++) {
+            Inst inst = block.code.get(i);
+
+            if (inst.op == LOAD && copies[inst.value] != NONE && rewriting) {
+                inst.value = copies[inst.value];
+                changed = true;
+            } else if (inst.op == STORE) {
+                int local = inst.value;
+
+                for (int j = 0; j < copies.length; j++) {
+                    if (copies[j] == local) copies[j] = NONE;
+                }
+
+                Inst previous = i > 0 ? block.code.get(i - 1) : null;
+                int source = previous != null && previous.op == LOAD ? previous.value : NONE;
+                if (source != NONE && copies[source] != NONE) source = copies[source];
+
+                copies[local] = source == local ? NONE : source;
+            }
+        }
+
+        return changed;
+    }
+}
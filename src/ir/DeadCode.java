@@ -0,0 +1,114 @@
+package ir;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static codegen.Instruction.*;
+
+/**
+ * Stores to locals that are not read before they are stored again or the function returns become pops,
+ * then values that are only popped are not computed. Locals live at the end of each block are found
+ * backwards from the returns until they no longer change.
+ */
+final class DeadCode implements Pass {
+    @Override
+    public boolean run(Function function) {
+        BitSet[] liveIn = liveIn(function);
+
+        boolean changed = false;
+        for (Block block : function.blocks) {
+            changed |= transfer(block, liveOut(function, block, liveIn), true);
+            changed |= discard(block);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Locals live at the start of each block, by its index
+     */
+    static BitSet[] liveIn(Function function) {
+        List<Block> blocks = function.blocks;
+        BitSet[] liveIn = new BitSet[blocks.size()];
+        for (int i = 0; i < liveIn.length; i++) liveIn[i] = new BitSet();
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                BitSet live = liveOut(function, blocks.get(i), liveIn);
+                transfer(blocks.get(i), live, false);
+
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        }
+
+        return liveIn;
+    }
+
+    static BitSet liveOut(Function function, Block block, BitSet[] liveIn) {
+        BitSet live = new BitSet();
+        for (Block successor : function.successors(block)) live.or(liveIn[successor.index]);
+        return live;
+    }
+
+    /**
+     * Takes live from the end of the block to its start, dead stores become pops if removing
+     */
+    private static boolean transfer(Block block, BitSet live, boolean removing) {
+        boolean changed = false;
+
+        for (int i = block.code.size() - 1; i >= 0; i--) {
+            Inst inst = block.code.get(i);
+
+            if (inst.op == LOAD) {
+                live.set(inst.value);
+            } else if (inst.op == STORE) {
+                if (live.get(inst.value)) {
+                    live.clear(inst.value);
+                } else if (removing) {
+                    block.code.set(i, new Inst(POP, 0));
+                    changed = true;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Removes pure values followed by pop, a pure operation leaves its operands to be popped,
+     * and a local stored to itself
+     */
+    private static boolean discard(Block block) {
+        List<Inst> code = block.code;
+        boolean changed = false;
+        int i = 1;
+
+        while (i < code.size()) {
+            Inst previous = code.get(i - 1);
+            Inst inst = code.get(i);
+
+            if (inst.op == POP && previous.isPureValue()) {
+                code.subList(i - 1, i + 1).clear();
+            } else if (inst.op == POP && previous.pureOperands() == 1) {
+                code.remove(i - 1);
+            } else if (inst.op == POP && previous.pureOperands() == 2) {
+                code.set(i - 1, new Inst(POP, 0));
+            } else if (inst.op == STORE && previous.op == LOAD && inst.value == previous.value) {
+                code.subList(i - 1, i + 1).clear();
+            } else {
+                i++;
+                continue;
+            }
+
+            changed = true;
+            i = Math.max(1, i - 2);
+        }
+
+        return changed;
+    }
+}
@@ -0,0 +1,60 @@
+package ir;
+
+import parser.Symbol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Code of a function as blocks in the order they are laid out, the first one is entered
+ */
+public final class Function {
+    final Symbol symbol;
+    final int parameters;
+    int locals;
+    boolean[] references;                       // Slots of parameters and locals that hold references
+
+    final ArrayList<Block> blocks = new ArrayList<>();
+
+    Function(Symbol symbol, int parameters, int locals, boolean[] references) {
+        this.symbol = symbol;
+        this.parameters = parameters;
+        this.locals = locals;
+        this.references = references;
+    }
+
+    /**
+     * Parameters and locals, they share the slots of a frame
+     */
+    int slots() {
+        return parameters + locals;
+    }
+
+    void number() {
+        for (int i = 0; i < blocks.size(); i++) blocks.get(i).index = i;
+    }
+
+    /**
+     * Blocks the block can continue in, blocks have to be numbered
+     */
+    List<Block> successors(Block block) {
+        List<Block> successors = new ArrayList<>(2);
+        Inst last = block.last();
+
+        if (last != null && last.isJump()) successors.add(last.target);
+        if (block.fallsThrough() && block.index + 1 < blocks.size()) successors.add(blocks.get(block.index + 1));
+
+        return successors;
+    }
+
+    List<List<Block>> predecessors() {
+        List<List<Block>> predecessors = new ArrayList<>(blocks.size());
+        for (int i = 0; i < blocks.size(); i++) predecessors.add(new ArrayList<>());
+
+        for (Block block : blocks) {
+            for (Block successor : successors(block)) predecessors.get(successor.index).add(block);
+        }
+
+        return predecessors;
+    }
+}
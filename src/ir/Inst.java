@@ -0,0 +1,60 @@
+package ir;
+
+import codegen.Instruction;
+import parser.Symbol;
+import parser.Type;
+
+/**
+ * Instruction of the stack machine in its general form, lowering picks the short and fused forms.
+ * Locals are only read by load and written by store.
+ */
+public final class Inst {
+    public Instruction op;
+    public int value;           // Local, global, field, constant, size or trap code
+    public Type type;           // Of the value loaded or stored, of the struct or element allocated
+    public Symbol function;     // Called
+    public String text;         // Of load_string
+    public Block target;        // Of jumps
+
+    Inst(Instruction op, int value) {
+        this.op = op;
+        this.value = value;
+    }
+
+    boolean isJump() {
+        return target != null;
+    }
+
+    /**
+     * Nothing runs after it in its block
+     */
+    boolean isTerminator() {
+        return op == Instruction.JMP || op == Instruction.RETURN || op == Instruction.TRAP;
+    }
+
+    /**
+     * Pushes one value, pops none and cannot fail
+     */
+    boolean isPureValue() {
+        switch (op) {
+            case CONST: case LOAD: case LOAD_GLOBAL: case DUP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Values popped by an operation that cannot fail and pushes one, 0 if it is not one
+     */
+    int pureOperands() {
+        switch (op) {
+            case NEG:
+                return 1;
+            case ADD: case SUB: case MUL: case SHL: case SHR:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+}
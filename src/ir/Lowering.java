@@ -0,0 +1,99 @@
+package ir;
+
+import codegen.CodeBuffer;
+import codegen.Label;
+import codegen.NameMap;
+import codegen.ReferenceMap;
+import parser.Symbol;
+
+import static codegen.Instruction.*;
+
+/**
+ * Emits a function through CodeBuffer, which picks the short forms and fuses instructions that follow each other
+ */
+final class Lowering {
+    private Lowering() {}
+
+    static void lower(Function function) {
+        Symbol symbol = function.symbol;
+
+        if (symbol.name.equals("main")) {
+            CodeBuffer.mainStart = CodeBuffer.pc;
+        }
+
+        symbol.address = CodeBuffer.pc;
+
+        CodeBuffer.putByte(ENTER);
+        CodeBuffer.putByte(function.parameters);
+        CodeBuffer.putByte(function.locals);
+        ReferenceMap.function(symbol, function.references);
+        NameMap.function(symbol);
+
+        for (Block block : function.blocks) {
+            if (block.placed) label(block).here();
+
+            for (Inst inst : block.code) {
+                emit(inst);
+            }
+        }
+    }
+
+    private static Label label(Block block) {
+        if (block.label == null) block.label = new Label();
+        return block.label;
+    }
+
+    private static void emit(Inst inst) {
+        switch (inst.op) {
+            case CONST:         CodeBuffer.loadConstant(inst.value); break;
+            case LOAD:          CodeBuffer.loadLocal(inst.value); break;
+            case STORE:         CodeBuffer.storeLocal(inst.value); break;
+            case LOAD_FIELD:    CodeBuffer.loadField(inst.value); break;
+            case JMP:           CodeBuffer.jump(label(inst.target)); break;
+
+            case JEQ: case JNE: case JGT: case JLE: case JLT: case JGE:
+                CodeBuffer.conditionalJump(inst.op, label(inst.target));
+                break;
+
+            case LOAD_GLOBAL:
+            case STORE_GLOBAL:
+                CodeBuffer.putByte(inst.op);
+                CodeBuffer.putShort(inst.value);
+                break;
+
+            case NEW:
+                ReferenceMap.newStruct(CodeBuffer.pc, inst.type);
+                CodeBuffer.putByte(inst.op);
+                CodeBuffer.putByte(inst.value);
+                break;
+
+            case NEW_ARRAY:
+                ReferenceMap.newArray(CodeBuffer.pc, inst.type);
+                CodeBuffer.putByte(inst.op);
+                CodeBuffer.putByte(inst.value);
+                break;
+
+            case STORE_FIELD:
+            case TRAP:
+                CodeBuffer.putByte(inst.op);
+                CodeBuffer.putByte(inst.value);
+                break;
+
+            case CALL:
+                CodeBuffer.putByte(inst.op);
+                CodeBuffer.putShort(inst.function.address);
+                break;
+
+            case LOAD_STRING:
+                CodeBuffer.putByte(inst.op);
+                CodeBuffer.putWord(inst.value);
+                for (char c : inst.text.toCharArray())
+                    CodeBuffer.putByte(c);
+                CodeBuffer.putByte('\0');
+                break;
+
+            default:
+                CodeBuffer.putByte(inst.op);
+        }
+    }
+}
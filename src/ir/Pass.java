@@ -0,0 +1,11 @@
+package ir;
+
+/**
+ * Optimization of the code of a function
+ */
+interface Pass {
+    /**
+     * Whether it changed the function, blocks are numbered before and after
+     */
+    boolean run(Function function);
+}
@@ -0,0 +1,39 @@
+package ir;
+
+/**
+ * Passes of each optimization level, run in order over every function until none changes it.
+ * Above level 0 locals then share slots.
+ */
+public final class PassManager {
+    public static final int MAX_LEVEL = 2;
+    private static final int MAX_ROUNDS = 8;
+
+    private static final Pass[][] LEVELS = {
+            {},
+            { new ConstantFolding(), new UnreachableBlocks(), new DeadCode() },
+            { new ConstantFolding(), new UnreachableBlocks(), new CopyPropagation(), new DeadCode() },
+    };
+
+    public static int level = 1;
+    public static long time;                 // Spent optimizing, in nanoseconds
+
+    private PassManager() {}
+
+    static void run(Function function) {
+        long start = System.nanoTime();
+
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = false;
+
+            for (Pass pass : LEVELS[level]) {
+                changed |= pass.run(function);
+            }
+
+            if (!changed) break;
+        }
+
+        if (level > 0) SlotAllocation.run(function);
+
+        time += System.nanoTime() - start;
+    }
+}
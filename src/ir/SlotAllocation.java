@@ -0,0 +1,132 @@
+package ir;
+
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static codegen.Instruction.*;
+
+/**
+ * Locals share a slot of the frame when one is never stored while the other is live, most used locals
+ * get the lowest slots, which have the short load and store forms. Parameters keep theirs, locals may
+ * take the slot of one that is no longer read. A slot holds either references or other values,
+ * the collector knows it by the slot. Run once after the passes, it renumbers the locals.
+ */
+final class SlotAllocation {
+    private static final int NONE = -1;
+
+    private SlotAllocation() {}
+
+    static void run(Function function) {
+        int slots = function.slots();
+        BitSet[] interference = interference(function);
+        int[] uses = new int[slots];
+
+        for (Block block : function.blocks) {
+            for (Inst inst : block.code) {
+                if (inst.op == LOAD || inst.op == STORE) uses[inst.value]++;
+            }
+        }
+
+        int[] slot = new int[slots];
+        int[] kind = new int[slots];                // Of each new slot: NONE, 0 for values, 1 for references
+        int used = function.parameters;
+
+        for (int i = 0; i < slots; i++) {
+            slot[i] = i < function.parameters ? i : NONE;
+            kind[i] = i < function.parameters ? kind(function, i) : NONE;
+        }
+
+        int[] order = IntStream.range(function.parameters, slots)
+                .filter(local -> uses[local] > 0)
+                .boxed()
+                .sorted(Comparator.comparingInt((Integer local) -> -uses[local]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        for (int local : order) {
+            BitSet taken = new BitSet();
+            for (int other = interference[local].nextSetBit(0); other >= 0; other = interference[local].nextSetBit(other + 1)) {
+                if (slot[other] != NONE) taken.set(slot[other]);
+            }
+
+            int s = 0;
+            while (taken.get(s) || kind[s] != NONE && kind[s] != kind(function, local)) s++;
+
+            slot[local] = s;
+            kind[s] = kind(function, local);
+            used = Math.max(used, s + 1);
+        }
+
+        for (Block block : function.blocks) {
+            List<Inst> code = block.code;
+
+            for (Inst inst : code) {
+                if (inst.op == LOAD || inst.op == STORE) inst.value = slot[inst.value];
+            }
+
+            // A copy between locals that got the same slot does nothing
+            for (int i = code.size() - 1; i > 0; i--) {
+                if (code.get(i).op == STORE && code.get(i - 1).op == LOAD && code.get(i).value == code.get(i - 1).value) {
+                    code.subList(i - 1, i + 1).clear();
+                    i--;
+                }
+            }
+        }
+
+        boolean[] references = new boolean[used];
+        for (int s = 0; s < used; s++) references[s] = kind[s] == 1;
+
+        function.locals = used - function.parameters;
+        function.references = references;
+    }
+
+    private static int kind(Function function, int local) {
+        return function.references[local] ? 1 : 0;
+    }
+
+    /**
+     * Locals each local cannot share a slot with: the ones live where it is stored.
+     * Parameters and locals read before they are stored are stored on entry.
+     */
+    private static BitSet[] interference(Function function) {
+        int slots = function.slots();
+        BitSet[] liveIn = DeadCode.liveIn(function);
+        BitSet[] interference = new BitSet[slots];
+        for (int i = 0; i < slots; i++) interference[i] = new BitSet();
+
+        for (Block block : function.blocks) {
+            BitSet live = DeadCode.liveOut(function, block, liveIn);
+
+            for (int i = block.code.size() - 1; i >= 0; i--) {
+                Inst inst = block.code.get(i);
+
+                if (inst.op == STORE) {
+                    live.clear(inst.value);
+                    interfere(interference, inst.value, live);
+                } else if (inst.op == LOAD) {
+                    live.set(inst.value);
+                }
+            }
+        }
+
+        BitSet entry = (BitSet) liveIn[0].clone();
+        entry.set(0, function.parameters);
+
+        for (int local = entry.nextSetBit(0); local >= 0; local = entry.nextSetBit(local + 1)) {
+            interfere(interference, local, entry);
+        }
+
+        return interference;
+    }
+
+    private static void interfere(BitSet[] interference, int local, BitSet live) {
+        for (int other = live.nextSetBit(0); other >= 0; other = live.nextSetBit(other + 1)) {
+            if (other == local) continue;
+
+            interference[local].set(other);
+            interference[other].set(local);
+        }
+    }
+}
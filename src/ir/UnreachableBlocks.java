@@ -0,0 +1,47 @@
+package ir;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static codegen.Instruction.JMP;
+
+/**
+ * Removes the blocks no path from the entry reaches, such as code after a return. Then a jmp to the block
+ * after it is left to fall through. The last block stays, the VM knows a function returns a value
+ * by the trap for a forgotten return it ends with.
+ */
+final class UnreachableBlocks implements Pass {
+    @Override
+    public boolean run(Function function) {
+        boolean[] reached = new boolean[function.blocks.size()];
+        Deque<Block> work = new ArrayDeque<>();
+
+        reached[0] = true;
+        work.push(function.blocks.get(0));
+
+        while (!work.isEmpty()) {
+            for (Block successor : function.successors(work.pop())) {
+                if (!reached[successor.index]) {
+                    reached[successor.index] = true;
+                    work.push(successor);
+                }
+            }
+        }
+
+        int end = function.blocks.size() - 1;
+        boolean changed = function.blocks.removeIf(block -> !reached[block.index] && block.index != end);
+        function.number();
+
+        // A block only falls through to a reachable one, so removing blocks keeps where the others continue
+        for (Block block : function.blocks) {
+            Inst last = block.last();
+
+            if (last != null && last.op == JMP && last.target.index == block.index + 1) {
+                block.code.remove(block.code.size() - 1);
+                changed = true;
+            }
+        }
+
+        return changed;
+    }
+}
@@ -2,6 +2,8 @@ package parser;
 
 import codegen.*;
 import compiler.Mijavco;
+import ir.Block;
+import ir.Builder;
 import scanner.Scanner;
 import scanner.Token;
 import scanner.TokenKind;
@@ -121,15 +123,7 @@ public class Parser {
                 String typeName = name + "[]";
                 Symbol symbol = symbolTable.find(typeName);
                 if (symbol == null) {
-                    symbol = symbolTable.insert(
-                            typeName,
-                            SymbolKind.TYPE,
-                            new Type(TypeKind.REFERENCE),
-                            token
-                    );
-
-                    symbol.symbolType.arrayType = type;
-                    symbol.symbolType.name = typeName;
+                    symbol = symbolTable.insert(typeName, SymbolKind.TYPE, Types.arrayOf(type), token);
                 }
 
                 type = symbol.symbolType;
@@ -158,6 +152,7 @@ public class Parser {
                 error("Variable name expected, got: " + kind);
             } else if (varType != null && varType.typeKind != TypeKind.NOTYPE) {
                 var = symbolTable.insert(token.text, SymbolKind.VAR, varType, token);
+                if (var != null && isGlobal) ReferenceMap.global(var);
             }
 
             scan();
@@ -208,13 +203,10 @@ public class Parser {
         if (kind != IDENT) {
             error("struct identifier expected");
         } else {
-            Type newType = new Type(TypeKind.REFERENCE);
-            newType.name = token.text;
+            Type newType = Types.struct(token.text);
             symbol = symbolTable.insert(token.text, SymbolKind.TYPE, newType, token);
 
-            Type newArrType = new Type(TypeKind.REFERENCE);
-            newArrType.name = newType.name + "[]";
-            newArrType.arrayType = newType;
+            Type newArrType = Types.arrayOf(newType);
             symbolTable.insert(newArrType.name, SymbolKind.TYPE, newArrType, null);
         }
 
@@ -276,7 +268,7 @@ public class Parser {
 
 
     private static void function() {
-        Type functionType = new Type(TypeKind.NOTYPE);
+        Type functionType = Types.NOTYPE;
         Symbol function = new Symbol(token);
 
         if      (kind == VOID)  scan();
@@ -307,27 +299,19 @@ public class Parser {
         while (kind != LBRACE && kind != EOF)
             scan();
 
-        if (function.name.equals("main")) {
-            CodeBuffer.mainStart = CodeBuffer.pc;
-        }
-
-        function.address = CodeBuffer.pc;
-
         int parameterSize = function.parameters.size();
-        CodeBuffer.putByte(Instruction.ENTER);
-        CodeBuffer.putByte(parameterSize);
-        CodeBuffer.putByte(symbolTable.numberOfLocals() - parameterSize);
+        Builder.begin(function, parameterSize, symbolTable.numberOfLocals() - parameterSize, symbolTable.localSymbols());
 
         block();
 
         if (function.symbolType.typeKind == TypeKind.NOTYPE) {
-            CodeBuffer.putByte(Instruction.EXIT);
-            CodeBuffer.putByte(Instruction.RETURN);
+            Builder.put(Instruction.EXIT);
+            Builder.put(Instruction.RETURN);
         } else {
-            CodeBuffer.putByte(Instruction.TRAP); // A trap for forgotten return
-            CodeBuffer.putByte(1);
+            Builder.put(Instruction.TRAP, 1); // A trap for forgotten return
         }
 
+        Builder.end();
         symbolTable.closeScope();
     }
 
@@ -445,7 +429,7 @@ public class Parser {
                             error(String.format("Expression of type '%s' not assignable to '%s'",
                                     expression.type, designator));
                         } else {
-                            CodeBuffer.store(designatorOperand, expression);
+                            Builder.store(designatorOperand);
                         }
 
                         check(SEMICOLON);
@@ -464,16 +448,19 @@ public class Parser {
 
 
                         if (designator.name.equals("len")) {
-                            CodeBuffer.putByte(Instruction.LENGTH);
+                            Builder.put(Instruction.LENGTH);
                         } else if (designator.name.equals("rand")) {
-                            CodeBuffer.putByte(Instruction.RAND);
+                            Builder.put(Instruction.RAND);
+                        } else if (designator.name.equals("free")) {
+                            Builder.put(Instruction.FREE);
+                        } else if (designator.name.equals("dump")) {
+                            Builder.put(Instruction.DUMP);
                         } else if (!designator.name.equals("ctoi") && !designator.name.equals("itoc")) {
-                            CodeBuffer.putByte(Instruction.CALL);
-                            CodeBuffer.putShort(designator.address);
+                            Builder.call(designator);
                         }
 
                         if (designator.symbolType.typeKind != TypeKind.NOTYPE)
-                            CodeBuffer.putByte(Instruction.POP); // Get return value
+                            Builder.put(Instruction.POP); // Get return value
 
                         break;
 
@@ -486,11 +473,17 @@ public class Parser {
                         }
 
                         OperandKind designatorKind = designatorOperand.kind;
-                        CodeBuffer.load(designatorOperand);
-                        CodeBuffer.putByte(prevToken.kind == INC ? Instruction.CONST_1 : Instruction.CONST_M1);
-                        CodeBuffer.putByte(Instruction.ADD);
+                        if (designatorKind == OperandKind.STRUCT_FIELD) {
+                            Builder.put(Instruction.DUP);    // Struct address is needed by load and store
+                        } else if (designatorKind == OperandKind.ARRAY_ELEMENT) {
+                            Builder.put(Instruction.DUP2);   // So are array address and index
+                        }
+
+                        Builder.load(designatorOperand);
+                        Builder.constant(prevToken.kind == INC ? 1 : -1);
+                        Builder.put(Instruction.ADD);
                         designatorOperand.kind = designatorKind;
-                        CodeBuffer.store(designatorOperand, null);
+                        Builder.store(designatorOperand);
 
                         check(SEMICOLON);
                         break;
@@ -519,11 +512,11 @@ public class Parser {
                                 expression.type.name));
                     }
 
-                    CodeBuffer.load(expression);
+                    Builder.load(expression);
                 }
 
-                CodeBuffer.putByte(Instruction.EXIT);
-                CodeBuffer.putByte(Instruction.RETURN);
+                Builder.put(Instruction.EXIT);
+                Builder.put(Instruction.RETURN);
 
                 check(SEMICOLON);
                 break;
@@ -538,35 +531,41 @@ public class Parser {
                 Operand ifCondition = condition();
                 check(RPAREN);
 
-                CodeBuffer.falseJump(ifCondition);
-                ifCondition.trueLabel.here();
+                Builder.falseJump(ifCondition);
+                Builder.place(ifCondition.trueLabel);
 
                 statement();
 
-                ifCondition.falseLabel.here();
-
                 if (kind == ELSE) {
                     scan();
+                    Block ifEnd = new Block();
+                    Builder.jump(ifEnd);                // Skip else after the if statement
+                    Builder.place(ifCondition.falseLabel);
+
                     statement();
+                    Builder.place(ifEnd);
+                } else {
+                    Builder.place(ifCondition.falseLabel);
                 }
 
                 break;
 
             case WHILE:
                 scan();
-                Label whileTop = new Label();           // If true, this is where it should return after statements
-                whileTop.here();
+                Block whileTop = new Block();           // If true, this is where it should return after statements
+                Builder.place(whileTop);
                 check(LPAREN);
                 Operand whileCondition = condition();
                 check(RPAREN);
 
-                CodeBuffer.falseJump(whileCondition);   // If false, jump forward somewhere
+                Builder.falseJump(whileCondition);      // If false, jump forward somewhere
+                Builder.place(whileCondition.trueLabel); // a || b - if a was true, statements are the place to jump
 
                 symbolTable.setNextScopeIsLoop();       // TODO: This wont work for non block statement ?
                 statement();
 
-                CodeBuffer.jump(whileTop);              // If it was true, go to top of while
-                whileCondition.falseLabel.here();       // If false, this is where to jump
+                Builder.jump(whileTop);                 // If it was true, go to top of while
+                Builder.place(whileCondition.falseLabel); // If false, this is where to jump
 
                 break;
 
@@ -574,12 +573,16 @@ public class Parser {
                 scan();
                 check(LPAREN);
 
-                Symbol readDesignator = designator().symbol;
+                Operand readOperand = designator();
+                Symbol readDesignator = readOperand.symbol;
                 TypeKind readType = readDesignator.symbolType.typeKind;
-                if (readType != TypeKind.INT && readType != TypeKind.CHAR) {
+                if (readDesignator.symbolKind != SymbolKind.VAR) {
+                    error(readDesignator.symbolKind + " cannot be used here");
+                } else if (readType != TypeKind.INT && readType != TypeKind.CHAR) {
                     error("Can only read characters and numbers, type " + readDesignator.symbolType.typeKind + " can't");
                 } else {
-                    CodeBuffer.putByte(readType == TypeKind.INT ? Instruction.READ : Instruction.BREAD);
+                    Builder.put(readType == TypeKind.INT ? Instruction.READ : Instruction.BREAD);
+                    Builder.store(readOperand);
                 }
 
                 check(RPAREN);
@@ -592,15 +595,15 @@ public class Parser {
 
                 Operand printExpression = expression();
                 TypeKind printType = printExpression.type.typeKind;
-                boolean isString = symbolTable.find("char[]").symbolType.equals(printExpression.type);
+                boolean isString = printExpression.type.assignableTo(Types.arrayOf(Types.CHAR));
 
                 if (printType != TypeKind.INT && printType != TypeKind.CHAR && !isString) {
                     error("Can only print characters and numbers, type " + printExpression.type.typeKind + " can't");
                 } else {
                     if (isString) {
-                        CodeBuffer.putByte(Instruction.PRINTS);
+                        Builder.put(Instruction.PRINTS);
                     } else {
-                        CodeBuffer.putByte(printType == TypeKind.INT ? Instruction.PRINT : Instruction.BPRINT);
+                        Builder.put(printType == TypeKind.INT ? Instruction.PRINT : Instruction.BPRINT);
                     }
                 }
 
@@ -652,7 +655,7 @@ public class Parser {
                         if (designator == null) {
                             error(String.format("Error obtaining the field '" + prevToken.text + "'"));
                         } else {
-                            CodeBuffer.load(operand);               // Address of struct
+                            Builder.load(operand);               // Address of struct
                             operand = new Operand(designator);      // Operand is now a field not a struct pointer
                             operand.kind = OperandKind.STRUCT_FIELD;
                         }
@@ -660,7 +663,7 @@ public class Parser {
                 }
             } else {
                 if (operand != null) {
-                    CodeBuffer.load(operand); // Load the pointer to array before expression loads index
+                    Builder.load(operand); // Load the pointer to array before expression loads index
                 }
 
                 scan();
@@ -676,7 +679,7 @@ public class Parser {
                         designator = designator.copy();
                         designator.symbolType = arrayType;
 
-                        CodeBuffer.load(expression); // Load index
+                        Builder.load(expression); // Load index
 
                         operand = new Operand(designator);
                         operand.kind = OperandKind.ARRAY_ELEMENT;
@@ -692,7 +695,7 @@ public class Parser {
 
     private static Operand factor() {
         Symbol symbol = new Symbol(token);
-        symbol.symbolType = new Type(TypeKind.NOTYPE);
+        symbol.symbolType = Types.NOTYPE;
         Operand operand = null;
 
         switch (kind) {
@@ -706,12 +709,15 @@ public class Parser {
                     check(RPAREN);
 
                     if (symbol.name.equals("len")) {
-                        CodeBuffer.putByte(Instruction.LENGTH);
+                        Builder.put(Instruction.LENGTH);
                     } else if (symbol.name.equals("rand")) {
-                        CodeBuffer.putByte(Instruction.RAND);
+                        Builder.put(Instruction.RAND);
+                    } else if (symbol.name.equals("free")) {
+                        Builder.put(Instruction.FREE);
+                    } else if (symbol.name.equals("dump")) {
+                        Builder.put(Instruction.DUMP);
                     } else if (!symbol.name.equals("ctoi") && !symbol.name.equals("itoc")) {
-                        CodeBuffer.putByte(Instruction.CALL);
-                        CodeBuffer.putShort(symbol.address);
+                        Builder.call(symbol);
                     }
                 } else if (symbol.symbolKind == SymbolKind.CONST) {
                     operand.kind = OperandKind.CONSTANT;
@@ -722,7 +728,7 @@ public class Parser {
                 break;
 
             case CHARACTER:
-                symbol.symbolType = new Type(TypeKind.CHAR);
+                symbol.symbolType = Types.CHAR;
                 symbol.value = token.value;
                 symbol.symbolKind = SymbolKind.CONST;
                 operand = new Operand(symbol);
@@ -730,7 +736,7 @@ public class Parser {
                 break;
 
             case NUMBER:
-                symbol.symbolType = new Type(TypeKind.INT);
+                symbol.symbolType = Types.INT;
 //                symbol.value = token.value * (prevToken.kind == MINUS ? -1 : 1);
                 symbol.value = token.value;
                 symbol.symbolKind = SymbolKind.CONST;
@@ -739,11 +745,7 @@ public class Parser {
                 break;
 
             case STRING:
-                CodeBuffer.putByte(Instruction.LOAD_STRING);
-                CodeBuffer.putWord(token.value);
-                for (char c : token.text.toCharArray())
-                    CodeBuffer.putByte(c);
-                CodeBuffer.putByte('\0');
+                Builder.string(token.text, token.value);
 
                 operand = new Operand(symbolTable.find("char[]"));
 
@@ -769,13 +771,14 @@ public class Parser {
                 if (kind == LBRACK) {
                     scan();
 
-                    Operand arraySize = expression(); // Will load the size to CodeBuffer
+                    Operand arraySize = expression(); // Will load the size
                     if (arraySize.type.typeKind != TypeKind.INT) {
                         error("Expression of type " + TypeKind.INT + " expected");
                     }
 
-                    CodeBuffer.putByte(Instruction.NEW_ARRAY);
-                    CodeBuffer.putByte(symbol.symbolType.sizeInBytes);
+                    // Elements of struct arrays are references
+                    Type elementType = symbol.symbolType;
+                    Builder.newArray(elementType);
 
                     symbol = symbolTable.find(symbol.symbolType.name + "[]");
 
@@ -785,8 +788,7 @@ public class Parser {
 
                     check(RBRACK);
                 } else {
-                    CodeBuffer.putByte(Instruction.NEW);
-                    CodeBuffer.putByte(symbol.symbolType.fields.size());
+                    Builder.newStruct(symbol.symbolType);
                 }
 
                 operand = new Operand(symbol);
@@ -803,7 +805,7 @@ public class Parser {
                 error(kind + " not expected in an expression here");
         }
 
-        if (operand != null) CodeBuffer.load(operand);
+        if (operand != null) Builder.load(operand);
         else return new Operand(new Symbol(token));
 
         return operand;
@@ -825,9 +827,9 @@ public class Parser {
             scan();
             factorN = factor();
 
-            if      (op == ASTERISK) CodeBuffer.putByte(Instruction.MUL);
-            else if (op == SLASH)    CodeBuffer.putByte(Instruction.DIV);
-            else                     CodeBuffer.putByte(Instruction.REM);
+            if      (op == ASTERISK) Builder.put(Instruction.MUL);
+            else if (op == SLASH)    Builder.put(Instruction.DIV);
+            else                     Builder.put(Instruction.REM);
 
             if (!factorN.type.usedInArithmetics()) {
                 error("Cannot do arithmetic operations on '" + factorN.symbol + "'");
@@ -859,15 +861,15 @@ public class Parser {
             scan();
             termN = term();
 
-            if (op == PLUS) CodeBuffer.putByte(Instruction.ADD);
-            else            CodeBuffer.putByte(Instruction.SUB);
+            if (op == PLUS) Builder.put(Instruction.ADD);
+            else            Builder.put(Instruction.SUB);
 
             if (!termN.type.usedInArithmetics()) {
                 error("Cannot do arithmetic operations on '" + termN.symbol + "'");
             }
         }
 
-        if (negate) CodeBuffer.putByte(Instruction.NEG);
+        if (negate) Builder.put(Instruction.NEG);
 
         return term1;
     }
@@ -884,7 +886,7 @@ public class Parser {
                 return operand;
 
             default:
-                CodeBuffer.load(new Operand(0)); // if (a) -> if (a != 0) -> load a; const_0; jeq 0
+                Builder.load(new Operand(0)); // if (a) -> if (a != 0) -> load a; const_0; jeq 0
                 return new Operand(NE);
         }
     }
@@ -894,7 +896,7 @@ public class Parser {
 
 
         while (kind == AND) {
-            CodeBuffer.falseJump(operand); // if one factor is false, lazily skip the whole term
+            Builder.falseJump(operand); // if one factor is false, lazily skip the whole term
 
             scan();
             operand.condition = conditionFactor().condition;
@@ -907,8 +909,8 @@ public class Parser {
         Operand prev = conditionTerm();
 
         while (kind == OR) {
-            CodeBuffer.trueJump(prev); // If one is term is true, while condition is true
-            prev.falseLabel.here(); // a && b || c - if a was false, c is the place to jump (here)
+            Builder.trueJump(prev); // If one is term is true, while condition is true
+            Builder.place(prev.falseLabel); // a && b || c - if a was false, c is the place to jump (here)
 
             scan();
             Operand curr = conditionTerm();
@@ -18,9 +18,11 @@ public class Symbol {
 
     public int column, line;
 
+    int scope;                                   /* Number of the scope it is in, for dumping */
+
     Symbol() {
         symbolKind = SymbolKind.NOSYM;
-        symbolType = new Type(TypeKind.NOTYPE);
+        symbolType = Types.NOTYPE;
         name = "symbol";
     }
 
@@ -4,98 +4,142 @@ import codegen.CodeBuffer;
 import codegen.Operand;
 import scanner.Token;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
-
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Names in scope, in one open addressing table from name to the symbol it stands for.
+ * A name in scope cannot be declared again, not even in an inner scope, so a name stands for one symbol at a time.
+ * Symbols of open scopes are kept in the order they were inserted, a scope closes by taking
+ * its part off the end and taking their names out of scope.
+ * The function and loop a scope is in are kept for every open scope, so they are not looked up.
+ */
 public class SymbolTable {
-    private final Scope rootScope;
-    private final LinkedList<Scope> scopes; // For dumping
-    private Scope scope;
+    private static final int INITIAL_NAMES = 256;
+    private static final int INITIAL_DEPTH = 16;
+
+    /* Names ever inserted and the symbols they stand for now, null when the name is out of scope */
+    private String[] names = new String[INITIAL_NAMES];
+    private Symbol[] visible = new Symbol[INITIAL_NAMES];
+    private int nameCount = 0;
+
+    /* Symbols of the open scopes, scope i has them from scopeStart[i] */
+    private Symbol[] open = new Symbol[INITIAL_NAMES];
+    private int openCount = 0;
+
+    /* By depth of the open scopes, 0 is the global scope */
+    private int[] scopeStart = new int[INITIAL_DEPTH];
+    private Symbol[] scopeFunction = new Symbol[INITIAL_DEPTH];    // The scope was opened for it
+    private Symbol[] enclosingFunction = new Symbol[INITIAL_DEPTH];
+    private boolean[] inLoop = new boolean[INITIAL_DEPTH];
+    private int depth = 0;
     private boolean nextScopeIsLoop;
 
+    /* Scopes are numbered in the order they were opened, symbols of closed ones are kept for dumping */
+    private int[] scopeNumbers = new int[INITIAL_DEPTH];
+    private final List<Symbol> closed = new ArrayList<>();
+    private int openedScopes = 0;
+    private int insertedSymbols = 0;
+
+    private Map<Integer, Symbol> functionsByAddress;    // Made when first needed, after functions got addresses
+
     private int nextGlobalAddress = 0;
     private int nextLocalAddress = 0;
 
     public SymbolTable() {
-        scope = new Scope(false);
-        rootScope = scope;
-        scopes = new LinkedList<>();
-
-        Type intType = new Type(TypeKind.INT);
-        Type charType = new Type(TypeKind.CHAR);
-        insert("int", SymbolKind.TYPE, intType , null);
-        insert("char", SymbolKind.TYPE, charType, null);
-
-        Type intArrType = new Type(TypeKind.REFERENCE);
-        intArrType.arrayType = intType;
-        intArrType.name = "int[]";
+        insert("int", SymbolKind.TYPE, Types.INT, null);
+        insert("char", SymbolKind.TYPE, Types.CHAR, null);
+        insert("int[]", SymbolKind.TYPE, Types.arrayOf(Types.INT), null);
+        insert("char[]", SymbolKind.TYPE, Types.arrayOf(Types.CHAR), null);
 
-        Type charArrType = new Type(TypeKind.REFERENCE);
-        charArrType.arrayType = charType;
-        charArrType.name = "char[]";
+        insert("null", SymbolKind.CONST, Types.NULL, null);
 
-        insert("int[]", SymbolKind.TYPE, intArrType, null);
-        insert("char[]", SymbolKind.TYPE, charArrType, null);
-
-        Symbol nullSymbol = insert("null", SymbolKind.CONST, new Type(TypeKind.REFERENCE), null);
-        nullSymbol.symbolType.fields = new HashMap<>();
-        nullSymbol.symbolType.arrayType = new Type(TypeKind.NOTYPE);
-
-        Symbol ctoi = insert("ctoi", SymbolKind.FUNCTION, new Type(TypeKind.INT), null);
+        Symbol ctoi = insert("ctoi", SymbolKind.FUNCTION, Types.INT, null);
         openScope(ctoi);
         ctoi.parameters = new LinkedList<>();
-        ctoi.parameters.addLast(insert("c", SymbolKind.VAR, new Type(TypeKind.CHAR), null));
+        ctoi.parameters.addLast(insert("c", SymbolKind.VAR, Types.CHAR, null));
         closeScope();
         ctoi.address = -1;
 
-        Symbol rand = insert("rand", SymbolKind.FUNCTION, new Type(TypeKind.INT), null);
+        Symbol rand = insert("rand", SymbolKind.FUNCTION, Types.INT, null);
         openScope(rand);
         rand.parameters = new LinkedList<>();
-        rand.parameters.addLast(insert("max", SymbolKind.VAR, new Type(TypeKind.INT), null));
+        rand.parameters.addLast(insert("max", SymbolKind.VAR, Types.INT, null));
         closeScope();
         rand.address = -1;
 
-        Symbol itoc = insert("itoc", SymbolKind.FUNCTION, new Type(TypeKind.CHAR), null);
+        Symbol itoc = insert("itoc", SymbolKind.FUNCTION, Types.CHAR, null);
         openScope(itoc);
         itoc.parameters = new LinkedList<>();
-        itoc.parameters.addLast(insert("i", SymbolKind.VAR, new Type(TypeKind.INT), null));
+        itoc.parameters.addLast(insert("i", SymbolKind.VAR, Types.INT, null));
         closeScope();
         itoc.address = -1;
 
-        Symbol len = insert("len", SymbolKind.FUNCTION, new Type(TypeKind.INT), null);
+        Symbol len = insert("len", SymbolKind.FUNCTION, Types.INT, null);
         openScope(len);
         len.parameters = new LinkedList<>();
-        Type paramType = new Type(TypeKind.REFERENCE);
-        paramType.arrayType = new Type(TypeKind.NOTYPE);
-        paramType.name = "ref[]";
-        len.parameters.addLast(insert("__arr", SymbolKind.VAR, paramType, null));
+        len.parameters.addLast(insert("__arr", SymbolKind.VAR, Types.REF_ARRAY, null));
         len.address = -1;
 
         closeScope();
+
+        Symbol free = insert("free", SymbolKind.FUNCTION, Types.NOTYPE, null);
+        openScope(free);
+        free.parameters = new LinkedList<>();
+        free.parameters.addLast(insert("__ref", SymbolKind.VAR, Types.REF, null));
+        closeScope();
+        free.address = -1;
+
+        Symbol dump = insert("dump", SymbolKind.FUNCTION, Types.NOTYPE, null);
+        dump.parameters = new LinkedList<>();
+        dump.address = -1;
     }
 
     public void openScope(Symbol function) {
-        Scope innerScope = new Scope(nextScopeIsLoop);
-        nextScopeIsLoop = false;
-        innerScope.outer = scope;
-        scope.inners.add(innerScope);
-        scope = innerScope;
-
-        scope.function = function;
+        if (++depth == scopeStart.length) {
+            int length = 2 * depth;
+            scopeStart = Arrays.copyOf(scopeStart, length);
+            scopeFunction = Arrays.copyOf(scopeFunction, length);
+            enclosingFunction = Arrays.copyOf(enclosingFunction, length);
+            inLoop = Arrays.copyOf(inLoop, length);
+            scopeNumbers = Arrays.copyOf(scopeNumbers, length);
+        }
 
-        scopes.addLast(scope);
+        scopeStart[depth] = openCount;
+        scopeFunction[depth] = function;
+        enclosingFunction[depth] = function != null ? function : enclosingFunction[depth - 1];
+        inLoop[depth] = nextScopeIsLoop || inLoop[depth - 1];
+        scopeNumbers[depth] = ++openedScopes;
+        nextScopeIsLoop = false;
     }
 
     public void closeScope() {
-        if (scope.function != null) {
+        if (scopeFunction[depth] != null) {
             nextLocalAddress = 0;
         }
 
-        scope = scope.outer;
+        closed.addAll(Arrays.asList(open).subList(scopeStart[depth], openCount));
+
+        for (int i = openCount - 1; i >= scopeStart[depth]; i--) {
+            Symbol symbol = open[i];
+            visible[slot(symbol.name)] = null;
+            open[i] = null;
+        }
+
+        openCount = scopeStart[depth];
+        depth--;
     }
 
     public Symbol insert(String name, SymbolKind kind, Type type, Token token) {
-        Symbol exists = find(name);
+        int slot = slot(name);
+        Symbol exists = visible[slot];
         if (exists != null) {
             Parser.error(name + " is already in use as a " + exists.symbolKind);
             return null;
@@ -105,27 +149,62 @@ public class SymbolTable {
         symbol.symbolType = type;
         symbol.name = name;
         symbol.symbolKind = kind;
-        symbol.isGlobal = scope.function == null;
+        symbol.isGlobal = enclosingFunction[depth] == null;
 
         if (symbol.symbolKind == SymbolKind.CONST || symbol.symbolKind == SymbolKind.VAR) {
             symbol.address = symbol.isGlobal ? nextGlobalAddress++ : nextLocalAddress++;
         }
 
-        scope.locals.put(name, symbol);
+        if (names[slot] == null) {
+            names[slot] = name;
+            if (++nameCount > names.length / 2) grow();
+            slot = slot(name);
+        }
+
+        visible[slot] = symbol;
+
+        if (openCount == open.length) open = Arrays.copyOf(open, 2 * openCount);
+        open[openCount++] = symbol;
+
+        symbol.scope = scopeNumbers[depth];
+        insertedSymbols++;
+        if (kind == SymbolKind.FUNCTION) functionsByAddress = null;
 
         return symbol;
     }
 
     public Symbol find(String name) {
-        Symbol found = scope.locals.getOrDefault(name, null);
-        Scope current = scope;
+        return visible[slot(name)];
+    }
 
-        while (found == null && current.outer != null) {
-            current = current.outer;
-            found = current.locals.getOrDefault(name, null);
-        }
+    /**
+     * Slot of the name, or the empty one it would go to. Names from the scanner are interned, so they are found by identity
+     */
+    private int slot(String name) {
+        int hash = name.hashCode();
+        int mask = names.length - 1;
+        int i = (hash ^ hash >>> 16) & mask;    // Probed as in Scanner.intern
+
+        int step = 1;
+        while (names[i] != null && names[i] != name && !names[i].equals(name)) i = i + step++ & mask;
+
+        return i;
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        Symbol[] oldVisible = visible;
+
+        names = new String[2 * oldNames.length];
+        visible = new Symbol[2 * oldNames.length];
 
-        return found;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) continue;
+
+            int slot = slot(oldNames[i]);
+            names[slot] = oldNames[i];
+            visible[slot] = oldVisible[i];
+        }
     }
 
     public Symbol findField(String name, Type type) {
@@ -133,23 +212,50 @@ public class SymbolTable {
     }
 
     public Symbol getScopeFunction() {
-        return scope.getFunction();
+        return enclosingFunction[depth];
     }
 
     public void setNextScopeIsLoop() { nextScopeIsLoop = true; }
 
-    public boolean isScopeLoop() { return scope.isLoop(); }
+    public boolean isScopeLoop() { return inLoop[depth]; }
 
-    public int numberOfLocals() { return scope.locals.size(); }
+    public int numberOfLocals() { return openCount - scopeStart[depth]; }
 
-    public void dump() { rootScope.print(); }
+    /**
+     * Symbols of the innermost scope in the order they were inserted
+     */
+    public Collection<Symbol> localSymbols() {
+        return Arrays.asList(open).subList(scopeStart[depth], openCount);
+    }
+
+    /**
+     * Symbols of every scope ever opened, outer scopes first
+     */
+    public void dump() {
+        List<Symbol> symbols = new ArrayList<>(closed);
+        symbols.addAll(Arrays.asList(open).subList(0, openCount));
+
+        symbols.sort(Comparator.comparingInt(s -> s.scope));
+        symbols.forEach(System.out::println);
+    }
+
+    public int insertedSymbols() { return insertedSymbols; }
+
+    public int openedScopes() { return openedScopes; }
 
     public String getFunctionNameByAddress(int address) {
-        return rootScope.locals.values()
-                .stream()
-                .filter(s -> s.symbolKind == SymbolKind.FUNCTION && s.address == address)
-                .findFirst()
-                .map(s -> s.name)
-                .orElseThrow();
+        if (functionsByAddress == null) {
+            functionsByAddress = new HashMap<>();
+
+            int globals = depth > 0 ? scopeStart[1] : openCount;
+            for (int i = 0; i < globals; i++) {
+                if (open[i].symbolKind == SymbolKind.FUNCTION) functionsByAddress.putIfAbsent(open[i].address, open[i]);
+            }
+        }
+
+        Symbol function = functionsByAddress.get(address);
+        if (function == null) throw new NoSuchElementException("No function at " + address);
+
+        return function.name;
     }
 }
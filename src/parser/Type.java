@@ -2,6 +2,9 @@ package parser;
 
 import java.util.HashMap;
 
+/**
+ * Made only by Types, so two types are the same type if they are the same object
+ */
 public class Type {
     public TypeKind typeKind;
     public Type arrayType;
@@ -9,10 +12,14 @@ public class Type {
     public String name;
     public int sizeInBytes;
 
-    public Type(TypeKind kind) {
+    final int shape;                        /* Row and column in Types.ASSIGNABLE */
+    Type array;                             /* Array type of this type, made when first needed */
+
+    Type(TypeKind kind, int shape) {
         typeKind = kind;
         sizeInBytes = typeKind == TypeKind.CHAR ? 1 : 4;
         name = typeKind.toString();
+        this.shape = shape;
     }
 
     public boolean usedInArithmetics() {
@@ -27,30 +34,8 @@ public class Type {
         return arrayType != null;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        Type that = (Type) obj;
-        if (this.typeKind != that.typeKind) return false;
-
-        if (this.typeKind == TypeKind.REFERENCE) {
-            if (that.arrayType != null && that.fields != null) return true; // special case for null
-
-            if (this.arrayType != null) {
-                return that.arrayType != null &&
-                        (this.arrayType.equals(that.arrayType) || this.arrayType.typeKind == TypeKind.NOTYPE);
-            } else {
-                // Compares if they have same symbols (fields) by comparing their types
-                // If fields are null, it's a special case for 'null constant'
-                if (this.fields == null || that.fields == null) return true;
-                return this.fields.equals(that.fields);
-            }
-        }
-
-        return true;
-    }
-
     public boolean assignableTo(Type that) {
-        return that.typeKind != TypeKind.NOTYPE && this.typeKind != TypeKind.NOTYPE && that.equals(this);
+        return Types.assignable(this, that);
     }
 
 
@@ -0,0 +1,81 @@
+package parser;
+
+import java.util.HashMap;
+
+/**
+ * Every type exists once, so types are compared by identity. Structs are told apart by their declaration,
+ * there is one array type for every element type and one of each other type.
+ * What can be assigned to what is a table by the shapes of the two types, null and the parameter types
+ * of free() and len() are the only types some other type is assignable to.
+ */
+public final class Types {
+    private Types() {}
+
+    /* Shapes */
+    static final int NOTHING = 0;
+    static final int WORD = 1;
+    static final int BYTE = 2;
+    static final int NULL_SHAPE = 3;
+    static final int ANY_REFERENCE = 4;
+    static final int ANY_ARRAY = 5;
+    static final int ARRAY = 6;
+    static final int STRUCT = 7;
+
+    public static final Type NOTYPE = new Type(TypeKind.NOTYPE, NOTHING);
+    public static final Type INT = new Type(TypeKind.INT, WORD);
+    public static final Type CHAR = new Type(TypeKind.CHAR, BYTE);
+    public static final Type NULL = new Type(TypeKind.REFERENCE, NULL_SHAPE);
+    public static final Type REF = new Type(TypeKind.REFERENCE, ANY_REFERENCE);         // Parameter of free()
+    public static final Type REF_ARRAY = new Type(TypeKind.REFERENCE, ANY_ARRAY);       // Parameter of len()
+
+    static {
+        NULL.fields = new HashMap<>();
+        NULL.arrayType = NOTYPE;
+
+        REF_ARRAY.name = "ref[]";
+        REF_ARRAY.arrayType = NOTYPE;
+        NOTYPE.array = REF_ARRAY;
+    }
+
+    /* Whether a value of the row shape can be stored in the column shape, SAME if only of the same type */
+    private static final byte NO = 0, YES = 1, SAME = 2;
+    private static final byte[][] ASSIGNABLE = {
+        //                 NOTHING WORD  BYTE  NULL  ANYREF ANYARR ARRAY STRUCT
+        /* NOTHING    */ { NO,     NO,   NO,   NO,   NO,    NO,    NO,   NO   },
+        /* WORD       */ { NO,     YES,  NO,   NO,   NO,    NO,    NO,   NO   },
+        /* BYTE       */ { NO,     NO,   YES,  NO,   NO,    NO,    NO,   NO   },
+        /* NULL       */ { NO,     NO,   NO,   YES,  YES,   YES,   YES,  YES  },
+        /* ANY_REF    */ { NO,     NO,   NO,   NO,   YES,   NO,    NO,   NO   },
+        /* ANY_ARRAY  */ { NO,     NO,   NO,   NO,   YES,   YES,   NO,   NO   },
+        /* ARRAY      */ { NO,     NO,   NO,   NO,   YES,   YES,   SAME, NO   },
+        /* STRUCT     */ { NO,     NO,   NO,   NO,   YES,   NO,    NO,   SAME },
+    };
+
+    static boolean assignable(Type from, Type to) {
+        byte rule = ASSIGNABLE[from.shape][to.shape];
+        return rule == YES || rule == SAME && from == to;
+    }
+
+    /**
+     * The array type of element, there is only one
+     */
+    public static Type arrayOf(Type element) {
+        if (element.array == null) {
+            Type array = new Type(TypeKind.REFERENCE, ARRAY);
+            array.name = element.name + "[]";
+            array.arrayType = element;
+            element.array = array;
+        }
+
+        return element.array;
+    }
+
+    /**
+     * A new struct type, its fields are set when its declaration ends
+     */
+    public static Type struct(String name) {
+        Type struct = new Type(TypeKind.REFERENCE, STRUCT);
+        struct.name = name;
+        return struct;
+    }
+}
@@ -1,51 +1,98 @@
 package scanner;
 
-import java.io.*;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
 
 import static scanner.TokenKind.*;
 
+/**
+ * Splits the source into tokens. The file is read whole into a byte array and scanned a byte at a time,
+ * bytes are told apart by ASCII tables, keywords are found by a perfect hash and names are interned,
+ * so a token allocates nothing but the text of a name seen for the first time or of a string.
+ *
+ * The parser only keeps the current and the previous token, so two tokens take turns.
+ * Bytes of strings are kept as they are, one char each, so UTF-8 in them reaches the object file unchanged.
+ */
 public class Scanner {
     private static String filePath;
     private static File inputFile;
 
-    private static final char EOLCHAR = '\n';
-    private static final char EOFCHAR = (char) -1;
+    private static final int EOLCHAR = '\n';
+    private static final int EOFCHAR = 256;         // Past the last byte, in no character class
 
-    private static HashMap<String, TokenKind> reservedNamesCodes;
-    private static HashSet<Character> escapedCharacters;
+    /* Character classes by byte */
+    private static final byte LETTER = 1;           // '_' included
+    private static final byte DIGIT = 2;
+    private static final byte HEX = 4;
+    private static final byte SPACE = 8;
+    private static final byte[] CLASSES = new byte[EOFCHAR + 1];
 
-    private static Reader in;
-    private static char   ch;
-    private static int    col;
+    /* Keywords by keywordSlot(), no two of them share a slot */
+    private static final int KEYWORD_SLOTS = 32;
+    private static final String[] keywords = new String[KEYWORD_SLOTS];
+    private static final TokenKind[] keywordKinds = new TokenKind[KEYWORD_SLOTS];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) CLASSES[c] |= LETTER;
+        for (int c = 'A'; c <= 'Z'; c++) CLASSES[c] |= LETTER;
+        CLASSES['_'] |= LETTER;
+
+        for (int c = '0'; c <= '9'; c++) CLASSES[c] |= DIGIT | HEX;
+        for (int c = 'a'; c <= 'f'; c++) CLASSES[c] |= HEX;
+        for (int c = 'A'; c <= 'F'; c++) CLASSES[c] |= HEX;
+
+        /* As Character.isWhitespace */
+        for (int c : new int[] { ' ', '\t', '\n', 0x0B, '\f', '\r', 0x1C, 0x1D, 0x1E, 0x1F }) CLASSES[c] |= SPACE;
+
+        for (TokenKind kind : EnumSet.range(BREAK, WHILE)) {
+            String keyword = kind.name().toLowerCase();
+            int slot = keywordSlot(keyword.charAt(0), keyword.charAt(keyword.length() - 1), keyword.length());
+
+            if (keywords[slot] != null) {
+                throw new IllegalStateException(keyword + " and " + keywords[slot] + " share a keyword slot");
+            }
+
+            keywords[slot] = keyword;
+            keywordKinds[slot] = kind;
+        }
+    }
+
+    private static byte[] input;
+    private static int    pos;                      // Of ch
+    private static int    ch;
+    private static int    lineStart;                // Position after the last new line
     private static int    line;
 
+    private static final Token[] ring = { new Token(), new Token() };
+
+    /* Names seen so far, open addressing by their String.hashCode() */
+    private static String[] names;
+    private static int      nameCount;
+
+    /* Statistics for phase times, the scanner is only timed when someone looks at them */
+    public static boolean timed;
+    public static int     tokens;
+    public static long    time;     // Nanoseconds spent in nextToken
+
     public static void init(String filePath) throws IOException {
-        col = 0;
         line = 1;
+        lineStart = 0;
+        tokens = 0;
+        time = 0;
 
         inputFile = new File(filePath);
         Scanner.filePath = inputFile.getAbsolutePath();
 
-        in = new InputStreamReader(new FileInputStream(inputFile));
+        input = Files.readAllBytes(inputFile.toPath());
+        names = new String[1024];
+        nameCount = 0;
 
+        pos = -1;
+        ch = 0;
         nextChar();
-
-        escapedCharacters = Stream
-                .of('n', '\\', '\'', '\"', 't')
-                .collect(Collectors.toCollection(HashSet::new));
-
-        reservedNamesCodes = new HashMap<>();
-        /* "while" -> TokenKind.WHILE */
-        Arrays.stream(TokenKind.values())
-                        .forEach(k -> reservedNamesCodes.put(
-                                k.name().toLowerCase(), k
-                        ));
-        reservedNamesCodes.remove("error");
     }
 
     /**
@@ -63,30 +110,51 @@ public class Scanner {
     }
 
     private static void nextChar() {
-        try {
-            ch = (char) in.read();
-
-            if (ch == EOLCHAR) {
-                col = 0;
-                line++;
-            } else {
-                col++;
-            }
-        } catch (IOException e) {
-            System.err.println("Rip reader");
+        if (ch == EOLCHAR) {
+            line++;
+            lineStart = pos + 1;
         }
+
+        ch = ++pos < input.length ? input[pos] & 0xff : EOFCHAR;
+    }
+
+    private static int peek() {
+        return pos + 1 < input.length ? input[pos + 1] & 0xff : EOFCHAR;
     }
 
     public static Token nextToken() {
-        while (Character.isWhitespace(ch)) nextChar();
+        if (!timed) return readToken();
+
+        long start = System.nanoTime();
+        Token token = readToken();
+        time += System.nanoTime() - start;
 
-        Token token = new Token();
-        token.column = col;
+        return token;
+    }
+
+    private static Token readToken() {
+        tokens++;
+
+        // Whitespace and comments
+        while (true) {
+            while ((CLASSES[ch] & SPACE) != 0) nextChar();
+
+            if (ch != '/' || peek() != '/') break;
+            while (ch != EOLCHAR && ch != EOFCHAR) nextChar();
+        }
+
+        Token token = ring[tokens & 1];
+        token.kind = null;
+        token.value = 0;
+        token.text = null;
+        token.column = pos - lineStart + 1;
         token.line = line;
 
-        if (Character.isLetter(ch) || ch == '_') {
+        int type = CLASSES[ch];
+
+        if ((type & LETTER) != 0) {
             readIdent(token);
-        } else if (Character.isDigit(ch)) {
+        } else if ((type & DIGIT) != 0) {
             readNumber(token);
         } else if (ch == '\'') {
             readCharacter(token);
@@ -100,15 +168,76 @@ public class Scanner {
     }
 
     private static void readIdent(Token token) {
-        StringBuilder stringBuilder = new StringBuilder();
+        int start = pos;
+        int hash = 0;
 
-        while (Character.isDigit(ch) || Character.isLetter(ch) || ch == '_') {
-            stringBuilder.append(ch);
+        while ((CLASSES[ch] & (LETTER | DIGIT)) != 0) {
+            hash = 31 * hash + ch;
             nextChar();
         }
 
-        token.text = stringBuilder.toString();
-        token.kind = reservedNamesCodes.getOrDefault(token.text, IDENT);
+        int length = pos - start;
+        int slot = keywordSlot(input[start], input[pos - 1], length);
+
+        if (keywords[slot] != null && matches(keywords[slot], start, length)) {
+            token.kind = keywordKinds[slot];
+            token.text = keywords[slot];
+        } else {
+            token.kind = IDENT;
+            token.text = intern(start, length, hash);
+        }
+    }
+
+    /**
+     * Perfect for the keywords, the length tells most of them apart
+     */
+    private static int keywordSlot(int first, int last, int length) {
+        return first + last + length & KEYWORD_SLOTS - 1;
+    }
+
+    private static boolean matches(String name, int start, int length) {
+        if (name.length() != length) return false;
+
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != input[start + i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The name at start, only a name not seen before is made into a string.
+     * Names are ASCII, so hash is their String.hashCode(). Generated names like v1, v2, v3 hash to neighbours,
+     * they stay near each other in the table and the steps growing by one keep their runs from piling up
+     */
+    private static String intern(int start, int length, int hash) {
+        int mask = names.length - 1;
+        int i = (hash ^ hash >>> 16) & mask;
+
+        for (int step = 1; names[i] != null; i = i + step++ & mask) {
+            if (names[i].hashCode() == hash && matches(names[i], start, length)) return names[i];
+        }
+
+        String name = new String(input, start, length, StandardCharsets.US_ASCII);
+        names[i] = name;
+
+        if (++nameCount > names.length / 2) {
+            String[] old = names;
+            names = new String[2 * old.length];
+            mask = names.length - 1;
+
+            for (String n : old) {
+                if (n == null) continue;
+
+                int h = n.hashCode();
+                int j = (h ^ h >>> 16) & mask;
+
+                for (int step = 1; names[j] != null; ) j = j + step++ & mask;
+                names[j] = n;
+            }
+        }
+
+        return name;
     }
 
     private static void readNumber(Token token) {
@@ -121,7 +250,7 @@ public class Scanner {
             if      (ch == 'h') base = 16;
             else if (ch == 'o') base = 8;
             else if (ch == 'b') base = 2;
-            else if (!Character.isAlphabetic(ch)) return;
+            else if ((CLASSES[ch] & LETTER) == 0 || ch == '_') return;
             else {
                 error("Illegal number format character, use 'o' - octal, 'b' - binary or 'h' - hex", token);
                 nextChar();
@@ -132,7 +261,7 @@ public class Scanner {
         }
 
         if (base == 10) {
-            while (Character.isDigit(ch)) {
+            while ((CLASSES[ch] & DIGIT) != 0) {
                 token.value = token.value * 10 + (ch - '0');
                 nextChar();
             }
@@ -148,26 +277,22 @@ public class Scanner {
             }
 
         } else {
-            while (isHex(ch)) {
+            while ((CLASSES[ch] & HEX) != 0) {
                 token.value = token.value * 16 + toHex(ch);
                 nextChar();
             }
         }
 
-        if (Character.isDigit(ch)) {
+        if ((CLASSES[ch] & DIGIT) != 0) {
             error(String.format("'%c' is a illegal digit for base %d%n", ch, base), token);
             return;
         }
     }
 
-    private static boolean isHex(char ch) {
-        return Character.isDigit(ch) || "abcdef".indexOf(ch) != -1 || "ABCDEF".indexOf(ch) != -1 ;
-    }
-
-    private static int toHex(char ch) {
-        if (Character.isDigit(ch)) {
+    private static int toHex(int ch) {
+        if ((CLASSES[ch] & DIGIT) != 0) {
             return ch - '0';
-        } else if (Character.isLowerCase(ch)) {
+        } else if (ch >= 'a') {
             return ch - 'a' + 10;
         } else {
             return ch - 'A' + 10;
@@ -185,9 +310,8 @@ public class Scanner {
             nextChar();
             escaped = true;
 
-            // TODO:
-            if (!escapedCharacters.contains(ch)) {
-                error("Illegal escape character '\\" + ch + '\'', token);
+            if (ch != 'n' && ch != 't' && ch != '\\' && ch != '\'' && ch != '\"') {
+                error("Illegal escape character '\\" + (char) ch + '\'', token);
             }
         } else {
             if (ch == '\'' || ch == '\"') {
@@ -228,16 +352,17 @@ public class Scanner {
     private static void readString(Token token) {
         nextChar();
 
-        StringBuilder sb = new StringBuilder();
-
-        while (ch != '\"') {
-            sb.append(ch);
-            nextChar();
-        }
+        int start = pos;
+        while (ch != '\"' && ch != EOFCHAR) nextChar();
 
         token.kind = STRING;
-        token.text = sb.toString();
-        token.value = sb.length();
+        token.text = new String(input, start, pos - start, StandardCharsets.ISO_8859_1);
+        token.value = pos - start;
+
+        if (ch == EOFCHAR) {
+            error("Unexpected end of file, string not closed", token);
+            return;
+        }
 
         nextChar();
     }
@@ -255,23 +380,7 @@ public class Scanner {
             case '}': token.kind = RBRACE;    nextChar(); break;
             case '*': token.kind = ASTERISK;  nextChar(); break;
             case '%': token.kind = MOD;       nextChar(); break;
-
-            case '/':
-                nextChar();
-                if (ch == '/') {
-                    while (ch != EOLCHAR && ch != EOFCHAR) nextChar();
-
-                    Token tokenAfterComment = nextToken();
-
-                    token.kind = tokenAfterComment.kind;
-                    token.line = tokenAfterComment.line;
-                    token.value = tokenAfterComment.value;
-                    token.text = tokenAfterComment.text;
-                    token.column = tokenAfterComment.column;
-                } else {
-                    token.kind = SLASH;
-                }
-                break;
+            case '/': token.kind = SLASH;     nextChar(); break;     // Comments are skipped with whitespace
 
             case '=':
                 nextChar();
@@ -358,7 +467,7 @@ public class Scanner {
                 break;
 
             default:
-                error("Unexpected character '" + ch + "'", token);
+                error("Unexpected character '" + (char) ch + "'", token);
                 nextChar();
         }
     }
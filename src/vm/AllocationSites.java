@@ -0,0 +1,149 @@
+package vm;
+
+import codegen.Instruction;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Allocations of a run by site, the address of the new, newarr or load_string that made them.
+ * Allocations and their words are always counted, a heap overflow reports the sites that allocated most.
+ *
+ * Tracking also keeps the site of every block, so the words sweeps and free give back are taken from the live
+ * words of their sites. Garbage is live until a collection finds it, so the peak of a site is the most words
+ * it had in the heap at once, and exact at every collection.
+ */
+final class AllocationSites {
+    static final int SHOWN_SITES = 10;
+
+    private final ProgramImage image;
+
+    /* By address */
+    private final long[] counts;
+    private final long[] words;
+    private final long[] live;
+    private final long[] peaks;
+
+    long allocations;
+    long allocatedWords;
+
+    private int[] blocks;                   // Site of each block by its index in the heap, null unless tracking
+    private int[] owners;                   // Function of each address, made when first needed
+
+    AllocationSites(ProgramImage image) {
+        int size = image.codeData.length;
+
+        this.image = image;
+        this.counts = new long[size];
+        this.words = new long[size];
+        this.live = new long[size];
+        this.peaks = new long[size];
+    }
+
+    void track() {
+        if (blocks == null) blocks = new int[1024];
+    }
+
+    boolean isTracking() {
+        return blocks != null;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(words, 0);
+        Arrays.fill(live, 0);
+        Arrays.fill(peaks, 0);
+        allocations = allocatedWords = 0;
+    }
+
+    void allocated(int block, int size, int site) {
+        counts[site]++;
+        words[site] += size;
+        allocations++;
+        allocatedWords += size;
+
+        if (blocks != null) {
+            if (block >= blocks.length) blocks = Arrays.copyOf(blocks, Math.max(2 * blocks.length, block + 1));
+            blocks[block] = site;
+
+            live[site] += size;
+            if (live[site] > peaks[site]) peaks[site] = live[site];
+        }
+    }
+
+    /**
+     * Site that allocated the block, -1 unless tracking
+     */
+    int site(int block) {
+        return blocks != null && block < blocks.length ? blocks[block] : -1;
+    }
+
+    /**
+     * Name of the function the site is in
+     */
+    String function(int site) {
+        if (owners == null) owners = owners();
+        return image.names.name(owners[site]);
+    }
+
+    /**
+     * The block is garbage or freed
+     */
+    void released(int block, int size) {
+        if (blocks != null) live[blocks[block]] -= size;
+    }
+
+    /**
+     * Sites that allocated most words first, up to limit of them
+     */
+    void report(PrintStream out, int limit) {
+        long total = Arrays.stream(words).sum();
+        Instruction[] instructions = Instruction.values();
+
+        out.printf("%nAllocations: %,d objects, %,d words%n%n", Arrays.stream(counts).sum(), total);
+
+        if (blocks != null) {
+            out.printf("%-8s %-24s %-12s %14s %14s %8s %14s %14s%n", "address", "function", "instruction", "allocations", "words", "%", "live", "peak");
+        } else {
+            out.printf("%-8s %-24s %-12s %14s %14s %8s%n", "address", "function", "instruction", "allocations", "words", "%");
+        }
+
+        sorted(words).filter(a -> counts[a] > 0).limit(limit).forEach(a -> {
+            out.printf("%03d      %-24s %-12s %,14d %,14d %7.1f%%", a, function(a),
+                    instructions[image.codeData[a]].niceName, counts[a], words[a], 100.0 * words[a] / Math.max(1, total));
+
+            if (blocks != null) out.printf(" %,14d %,14d", live[a], peaks[a]);
+            out.println();
+        });
+
+        out.flush();
+    }
+
+    /**
+     * Function of each address, functions are laid out one after another from their ENTER
+     */
+    private int[] owners() {
+        DecodedCode decoded = image.decoded;
+        int[] owners = new int[image.codeData.length];
+        int function = 0;
+
+        for (int i = 0; i < decoded.code.length; i += Op.size(decoded.code[i])) {
+            if (decoded.code[i] == Op.ENTER) function = decoded.sourceAddress[i];
+            owners[decoded.sourceAddress[i]] = function;
+        }
+
+        return owners;
+    }
+
+    /**
+     * Addresses, highest value first
+     */
+    private static IntStream sorted(long[] values) {
+        return IntStream.range(0, values.length)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer i) -> values[i]).reversed())
+                .mapToInt(Integer::intValue);
+    }
+}
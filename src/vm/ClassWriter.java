@@ -0,0 +1,337 @@
+package vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Writes class files with static methods and fields, just enough for compiled functions.
+ * Version 49 classes are checked by the type inferencing verifier, so no stack map frames are written.
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    /* JVM opcodes used by compiled code */
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int IALOAD = 0x2e;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int IASTORE = 0x4f;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int SWAP = 0x5f;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int INEG = 0x74;
+    static final int ISHL = 0x78;
+    static final int ISHR = 0x7a;
+    private static final int IINC = 0x84;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ATHROW = 0xbf;
+    private static final int WIDE = 0xc4;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final Bytes pool = new Bytes();
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final ArrayList<Bytes> fields = new ArrayList<>();
+    private final ArrayList<Bytes> methods = new ArrayList<>();
+
+    ClassWriter(String name) {
+        thisClass = classRef(name);
+    }
+
+    /* Constant pool, equal entries are shared */
+
+    private int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.putByte(CONSTANT_UTF8);
+            pool.putUtf(value);
+        });
+    }
+
+    int classRef(String name) {
+        return constant("C" + name, () -> {
+            int nameIndex = utf8(name);
+            pool.putByte(CONSTANT_CLASS);
+            pool.putShort(nameIndex);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, () -> {
+            pool.putByte(CONSTANT_INTEGER);
+            pool.putWord(value);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        return constant(tag + owner + "." + name + descriptor, () -> {
+            int ownerIndex = classRef(owner);
+            int nameAndType = constant("N" + name + descriptor, () -> {
+                int nameIndex = utf8(name);
+                int descriptorIndex = utf8(descriptor);
+                pool.putByte(CONSTANT_NAME_AND_TYPE);
+                pool.putShort(nameIndex);
+                pool.putShort(descriptorIndex);
+            });
+
+            pool.putByte(tag);
+            pool.putShort(ownerIndex);
+            pool.putShort(nameAndType);
+        });
+    }
+
+    private int constant(String key, Runnable write) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+
+        // Entries an entry refers to are written before it
+        write.run();
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    /* Members */
+
+    void field(int access, String name, String descriptor) {
+        Bytes field = new Bytes();
+        field.putShort(access);
+        field.putShort(utf8(name));
+        field.putShort(utf8(descriptor));
+        field.putShort(0);
+        fields.add(field);
+    }
+
+    Method method(int access, String name, String descriptor, int labels) {
+        return new Method(access, name, descriptor, labels);
+    }
+
+    byte[] toByteArray() {
+        Bytes file = new Bytes();
+
+        int superClass = classRef("java/lang/Object");
+
+        file.putWord(0xcafebabe);
+        file.putShort(0);
+        file.putShort(49);
+        file.putShort(poolCount);
+        file.putBytes(pool);
+        file.putShort(ACC_FINAL | ACC_SUPER);
+        file.putShort(thisClass);
+        file.putShort(superClass);
+        file.putShort(0);
+
+        file.putShort(fields.size());
+        for (Bytes field : fields) file.putBytes(field);
+
+        file.putShort(methods.size());
+        for (Bytes method : methods) file.putBytes(method);
+
+        file.putShort(0);
+
+        return file.toByteArray();
+    }
+
+    /**
+     * Code of a method. Labels are numbered by the caller, branches to them are patched in end().
+     */
+    final class Method {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+
+        private final Bytes code = new Bytes();
+        private final int[] labels;
+        private final ArrayList<int[]> branches = new ArrayList<>();   // {opcode position, label}
+
+        private Method(int access, String name, String descriptor, int labels) {
+            this.access = access;
+            this.name = utf8(name);
+            this.descriptor = utf8(descriptor);
+            this.labels = new int[labels];
+            Arrays.fill(this.labels, -1);
+        }
+
+        void op(int opcode) {
+            code.putByte(opcode);
+        }
+
+        void constant(int value) {
+            if (value >= -1 && value <= 5) {
+                code.putByte(ICONST_0 + value);
+            } else if (value == (byte) value) {
+                code.putByte(BIPUSH);
+                code.putByte(value);
+            } else if (value == (short) value) {
+                code.putByte(SIPUSH);
+                code.putShort(value);
+            } else {
+                code.putByte(LDC_W);
+                code.putShort(integer(value));
+            }
+        }
+
+        /**
+         * Load or store of a local variable
+         */
+        void local(int opcode, int index) {
+            if (index > 0xff) {
+                code.putByte(WIDE);
+                code.putByte(opcode);
+                code.putShort(index);
+            } else {
+                code.putByte(opcode);
+                code.putByte(index);
+            }
+        }
+
+        void increment(int index, int delta) {
+            if (index > 0xff || delta != (byte) delta) {
+                code.putByte(WIDE);
+                code.putByte(IINC);
+                code.putShort(index);
+                code.putShort(delta);
+            } else {
+                code.putByte(IINC);
+                code.putByte(index);
+                code.putByte(delta);
+            }
+        }
+
+        void member(int opcode, int ref) {
+            code.putByte(opcode);
+            code.putShort(ref);
+        }
+
+        void branch(int opcode, int label) {
+            branches.add(new int[] { code.size(), label });
+            code.putByte(opcode);
+            code.putShort(0);
+        }
+
+        void mark(int label) {
+            labels[label] = code.size();
+        }
+
+        void end(int maxStack, int maxLocals) {
+            for (int[] branch : branches) {
+                int target = labels[branch[1]];
+                if (target < 0) throw new IllegalStateException("Unmarked label " + branch[1]);
+                code.putShort(target - branch[0], branch[0] + 1);
+            }
+
+            if (code.size() > 0xffff) {
+                throw new IllegalArgumentException("Method too large");
+            }
+
+            Bytes method = new Bytes();
+            method.putShort(access);
+            method.putShort(name);
+            method.putShort(descriptor);
+            method.putShort(1);
+
+            method.putShort(utf8("Code"));
+            method.putWord(12 + code.size());
+            method.putShort(maxStack);
+            method.putShort(maxLocals);
+            method.putWord(code.size());
+            method.putBytes(code);
+            method.putShort(0);     // Exception table
+            method.putShort(0);     // Attributes
+
+            methods.add(method);
+        }
+    }
+
+    /**
+     * Growing big endian byte buffer
+     */
+    private static final class Bytes {
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void putByte(int x) {
+            if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+            buffer[size++] = (byte) x;
+        }
+
+        void putShort(int x) {
+            putByte(x >> 8);
+            putByte(x);
+        }
+
+        void putShort(int x, int address) {
+            buffer[address] = (byte) (x >> 8);
+            buffer[address + 1] = (byte) x;
+        }
+
+        void putWord(int x) {
+            putShort(x >> 16);
+            putShort(x);
+        }
+
+        void putUtf(String s) {
+            // Names and descriptors here are plain ASCII
+            putShort(s.length());
+            for (int i = 0; i < s.length(); i++) putByte(s.charAt(i));
+        }
+
+        void putBytes(Bytes bytes) {
+            for (int i = 0; i < bytes.size; i++) putByte(bytes.buffer[i]);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package vm;
+
+import codegen.Error;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import vm.ClosureNode.*;
+
+/**
+ * Functions compiled into trees of nodes when a program first runs with Engine.CLOSURE.
+ * Nothing is decoded while running: a function is a graph of blocks, a block runs its statements
+ * and its jump picks the next block, and every node holds its operands in final fields.
+ *
+ * Values the stack code keeps on the expression stack become expression trees, as in RegisterCode
+ * they only go to a slot of the frame when something needs them there: where blocks meet, and before
+ * any statement, so they are taken in the order the stack code takes them. Allocations and calls
+ * are statements and their values go to slots, the collector sees the frames and nothing else.
+ */
+final class ClosureCode {
+    final Function main;
+
+    private ClosureCode(Function main) {
+        this.main = main;
+    }
+
+    static ClosureCode compile(DecodedCode decoded) {
+        return new Compiler(decoded, FunctionInfo.analyze(decoded)).compile();
+    }
+
+    /**
+     * Runs main in a frame at the top of the frame stack
+     */
+    void execute(MijaVM vm) {
+        main.run(vm, main.reserve(vm));
+    }
+
+    static final class Block {
+        Stmt[] body;
+        Jump jump;
+    }
+
+    /**
+     * Frame: parameters, locals, expression stack slots, then the word the return value goes through
+     */
+    static final class Function {
+        final int address;      // Of ENTER in the object file
+        final int params;
+        final int frameSize;
+        final int result;
+        Block entry;
+
+        Function(int address, int params, int frameSize) {
+            this.address = address;
+            this.params = params;
+            this.frameSize = frameSize;
+            this.result = frameSize - 1;
+        }
+
+        /**
+         * Pushes a frame, the caller puts the arguments in
+         *
+         * @return base pointer of the frame
+         */
+        int reserve(MijaVM vm) {
+            int frame = vm.fsp;
+            int top = frame + frameSize;
+            vm.called(frame, vm.esp);
+
+            if (top > vm.fstack.length) {
+                try {
+                    vm.growFrameStack(top);
+                } catch (VMException e) {
+                    throw e.at(address, "enter");
+                }
+            }
+
+            Arrays.fill(vm.fstack, frame + params, top, 0);
+            vm.fsp = top;
+            return frame;
+        }
+
+        /**
+         * Runs the function in the frame at bp and pops it
+         */
+        int run(MijaVM vm, int bp) {
+            Block block = entry;
+
+            try {
+                do {
+                    for (Stmt statement : block.body) statement.exec(vm, bp);
+                    block = block.jump.next(vm, bp);
+                } while (block != null);
+            } catch (StackOverflowError e) {
+                // Calls are calls on the JVM stack
+                throw new VMException(Error.STACK_OVERFLOW, "Frame stack overflow").at(address, "enter");
+            }
+
+            vm.fsp = bp;
+            return vm.fstack[bp + result];
+        }
+    }
+
+    private static final class Compiler {
+        private final DecodedCode decoded;
+        private final FunctionInfo[] infos;
+        private final Map<Integer, Function> functions = new HashMap<>();     // By decoded index of ENTER
+
+        private FunctionInfo function;
+        private int slotBase;                   // Local of the first stack slot
+        private Map<Integer, Block> blocks;     // By decoded index of their first instruction
+        private Block block;                    // Being compiled
+        private ArrayList<Stmt> body;
+
+        private Expr[] stack;
+        private int depth;
+
+        Compiler(DecodedCode decoded, FunctionInfo[] infos) {
+            this.decoded = decoded;
+            this.infos = infos;
+        }
+
+        ClosureCode compile() {
+            for (FunctionInfo f : infos) {
+                int frameSize = f.params + f.locals + f.maxDepth() + 1;
+                functions.put(f.start, new Function(decoded.sourceAddress[f.start], f.params, frameSize));
+            }
+
+            int[] code = decoded.code;
+            boolean[] leader = new boolean[code.length + 1];
+
+            for (int i = 0; i < code.length; i += Op.size(code[i])) {
+                if (Op.isJump(code[i])) leader[code[i + 1]] = true;
+                if (Op.isJump(code[i]) || Op.endsFlow(code[i])) leader[i + Op.size(code[i])] = true;
+            }
+
+            for (FunctionInfo f : infos) {
+                function = f;
+                slotBase = f.params + f.locals;
+                blocks = new HashMap<>();
+                stack = new Expr[f.maxDepth() + 1];
+
+                boolean flowing = false;
+
+                for (int i = f.start; i < f.end; i += Op.size(code[i])) {
+                    if (!f.isReachable(i)) {
+                        flowing = false;
+                        continue;
+                    }
+
+                    if (flowing && leader[i]) {
+                        end(goTo(i));
+                    }
+
+                    if (!flowing || leader[i]) {
+                        body = new ArrayList<>();
+                        depth = f.depthAt(i);
+                        for (int k = 0; k < depth; k++) stack[k] = new Local(slot(k));
+
+                        block = block(i);
+                        if (i == f.start) functions.get(f.start).entry = block;
+                    }
+
+                    instruction(code, i);
+                    flowing = !Op.isJump(code[i]) && !Op.endsFlow(code[i]);
+                }
+            }
+
+            return new ClosureCode(functions.get(decoded.entry));
+        }
+
+        private void instruction(int[] code, int i) {
+            int op = code[i];
+            int operand = Op.size(op) > 1 ? code[i + 1] : 0;
+            int address = decoded.sourceAddress[i];
+            String name = Op.name(op);
+
+            switch (op) {
+                case Op.NOP:
+                case Op.ENTER:
+                case Op.EXIT:   // The frame goes with the return
+                    break;
+
+                case Op.CONST:          push(new Const(operand)); break;
+                case Op.LOAD:           push(new Local(operand)); break;
+                case Op.LOAD_GLOBAL:    push(new Global(operand)); break;
+
+                case Op.STORE:
+                    statement(1);
+                    body.add(new Store(operand, pop()));
+                    break;
+
+                case Op.STORE_GLOBAL:
+                    statement(1);
+                    body.add(new StoreGlobal(operand, pop()));
+                    break;
+
+                case Op.INC:
+                    statement(0);
+                    body.add(new Inc(operand, code[i + 2]));
+                    break;
+
+                case Op.LOAD_FIELD:
+                    push(new LoadField(pop(), operand, address, name));
+                    break;
+
+                case Op.LOAD_FIELD_LOCAL:
+                    push(new LoadField(new Local(operand), code[i + 2], address, name));
+                    break;
+
+                case Op.STORE_FIELD: {
+                    statement(2);
+                    Expr value = pop();
+                    body.add(new StoreField(pop(), operand, value, address, name));
+                    break;
+                }
+
+                case Op.NEW:
+                    statement(0);
+                    body.add(new New(slot(depth), operand, address, address, name));
+                    push(new Local(slot(depth)));
+                    break;
+
+                case Op.NEW_ARRAY:
+                    statement(1);
+                    body.add(new NewArray(slot(depth - 1), pop(), operand, address, address, name));
+                    push(new Local(slot(depth)));
+                    break;
+
+                case Op.LOAD_STRING:
+                    statement(0);
+                    body.add(new LoadString(slot(depth), decoded.strings[operand], decoded.stringLengths[operand], address, name));
+                    push(new Local(slot(depth)));
+                    break;
+
+                case Op.ARRAY_LOAD:
+                case Op.BARRAY_LOAD: {
+                    Expr index = pop();
+                    push(new ArrayLoad(pop(), index, op == Op.BARRAY_LOAD, address, name));
+                    break;
+                }
+
+                case Op.ARRAY_STORE:
+                case Op.BARRAY_STORE: {
+                    statement(3);
+                    Expr value = pop();
+                    Expr index = pop();
+                    body.add(new ArrayStore(pop(), index, value, op == Op.BARRAY_STORE, address, name));
+                    break;
+                }
+
+                case Op.LENGTH:
+                    push(new Length(pop(), address, name));
+                    break;
+
+                case Op.ADD: { Expr right = pop(); push(new Add(pop(), right)); break; }
+                case Op.SUB: { Expr right = pop(); push(new Sub(pop(), right)); break; }
+                case Op.MUL: { Expr right = pop(); push(new Mul(pop(), right)); break; }
+                case Op.DIV: { Expr right = pop(); push(new Div(pop(), right, address, name)); break; }
+                case Op.REM: { Expr right = pop(); push(new Rem(pop(), right, address, name)); break; }
+                case Op.SHL: { Expr right = pop(); push(new Shl(pop(), right)); break; }
+                case Op.SHR: { Expr right = pop(); push(new Shr(pop(), right)); break; }
+                case Op.NEG: push(new Neg(pop())); break;
+
+                case Op.POP:
+                    statement(1);
+                    Expr value = pop();
+                    if (!isPure(value)) body.add(new Discard(value));
+                    break;
+
+                case Op.DUP:
+                    statement(0);
+                    push(stack[depth - 1]);
+                    break;
+
+                case Op.DUP2:
+                    statement(0);
+                    push(stack[depth - 2]);
+                    push(stack[depth - 2]);
+                    break;
+
+                case Op.READ:
+                case Op.BREAD:
+                    statement(0);
+                    body.add(new Read(slot(depth), op == Op.BREAD, address, name));
+                    push(new Local(slot(depth)));
+                    break;
+
+                case Op.RAND:
+                    statement(1);
+                    body.add(new Rand(slot(depth - 1), pop(), address, name));
+                    push(new Local(slot(depth)));
+                    break;
+
+                case Op.FREE:
+                    statement(1);
+                    body.add(new Free(pop(), address, name));
+                    break;
+
+                case Op.DUMP:
+                    statement(0);
+                    body.add(new Dump(address, name));
+                    break;
+
+                case Op.PRINT:
+                case Op.BPRINT:
+                case Op.PRINTS:
+                    statement(1);
+                    body.add(new Print(pop(), op, address, name));
+                    break;
+
+                case Op.CALL: {
+                    FunctionInfo callee = FunctionInfo.find(infos, operand);
+                    statement(callee.params);
+
+                    Expr[] arguments = new Expr[callee.params];
+                    for (int k = arguments.length - 1; k >= 0; k--) arguments[k] = pop();
+
+                    int slot = callee.returnsValue ? slot(depth) : -1;
+                    body.add(new Call(functions.get(callee.start), arguments, slot));
+                    if (callee.returnsValue) push(new Local(slot));
+                    break;
+                }
+
+                case Op.JMP:
+                    end(goTo(operand));
+                    break;
+
+                case Op.JEQ: case Op.JNE: case Op.JGT: case Op.JLE: case Op.JLT: case Op.JGE: {
+                    Expr right = pop();
+                    Expr left = pop();
+                    end(branch(left, right, op - Op.JEQ, operand, i + 2));
+                    break;
+                }
+
+                case Op.JZ:
+                case Op.JNZ:
+                    end(branch(pop(), new Const(0), op == Op.JZ ? Branch.EQ : Branch.NE, operand, i + 2));
+                    break;
+
+                case Op.JEQ_LC: case Op.JNE_LC: case Op.JGT_LC: case Op.JLE_LC: case Op.JLT_LC: case Op.JGE_LC:
+                    end(branch(new Local(code[i + 2]), new Const(code[i + 3]), op - Op.JEQ_LC, operand, i + 4));
+                    break;
+
+                case Op.RETURN:
+                    end(new Return(function.returnsValue ? pop() : null, functions.get(function.start).result));
+                    break;
+
+                case Op.TRAP:
+                    end(new Trap(operand, address, name));
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Cannot compile " + name);
+            }
+        }
+
+        private Branch branch(Expr left, Expr right, int condition, int target, int next) {
+            Branch branch = new Branch(left, right, condition);
+            branch.taken = block(target);
+            branch.notTaken = block(next);
+            return branch;
+        }
+
+        private Goto goTo(int target) {
+            Goto jump = new Goto();
+            jump.target = block(target);
+            return jump;
+        }
+
+        /**
+         * Ends the current block with the jump, values left on the stack go to their slots first
+         */
+        private void end(Jump jump) {
+            for (int k = 0; k < depth; k++) {
+                if (isSlot(stack[k], k)) continue;
+
+                body.add(new Store(slot(k), stack[k]));
+                stack[k] = new Local(slot(k));
+            }
+
+            block.body = body.toArray(new Stmt[0]);
+            block.jump = jump;
+        }
+
+        /**
+         * Before a statement taking operands values, the values under them go to their slots,
+         * so they are computed before what the statement does
+         */
+        private void statement(int operands) {
+            for (int k = 0; k < depth - operands; k++) {
+                if (stack[k] instanceof Const || stack[k] instanceof Local && ((Local) stack[k]).local >= slotBase) continue;
+
+                body.add(new Store(slot(k), stack[k]));
+                stack[k] = new Local(slot(k));
+            }
+        }
+
+        /**
+         * Constants and variables can be copied or dropped, anything else may fail and is computed once
+         */
+        private static boolean isPure(Expr value) {
+            return value instanceof Const || value instanceof Local;
+        }
+
+        private boolean isSlot(Expr value, int k) {
+            return value instanceof Local && ((Local) value).local == slot(k);
+        }
+
+        private Block block(int index) {
+            return blocks.computeIfAbsent(index, k -> new Block());
+        }
+
+        private int slot(int k) {
+            return slotBase + k;
+        }
+
+        private void push(Expr value) {
+            stack[depth++] = value;
+        }
+
+        private Expr pop() {
+            return stack[--depth];
+        }
+    }
+}
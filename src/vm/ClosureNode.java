@@ -0,0 +1,631 @@
+package vm;
+
+import codegen.Error;
+
+/**
+ * Nodes of closure code. Expressions compute a value from their children, statements change the frame or the VM,
+ * and jumps end a block and pick the next one. Frames are on the frame stack and bp is the first local.
+ * Nodes that can fail add their instruction to the error, the innermost one is kept.
+ */
+final class ClosureNode {
+    private ClosureNode() {}
+
+    abstract static class Expr {
+        abstract int eval(MijaVM vm, int bp);
+    }
+
+    abstract static class Stmt {
+        abstract void exec(MijaVM vm, int bp);
+    }
+
+    /**
+     * Ends a block
+     *
+     * @return next block, null when the function returns
+     */
+    abstract static class Jump {
+        abstract ClosureCode.Block next(MijaVM vm, int bp);
+    }
+
+    /* Expressions */
+
+    static final class Const extends Expr {
+        final int value;
+
+        Const(int value) { this.value = value; }
+
+        @Override int eval(MijaVM vm, int bp) { return value; }
+    }
+
+    /**
+     * Local or expression stack slot, slots come after the locals
+     */
+    static final class Local extends Expr {
+        final int local;
+
+        Local(int local) { this.local = local; }
+
+        @Override int eval(MijaVM vm, int bp) { return vm.fstack[bp + local]; }
+    }
+
+    static final class Global extends Expr {
+        final int global;
+
+        Global(int global) { this.global = global; }
+
+        @Override int eval(MijaVM vm, int bp) { return vm.globalData[global]; }
+    }
+
+    static final class Add extends Expr {
+        final Expr left, right;
+
+        Add(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        @Override int eval(MijaVM vm, int bp) { return left.eval(vm, bp) + right.eval(vm, bp); }
+    }
+
+    static final class Sub extends Expr {
+        final Expr left, right;
+
+        Sub(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        @Override int eval(MijaVM vm, int bp) { return left.eval(vm, bp) - right.eval(vm, bp); }
+    }
+
+    static final class Mul extends Expr {
+        final Expr left, right;
+
+        Mul(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        @Override int eval(MijaVM vm, int bp) { return left.eval(vm, bp) * right.eval(vm, bp); }
+    }
+
+    static final class Div extends Expr {
+        final Expr left, right;
+        final int address;
+        final String instruction;
+
+        Div(Expr left, Expr right, int address, String instruction) {
+            this.left = left;
+            this.right = right;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        int eval(MijaVM vm, int bp) {
+            int a = left.eval(vm, bp);
+            int b = right.eval(vm, bp);
+            if (b == 0) throw new VMException(Error.DIVISION_BY_ZERO).at(address, instruction);
+            return a / b;
+        }
+    }
+
+    static final class Rem extends Expr {
+        final Expr left, right;
+        final int address;
+        final String instruction;
+
+        Rem(Expr left, Expr right, int address, String instruction) {
+            this.left = left;
+            this.right = right;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        int eval(MijaVM vm, int bp) {
+            int a = left.eval(vm, bp);
+            int b = right.eval(vm, bp);
+            if (b == 0) throw new VMException(Error.DIVISION_BY_ZERO).at(address, instruction);
+            return a % b;
+        }
+    }
+
+    static final class Shl extends Expr {
+        final Expr left, right;
+
+        Shl(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        @Override int eval(MijaVM vm, int bp) { return left.eval(vm, bp) << right.eval(vm, bp); }
+    }
+
+    static final class Shr extends Expr {
+        final Expr left, right;
+
+        Shr(Expr left, Expr right) { this.left = left; this.right = right; }
+
+        @Override int eval(MijaVM vm, int bp) { return left.eval(vm, bp) >> right.eval(vm, bp); }
+    }
+
+    static final class Neg extends Expr {
+        final Expr value;
+
+        Neg(Expr value) { this.value = value; }
+
+        @Override int eval(MijaVM vm, int bp) { return -value.eval(vm, bp); }
+    }
+
+    static final class LoadField extends Expr {
+        final Expr object;
+        final int field;
+        final int address;
+        final String instruction;
+
+        LoadField(Expr object, int field, int address, String instruction) {
+            this.object = object;
+            this.field = field;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        int eval(MijaVM vm, int bp) {
+            int object = this.object.eval(vm, bp);
+
+            try {
+                return vm.loadField(object, field);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class ArrayLoad extends Expr {
+        final Expr array, index;
+        final boolean bytes;
+        final int address;
+        final String instruction;
+
+        ArrayLoad(Expr array, Expr index, boolean bytes, int address, String instruction) {
+            this.array = array;
+            this.index = index;
+            this.bytes = bytes;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        int eval(MijaVM vm, int bp) {
+            int array = this.array.eval(vm, bp);
+            int index = this.index.eval(vm, bp);
+
+            try {
+                return bytes ? vm.barrayLoad(array, index) : vm.arrayLoad(array, index);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class Length extends Expr {
+        final Expr array;
+        final int address;
+        final String instruction;
+
+        Length(Expr array, int address, String instruction) {
+            this.array = array;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        int eval(MijaVM vm, int bp) {
+            int array = this.array.eval(vm, bp);
+
+            try {
+                return vm.length(array);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    /* Statements */
+
+    static final class Store extends Stmt {
+        final int local;
+        final Expr value;
+
+        Store(int local, Expr value) { this.local = local; this.value = value; }
+
+        @Override void exec(MijaVM vm, int bp) { vm.fstack[bp + local] = value.eval(vm, bp); }
+    }
+
+    static final class StoreGlobal extends Stmt {
+        final int global;
+        final Expr value;
+
+        StoreGlobal(int global, Expr value) { this.global = global; this.value = value; }
+
+        @Override void exec(MijaVM vm, int bp) { vm.globalData[global] = value.eval(vm, bp); }
+    }
+
+    static final class Inc extends Stmt {
+        final int local;
+        final int delta;
+
+        Inc(int local, int delta) { this.local = local; this.delta = delta; }
+
+        @Override void exec(MijaVM vm, int bp) { vm.fstack[bp + local] += delta; }
+    }
+
+    /**
+     * Evaluates a value nobody uses, for its errors
+     */
+    static final class Discard extends Stmt {
+        final Expr value;
+
+        Discard(Expr value) { this.value = value; }
+
+        @Override void exec(MijaVM vm, int bp) { value.eval(vm, bp); }
+    }
+
+    static final class StoreField extends Stmt {
+        final Expr object, value;
+        final int field;
+        final int address;
+        final String instruction;
+
+        StoreField(Expr object, int field, Expr value, int address, String instruction) {
+            this.object = object;
+            this.field = field;
+            this.value = value;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int object = this.object.eval(vm, bp);
+            int value = this.value.eval(vm, bp);
+
+            try {
+                vm.storeField(object, field, value);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class ArrayStore extends Stmt {
+        final Expr array, index, value;
+        final boolean bytes;
+        final int address;
+        final String instruction;
+
+        ArrayStore(Expr array, Expr index, Expr value, boolean bytes, int address, String instruction) {
+            this.array = array;
+            this.index = index;
+            this.value = value;
+            this.bytes = bytes;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int array = this.array.eval(vm, bp);
+            int index = this.index.eval(vm, bp);
+            int value = this.value.eval(vm, bp);
+
+            try {
+                if (bytes) vm.barrayStore(array, index, value); else vm.arrayStore(array, index, value);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    /**
+     * Allocations, input and the random generator put their value in a slot, so the collector sees it
+     * and it is taken in the order the program asked for it
+     */
+    static final class New extends Stmt {
+        final int slot;
+        final int fieldCount;
+        final int site;
+        final int address;
+        final String instruction;
+
+        New(int slot, int fieldCount, int site, int address, String instruction) {
+            this.slot = slot;
+            this.fieldCount = fieldCount;
+            this.site = site;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            try {
+                int object = vm.newStruct(fieldCount, site);
+                vm.fstack[bp + slot] = object;
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class NewArray extends Stmt {
+        final int slot;
+        final Expr length;
+        final int elementSize;
+        final int site;
+        final int address;
+        final String instruction;
+
+        NewArray(int slot, Expr length, int elementSize, int site, int address, String instruction) {
+            this.slot = slot;
+            this.length = length;
+            this.elementSize = elementSize;
+            this.site = site;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int length = this.length.eval(vm, bp);
+
+            try {
+                int array = vm.newArray(length, elementSize, site);
+                vm.fstack[bp + slot] = array;
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class LoadString extends Stmt {
+        final int slot;
+        final int[] words;
+        final int length;
+        final int address;
+        final String instruction;
+
+        LoadString(int slot, int[] words, int length, int address, String instruction) {
+            this.slot = slot;
+            this.words = words;
+            this.length = length;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            try {
+                int string = vm.newString(words, length, address);
+                vm.fstack[bp + slot] = string;
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class Read extends Stmt {
+        final int slot;
+        final boolean bytes;
+        final int address;
+        final String instruction;
+
+        Read(int slot, boolean bytes, int address, String instruction) {
+            this.slot = slot;
+            this.bytes = bytes;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            try {
+                int value = bytes ? vm.in().nextByte() : vm.in().nextInt();
+                vm.fstack[bp + slot] = value;
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class Rand extends Stmt {
+        final int slot;
+        final Expr bound;
+        final int address;
+        final String instruction;
+
+        Rand(int slot, Expr bound, int address, String instruction) {
+            this.slot = slot;
+            this.bound = bound;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int bound = this.bound.eval(vm, bp);
+
+            try {
+                vm.fstack[bp + slot] = vm.random(bound);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class Print extends Stmt {
+        final Expr value;
+        final int kind;     // Op.PRINT, Op.BPRINT or Op.PRINTS
+        final int address;
+        final String instruction;
+
+        Print(Expr value, int kind, int address, String instruction) {
+            this.value = value;
+            this.kind = kind;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int value = this.value.eval(vm, bp);
+
+            try {
+                if (kind == Op.PRINT) vm.out.print(value);
+                else if (kind == Op.BPRINT) vm.out.print((char) value);
+                else vm.printString(value);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class Free extends Stmt {
+        final Expr reference;
+        final int address;
+        final String instruction;
+
+        Free(Expr reference, int address, String instruction) {
+            this.reference = reference;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int reference = this.reference.eval(vm, bp);
+
+            try {
+                vm.heap.free(reference);
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    static final class Dump extends Stmt {
+        final int address;
+        final String instruction;
+
+        Dump(int address, String instruction) {
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            try {
+                vm.dumpHeap();
+            } catch (VMException e) {
+                throw e.at(address, instruction);
+            }
+        }
+    }
+
+    /**
+     * Arguments go straight into the frame of the callee, its value into a slot of the caller
+     */
+    static final class Call extends Stmt {
+        final ClosureCode.Function callee;
+        final Expr[] arguments;
+        final int slot;     // -1 if there is no value
+
+        Call(ClosureCode.Function callee, Expr[] arguments, int slot) {
+            this.callee = callee;
+            this.arguments = arguments;
+            this.slot = slot;
+        }
+
+        @Override
+        void exec(MijaVM vm, int bp) {
+            int frame = callee.reserve(vm);
+            int[] fstack = vm.fstack;
+
+            for (int i = 0; i < arguments.length; i++) {
+                fstack[frame + i] = arguments[i].eval(vm, bp);
+            }
+
+            int value = callee.run(vm, frame);
+            if (slot >= 0) vm.fstack[bp + slot] = value;
+        }
+    }
+
+    /* Jumps */
+
+    static final class Goto extends Jump {
+        ClosureCode.Block target;
+
+        @Override ClosureCode.Block next(MijaVM vm, int bp) { return target; }
+    }
+
+    /**
+     * Compares two values, conditions are in the order of Op.JEQ to Op.JGE
+     */
+    static final class Branch extends Jump {
+        static final int EQ = 0, NE = 1, GT = 2, LE = 3, LT = 4, GE = 5;
+
+        final Expr left, right;
+        final int condition;
+        ClosureCode.Block taken, notTaken;
+
+        Branch(Expr left, Expr right, int condition) {
+            this.left = left;
+            this.right = right;
+            this.condition = condition;
+        }
+
+        @Override
+        ClosureCode.Block next(MijaVM vm, int bp) {
+            int left = this.left.eval(vm, bp);
+            int right = this.right.eval(vm, bp);
+            boolean jump;
+
+            switch (condition) {
+                case EQ: jump = left == right; break;
+                case NE: jump = left != right; break;
+                case GT: jump = left >  right; break;
+                case LE: jump = left <= right; break;
+                case LT: jump = left <  right; break;
+                default: jump = left >= right; break;
+            }
+
+            return jump ? taken : notTaken;
+        }
+    }
+
+    /**
+     * The value goes to the last word of the frame, the caller takes it from there
+     */
+    static final class Return extends Jump {
+        final Expr value;   // Null for void functions
+        final int result;
+
+        Return(Expr value, int result) { this.value = value; this.result = result; }
+
+        @Override
+        ClosureCode.Block next(MijaVM vm, int bp) {
+            if (value != null) {
+                int v = value.eval(vm, bp);
+                vm.fstack[bp + result] = v;
+            }
+
+            return null;
+        }
+    }
+
+    static final class Trap extends Jump {
+        final int error;
+        final int address;
+        final String instruction;
+
+        Trap(int error, int address, String instruction) {
+            this.error = error;
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        @Override
+        ClosureCode.Block next(MijaVM vm, int bp) {
+            throw new VMException(Error.values()[error]).at(address, instruction);
+        }
+    }
+}
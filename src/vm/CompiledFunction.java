@@ -0,0 +1,59 @@
+package vm;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Entry points of a function compiled by JitCompiler
+ */
+final class CompiledFunction {
+    final int params;
+    final boolean returnsValue;
+    final MethodHandle run;                 // (MijaVM, int...) int, void functions return 0
+
+    private final MethodHandle bridge;      // (MijaVM, int[] estack, int sp) int, arguments from the expression stack
+    private final int[] headers;            // Loops the interpreter can leave for compiled code
+    private final MethodHandle[] loops;     // (MijaVM, int[] fstack, int bp) int, one per header
+
+    CompiledFunction(FunctionInfo function, MethodHandle run, MethodHandle bridge, int[] headers, MethodHandle[] loops) {
+        this.params = function.params;
+        this.returnsValue = function.returnsValue;
+        this.run = run;
+        this.bridge = bridge;
+        this.headers = headers;
+        this.loops = loops;
+    }
+
+    int[] loopHeaders() {
+        return headers.clone();
+    }
+
+    /**
+     * Calls the function with arguments at estack[sp] and up
+     */
+    int invoke(MijaVM vm, int[] estack, int sp) {
+        try {
+            return (int) bridge.invokeExact(vm, estack, sp);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Continues an interpreted call of the function at a loop header, taking its locals from the frame at bp.
+     * Returns what the function returns, its frame is left for the interpreter to remove.
+     */
+    int enterLoop(int header, MijaVM vm, int[] fstack, int bp) {
+        int i = 0;
+        while (headers[i] != header) i++;
+
+        try {
+            return (int) loops[i].invokeExact(vm, fstack, bp);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
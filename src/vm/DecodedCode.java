@@ -0,0 +1,254 @@
+package vm;
+
+import codegen.Instruction;
+
+import java.util.Arrays;
+
+/**
+ * Program code decoded once at load time, so the interpreter never rebuilds
+ * operands from bytes and never resolves relative jumps while running.
+ */
+final class DecodedCode {
+    final int[] code;
+    final int[] sourceAddress;  // Decoded index -> address of the instruction in the object file
+    final int[][] strings;      // String literals packed into words, indexed by LOAD_STRING
+    final int[] stringLengths;
+    final int entry;
+
+    private DecodedCode(int[] code, int[] sourceAddress, int[][] strings, int[] stringLengths, int entry) {
+        this.code = code;
+        this.sourceAddress = sourceAddress;
+        this.strings = strings;
+        this.stringLengths = stringLengths;
+        this.entry = entry;
+    }
+
+    /**
+     * Decodes instructions in [start, end) of codeData, main is the address of the entry point
+     */
+    static DecodedCode decode(byte[] codeData, int start, int end, int main) {
+        var instructions = Instruction.values();
+
+        /* First pass finds instruction boundaries and where each one lands in decoded code */
+        int[] index = new int[end + 1];
+        Arrays.fill(index, -1);
+
+        int size = 0;
+        int stringCount = 0;
+        int address = start;
+
+        while (address < end) {
+            int ordinal = codeData[address] & 0xff;
+            if (ordinal >= instructions.length) {
+                throw new IllegalArgumentException("Illegal instruction at " + address);
+            }
+
+            Instruction instruction = instructions[ordinal];
+            index[address] = size;
+            size += Op.size(translate(codeData, instruction, address));
+
+            if (instruction == Instruction.LOAD_STRING) stringCount++;
+            address += length(codeData, address, instruction);
+        }
+
+        if (address != end) {
+            throw new IllegalArgumentException("Instruction crosses the end of code at " + end);
+        }
+
+        index[end] = size;
+
+        /* Second pass emits operands and resolves jumps */
+        int[] code = new int[size];
+        int[] sourceAddress = new int[size];
+        int[][] strings = new int[stringCount][];
+        int[] stringLengths = new int[stringCount];
+
+        int i = 0;
+        stringCount = 0;
+        address = start;
+
+        while (address < end) {
+            Instruction instruction = instructions[codeData[address] & 0xff];
+            int op = translate(codeData, instruction, address);
+
+            sourceAddress[i] = address;
+            code[i] = op;
+
+            switch (instruction) {
+                case CONST:
+                    code[i + 1] = getWord(codeData, address + 1);
+                    break;
+
+                case CONST_M1: case CONST_0: case CONST_1: case CONST_2: case CONST_3: case CONST_4: case CONST_5:
+                    code[i + 1] = instruction.ordinal() - Instruction.CONST_0.ordinal();
+                    break;
+
+                case LOAD_0: case LOAD_1: case LOAD_2: case LOAD_3: case LOAD_4: case LOAD_5:
+                    code[i + 1] = instruction.ordinal() - Instruction.LOAD_0.ordinal();
+                    break;
+
+                case STORE_0: case STORE_1: case STORE_2: case STORE_3: case STORE_4: case STORE_5:
+                    code[i + 1] = instruction.ordinal() - Instruction.STORE_0.ordinal();
+                    break;
+
+                case LOAD: case STORE: case LOAD_FIELD: case STORE_FIELD: case NEW: case NEW_ARRAY: case TRAP:
+                    code[i + 1] = codeData[address + 1] & 0xff;
+                    break;
+
+                case INC: case LOAD_FIELD_LOCAL:
+                    code[i + 1] = codeData[address + 1] & 0xff;
+                    code[i + 2] = instruction == Instruction.INC ? codeData[address + 2] : codeData[address + 2] & 0xff;
+                    break;
+
+                case JCMP_LOCAL:
+                    code[i + 1] = target(index, address, address + getShort(codeData, address + 1));
+                    code[i + 2] = codeData[address + 3] & 0xff;
+                    code[i + 3] = getWord(codeData, address + 5);
+                    break;
+
+                case LOAD_GLOBAL: case STORE_GLOBAL:
+                    code[i + 1] = getShort(codeData, address + 1);
+                    break;
+
+                case JMP: case JEQ: case JNE: case JGT: case JLE: case JLT: case JGE: case JZ: case JNZ:
+                    code[i + 1] = target(index, address, address + getShort(codeData, address + 1));
+                    break;
+
+                case CALL:
+                    code[i + 1] = target(index, address, getShort(codeData, address + 1));
+                    break;
+
+                case ENTER:
+                    code[i + 1] = codeData[address + 1] & 0xff;
+                    code[i + 2] = codeData[address + 2] & 0xff;
+                    break;
+
+                case LOAD_STRING:
+                    int length = getWord(codeData, address + 1);
+                    strings[stringCount] = packString(codeData, address + 5, length);
+                    stringLengths[stringCount] = length;
+                    code[i + 1] = stringCount++;
+                    break;
+            }
+
+            i += Op.size(op);
+            address += length(codeData, address, instruction);
+        }
+
+        if (main < start || main >= end || index[main] < 0) {
+            throw new IllegalArgumentException("Illegal entry point " + main);
+        }
+
+        return new DecodedCode(code, sourceAddress, strings, stringLengths, index[main]);
+    }
+
+    private static int translate(byte[] codeData, Instruction instruction, int address) {
+        switch (instruction) {
+            case NOP:           return Op.NOP;
+            case CONST: case CONST_M1: case CONST_0: case CONST_1: case CONST_2: case CONST_3: case CONST_4: case CONST_5:
+                                return Op.CONST;
+            case LOAD: case LOAD_0: case LOAD_1: case LOAD_2: case LOAD_3: case LOAD_4: case LOAD_5:
+                                return Op.LOAD;
+            case STORE: case STORE_0: case STORE_1: case STORE_2: case STORE_3: case STORE_4: case STORE_5:
+                                return Op.STORE;
+            case LOAD_GLOBAL:   return Op.LOAD_GLOBAL;
+            case STORE_GLOBAL:  return Op.STORE_GLOBAL;
+            case LOAD_FIELD:    return Op.LOAD_FIELD;
+            case STORE_FIELD:   return Op.STORE_FIELD;
+            case NEW:           return Op.NEW;
+            case NEW_ARRAY:     return Op.NEW_ARRAY;
+            case ARRAY_LOAD:    return Op.ARRAY_LOAD;
+            case ARRAY_STORE:   return Op.ARRAY_STORE;
+            case BARRAY_LOAD:   return Op.BARRAY_LOAD;
+            case BARRAY_STORE:  return Op.BARRAY_STORE;
+            case LENGTH:        return Op.LENGTH;
+            case LOAD_STRING:   return Op.LOAD_STRING;
+            case ADD:           return Op.ADD;
+            case SUB:           return Op.SUB;
+            case MUL:           return Op.MUL;
+            case DIV:           return Op.DIV;
+            case REM:           return Op.REM;
+            case NEG:           return Op.NEG;
+            case SHL:           return Op.SHL;
+            case SHR:           return Op.SHR;
+            case POP:           return Op.POP;
+            case JMP:           return Op.JMP;
+            case JEQ:           return Op.JEQ;
+            case JNE:           return Op.JNE;
+            case JGT:           return Op.JGT;
+            case JLE:           return Op.JLE;
+            case JLT:           return Op.JLT;
+            case JGE:           return Op.JGE;
+            case CALL:          return Op.CALL;
+            case RETURN:        return Op.RETURN;
+            case ENTER:         return Op.ENTER;
+            case EXIT:          return Op.EXIT;
+            case READ:          return Op.READ;
+            case PRINT:         return Op.PRINT;
+            case BREAD:         return Op.BREAD;
+            case BPRINT:        return Op.BPRINT;
+            case PRINTS:        return Op.PRINTS;
+            case RAND:          return Op.RAND;
+            case TRAP:          return Op.TRAP;
+            case INC:           return Op.INC;
+            case DUP:           return Op.DUP;
+            case DUP2:          return Op.DUP2;
+            case JZ:            return Op.JZ;
+            case JNZ:           return Op.JNZ;
+            case LOAD_FIELD_LOCAL: return Op.LOAD_FIELD_LOCAL;
+            case FREE:          return Op.FREE;
+            case DUMP:          return Op.DUMP;
+
+            case JCMP_LOCAL:
+                int condition = address + 4 < codeData.length ? codeData[address + 4] : -1;
+                if (condition < 0 || condition > Op.JGE - Op.JEQ) {
+                    throw new IllegalArgumentException("Illegal jump condition " + condition + " at " + address);
+                }
+
+                return Op.JEQ_LC + condition;
+
+            default:
+                throw new IllegalArgumentException("Unsupported instruction " + instruction.niceName + " at " + address);
+        }
+    }
+
+    /**
+     * Length of the instruction in bytes, string literals are followed by their bytes and a '\0'
+     */
+    private static int length(byte[] codeData, int address, Instruction instruction) {
+        if (instruction == Instruction.LOAD_STRING) {
+            return instruction.size + getWord(codeData, address + 1) + 1;
+        }
+
+        return instruction.size;
+    }
+
+    private static int target(int[] index, int address, int targetAddress) {
+        if (targetAddress < 0 || targetAddress >= index.length || index[targetAddress] < 0) {
+            throw new IllegalArgumentException("Illegal jump target " + targetAddress + " at " + address);
+        }
+
+        return index[targetAddress];
+    }
+
+    /**
+     * Packs characters 4 per word, first character in the highest byte, same as char arrays on the heap
+     */
+    static int[] packString(byte[] codeData, int address, int length) {
+        int[] words = new int[(length + 3) / 4];
+
+        for (int i = 0; i < length; i++) {
+            words[i / 4] |= (codeData[address + i] & 0xff) << (8 * (3 - i % 4));
+        }
+
+        return words;
+    }
+
+    static int getShort(byte[] codeData, int address) {
+        return (short) ((codeData[address] << 8) | (codeData[address + 1] & 0xff));
+    }
+
+    static int getWord(byte[] codeData, int address) {
+        return (getShort(codeData, address) << 16) | (getShort(codeData, address + 2) & 0xffff);
+    }
+}
@@ -0,0 +1,10 @@
+package vm;
+
+public enum Engine {
+    SWITCH,     // Decodes bytes of the object file while running
+    DECODED,    // Runs code decoded at load time
+    REGISTER,   // Runs register code translated from decoded code
+    JIT,        // Runs decoded code and compiles hot functions to JVM bytecode
+    CLOSURE,    // Runs functions compiled into trees of nodes before the program starts
+    PROFILE     // Runs like SWITCH, counting what runs, and reports it when the program stops
+}
@@ -0,0 +1,194 @@
+package vm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A function of decoded code, from its ENTER to the next one, with the
+ * expression stack depth before each of its instructions.
+ */
+final class FunctionInfo {
+    final int start;                // Index of ENTER
+    final int end;                  // First index after the function
+    final int params;
+    final int locals;
+    final boolean returnsValue;     // Non void functions end with a trap for a missing return
+
+    private int[] depth;            // Before each instruction, -1 where unreachable
+    private int maxDepth;
+    private boolean valid;
+
+    private FunctionInfo(int start, int end, int params, int locals, boolean returnsValue) {
+        this.start = start;
+        this.end = end;
+        this.params = params;
+        this.locals = locals;
+        this.returnsValue = returnsValue;
+    }
+
+    int depthAt(int index) {
+        return depth[index - start];
+    }
+
+    boolean isReachable(int index) {
+        return depth[index - start] >= 0;
+    }
+
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * False if analyzeEach found the stack depths of this function inconsistent
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Splits code into functions and follows every path through them to find stack depths.
+     * Depths have to agree where paths meet, that is what lets locals and stack slots become registers.
+     */
+    static FunctionInfo[] analyze(DecodedCode decoded) {
+        FunctionInfo[] functions = split(decoded);
+
+        for (FunctionInfo function : functions) {
+            function.computeDepths(decoded, functions);
+        }
+
+        return functions;
+    }
+
+    /**
+     * Same as analyze, but a function that fails the analysis is only marked as not valid
+     */
+    static FunctionInfo[] analyzeEach(DecodedCode decoded) {
+        FunctionInfo[] functions = split(decoded);
+
+        for (FunctionInfo function : functions) {
+            try {
+                function.computeDepths(decoded, functions);
+            } catch (IllegalArgumentException e) {
+                function.depth = null;
+                function.valid = false;
+            }
+        }
+
+        return functions;
+    }
+
+    private static FunctionInfo[] split(DecodedCode decoded) {
+        int[] code = decoded.code;
+        ArrayList<FunctionInfo> functions = new ArrayList<>();
+
+        int i = 0;
+        int start = -1;
+        int last = -1;
+
+        while (i < code.length) {
+            if (code[i] == Op.ENTER) {
+                if (start >= 0) functions.add(header(code, start, i, last));
+                start = i;
+            } else if (start < 0) {
+                throw new IllegalArgumentException("Code outside of a function at " + decoded.sourceAddress[i]);
+            }
+
+            last = i;
+            i += Op.size(code[i]);
+        }
+
+        if (start >= 0) functions.add(header(code, start, code.length, last));
+
+        return functions.toArray(new FunctionInfo[0]);
+    }
+
+    /**
+     * Function whose code contains the index, functions are sorted by start
+     */
+    static FunctionInfo find(FunctionInfo[] functions, int index) {
+        int low = 0;
+        int high = functions.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            FunctionInfo function = functions[middle];
+
+            if (index < function.start) high = middle - 1;
+            else if (index >= function.end) low = middle + 1;
+            else return function;
+        }
+
+        return null;
+    }
+
+    private static FunctionInfo header(int[] code, int start, int end, int last) {
+        return new FunctionInfo(start, end, code[start + 1], code[start + 2], code[last] == Op.TRAP);
+    }
+
+    private void computeDepths(DecodedCode decoded, FunctionInfo[] functions) {
+        int[] code = decoded.code;
+
+        depth = new int[end - start];
+        Arrays.fill(depth, -1);
+
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        depth[0] = 0;
+        work.push(start);
+
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            int op = code[i];
+            int d = depth[i - start];
+
+            int pops = Op.pops(op);
+            int pushes = Op.pushes(op);
+
+            if (op == Op.CALL) {
+                FunctionInfo callee = find(functions, code[i + 1]);
+                if (callee == null || callee.start != code[i + 1]) {
+                    throw error(decoded, i, "Call to the middle of a function");
+                }
+
+                pops = callee.params;
+                pushes = callee.returnsValue ? 1 : 0;
+            } else if (op == Op.RETURN && d != (returnsValue ? 1 : 0)) {
+                throw error(decoded, i, "Return with " + d + " values on the stack");
+            }
+
+            if (d < pops) throw error(decoded, i, "Stack underflow");
+
+            int next = d - pops + pushes;
+            maxDepth = Math.max(maxDepth, next);
+
+            if (Op.isJump(op)) {
+                flow(decoded, work, i, code[i + 1], next);
+            }
+
+            if (!Op.endsFlow(op)) {
+                flow(decoded, work, i, i + Op.size(op), next);
+            }
+        }
+
+        valid = true;
+    }
+
+    private void flow(DecodedCode decoded, ArrayDeque<Integer> work, int from, int to, int d) {
+        if (to < start || to >= end) {
+            throw error(decoded, from, "Jump out of the function");
+        }
+
+        int known = depth[to - start];
+
+        if (known < 0) {
+            depth[to - start] = d;
+            work.push(to);
+        } else if (known != d) {
+            throw error(decoded, from, "Stack depths " + known + " and " + d + " meet");
+        }
+    }
+
+    private static IllegalArgumentException error(DecodedCode decoded, int index, String message) {
+        return new IllegalArgumentException(message + " at " + decoded.sourceAddress[index]);
+    }
+}
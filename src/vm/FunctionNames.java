@@ -0,0 +1,52 @@
+package vm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Function names the compiler writes after the reference maps, see codegen.NameMap for the format.
+ * Object files without them get NONE, then functions are named by their address.
+ */
+final class FunctionNames {
+    static final FunctionNames NONE = new FunctionNames(new HashMap<>());
+
+    private final Map<Integer, String> names;    // By address of ENTER
+
+    private FunctionNames(Map<Integer, String> names) {
+        this.names = names;
+    }
+
+    /**
+     * Reads the names at address, code is in [CODE_START_ADDRESS, codeEnd)
+     */
+    static FunctionNames read(byte[] data, int address, int codeEnd) {
+        if (address + 2 > data.length || data[address] != 'N' || data[address + 1] != 'M') {
+            return NONE;
+        }
+
+        try {
+            int i = address + 2;
+            int count = (data[i++] & 0xff) << 8 | data[i++] & 0xff;
+            Map<Integer, String> names = new HashMap<>();
+
+            for (; count > 0; count--) {
+                int function = (data[i++] & 0xff) << 8 | data[i++] & 0xff;
+                int length = data[i++] & 0xff;
+                if (function >= codeEnd || i + length > data.length) throw new IllegalArgumentException();
+
+                names.put(function, new String(data, i, length, StandardCharsets.UTF_8));
+                i += length;
+            }
+
+            return new FunctionNames(names);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Illegal name map");
+        }
+    }
+
+    String name(int function) {
+        String name = names.get(function);
+        return name != null ? name : String.format("function %03d", function);
+    }
+}
@@ -0,0 +1,424 @@
+package vm;
+
+import codegen.Error;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Heap of a VM, collected by mark and sweep when it fills up. It starts small and grows up to its limit
+ * when most of it is still live after a collection.
+ *
+ * Every block starts with a header: mark bit, kind, and for structs the field count and layout.
+ * A struct is [header][fields], its address is the first field.
+ * An array is [header][length][elements], its address is the first element.
+ * A free block is [header][next free block]. Blocks smaller than SIZE_CLASSES words are kept in a list for their size,
+ * the rest make a list sorted by address. Blocks freed by the program go to the same lists as blocks a sweep frees,
+ * so programs freeing what they allocate reuse the same blocks and do not need collections.
+ *
+ * Objects never move. The stacks are scanned conservatively up to their tops, a word there keeps an object alive
+ * if it is the address of one. Addresses start at BASE, far from the small numbers programs mostly keep there.
+ * Globals, fields and elements are scanned where the reference maps say they hold references,
+ * and everywhere when there are no maps.
+ */
+final class Heap {
+    /* Kinds of blocks */
+    static final int FREE = 1;
+    static final int STRUCT = 2;
+    static final int WORDS = 3;
+    static final int CHARS = 4;             // 4 elements in a word
+    static final int REFERENCES = 5;
+
+    private static final int MARK = 1 << 31;
+    private static final int KIND_SHIFT = 28;
+    private static final int SIZE_MASK = (1 << KIND_SHIFT) - 1;
+    private static final int FIELD_COUNT_MASK = 0xff;
+    private static final int LAYOUT_SHIFT = 8;
+    private static final int UNKNOWN_LAYOUT = SIZE_MASK >> LAYOUT_SHIFT;
+    private static final int MIN_BLOCK = 2;
+    private static final int INITIAL_SIZE = 1 << 12;
+    private static final int SIZE_CLASSES = 32;
+
+    static final int BASE = 1 << 30;        // Address of word 0
+    static final int MAX_SIZE = Integer.MAX_VALUE - BASE;
+
+    int[] words;                            // Replaced when the heap grows
+    private final int limit;
+    private final ReferenceMaps maps;
+    final AllocationSites sites;
+    private final MijaVM vm;                // Roots are its globals and stacks
+
+    private int top = 1;                    // Words from top up are zero and never allocated, 0 is null
+    private int free;                       // First free block of SIZE_CLASSES words or more, 0 if there is none
+    private final int[] classes = new int[SIZE_CLASSES];   // First free block of each smaller size
+    private int live;                       // Words in blocks the last collection kept
+    private int used;                       // Words in objects, garbage included
+    int collections;
+
+    private final BitSet starts = new BitSet();     // Block of every object, freed and collected ones are cleared
+    private int[] pending = new int[64];    // Marked blocks whose references are not marked yet
+    private int pendingCount;
+
+    Heap(int limit, ReferenceMaps maps, AllocationSites sites, MijaVM vm) {
+        this.words = new int[Math.min(limit, INITIAL_SIZE)];
+        this.limit = limit;
+        this.maps = maps;
+        this.sites = sites;
+        this.vm = vm;
+    }
+
+    void reset() {
+        Arrays.fill(words, 0, top, 0);
+        top = 1;
+        free = 0;
+        Arrays.fill(classes, 0);
+        used = 0;
+        collections = 0;
+        starts.clear();
+        sites.reset();
+    }
+
+    int used() {
+        return used;
+    }
+
+    /**
+     * Words below the untouched part, blocks are never taken from above it
+     */
+    int top() {
+        return top;
+    }
+
+    int capacity() {
+        return words.length;
+    }
+
+    /**
+     * Site is the address of the allocating instruction
+     */
+    int newStruct(int fieldCount, int layout, int site) {
+        boolean[] fields = maps.layout(layout);
+        if (fields == null || fields.length != fieldCount) layout = UNKNOWN_LAYOUT;
+
+        int size = Math.max(MIN_BLOCK, 1 + fieldCount);
+        int block = allocate(size);
+        words[block] = STRUCT << KIND_SHIFT | layout << LAYOUT_SHIFT | fieldCount;
+        sites.allocated(block, size, site);
+
+        return BASE + block + 1;
+    }
+
+    int newArray(int length, int kind, int site) {
+        long size = 2 + dataWords(length, kind);
+
+        if (size > limit) {
+            throw new VMException(Error.HEAP_OVERFLOW);
+        }
+
+        int block = allocate((int) size);
+        words[block] = kind << KIND_SHIFT;
+        words[block + 1] = length;
+        sites.allocated(block, (int) size, site);
+
+        return BASE + block + 2;
+    }
+
+    private static long dataWords(long length, int kind) {
+        return kind == CHARS ? (length + 3) / 4 : length;
+    }
+
+    /**
+     * Zeroed block of size words, collects the heap when there is no space left and grows it
+     * when the collection did not free at least half of it
+     */
+    private int allocate(int size) {
+        int block = take(size);
+
+        if (block == 0) {
+            collect();
+            if (live > words.length / 2) grow(0);
+            block = take(size);
+
+            if (block == 0) {
+                grow((long) top + size);
+                block = take(size);
+
+                if (block == 0) {
+                    throw new VMException(Error.HEAP_OVERFLOW);
+                }
+            }
+        }
+
+        used += size;
+        starts.set(block);
+        return block;
+    }
+
+    /**
+     * Doubles the heap, or makes it at least minimum words, up to the limit.
+     * New words are above top, so they are zero and not in the free list.
+     */
+    private void grow(long minimum) {
+        long size = Math.min(limit, Math.max(2L * words.length, minimum));
+
+        if (size > words.length) {
+            words = Arrays.copyOf(words, (int) size);
+        }
+    }
+
+    /**
+     * Block of the size from its size class, the untouched part, a bigger size class or the list of big blocks
+     */
+    private int take(int size) {
+        if (size < SIZE_CLASSES && classes[size] != 0) {
+            int block = classes[size];
+            classes[size] = words[block + 1];
+            Arrays.fill(words, block, block + size, 0);
+            return block;
+        }
+
+        if (top + size <= words.length) {
+            int block = top;
+            top += size;
+            return block;
+        }
+
+        for (int larger = size + MIN_BLOCK; larger < SIZE_CLASSES; larger++) {
+            int block = classes[larger];
+            if (block == 0) continue;
+
+            // The rest of the block goes to its own size class
+            classes[larger] = words[block + 1];
+            release(block + size, block + larger, 0);
+
+            Arrays.fill(words, block, block + size, 0);
+            return block;
+        }
+
+        // First fit, the rest of the free block stays where it was
+        int previous = 0;
+
+        for (int block = free; block != 0; previous = block, block = words[block + 1]) {
+            int available = words[block] & SIZE_MASK;
+            if (available < size) continue;
+
+            if (available - size >= MIN_BLOCK) {
+                words[block] = FREE << KIND_SHIFT | available - size;
+                block += available - size;
+            } else {
+                int next = words[block + 1];
+                if (previous == 0) free = next; else words[previous + 1] = next;
+
+                // A word too small for the list, the next sweep joins it with its neighbours
+                if (available > size) words[block + size] = FREE << KIND_SHIFT | 1;
+            }
+
+            Arrays.fill(words, block, block + size, 0);
+            return block;
+        }
+
+        return 0;
+    }
+
+    private int size(int block) {
+        int header = words[block];
+
+        switch (header >>> KIND_SHIFT & 7) {
+            case FREE:   return header & SIZE_MASK;
+            case STRUCT: return Math.max(MIN_BLOCK, 1 + (header & FIELD_COUNT_MASK));
+            default:     return (int) (2 + dataWords(words[block + 1], header >>> KIND_SHIFT & 7));
+        }
+    }
+
+    /**
+     * Frees the object at address for new objects of its size, null is ignored.
+     * References to it left in the program are not checked, they see whatever takes its place.
+     */
+    void free(int address) {
+        int index = address - BASE;
+        if (address == 0) return;
+
+        if (index < 2 || index - 1 >= top) {
+            throw new VMException(Error.RUNTIME, "Cannot free what is not an object");
+        }
+
+        int block;
+
+        if (starts.get(index - 1) && (words[index - 1] >>> KIND_SHIFT & 7) == STRUCT) {
+            block = index - 1;
+        } else if (index >= 3 && starts.get(index - 2) && (words[index - 2] >>> KIND_SHIFT & 7) > STRUCT) {
+            block = index - 2;
+        } else if ((words[index - 1] >>> KIND_SHIFT & 7) == FREE
+                || index >= 3 && (words[index - 2] >>> KIND_SHIFT & 7) == FREE) {
+            throw new VMException(Error.RUNTIME, "Cannot free an object twice");
+        } else {
+            throw new VMException(Error.RUNTIME, "Cannot free what is not an object");
+        }
+
+        int size = size(block);
+        starts.clear(block);
+        used -= size;
+        sites.released(block, size);
+        release(block, block + size, 0);
+    }
+
+    interface ObjectVisitor {
+        /**
+         * @param count      fields of a struct, elements of an array
+         * @param size       words of its block
+         * @param references which fields of a struct are references, null if any may be
+         * @param site       address of the instruction that allocated it, -1 unless sites are tracked
+         */
+        void object(int address, int kind, int count, int size, boolean[] references, int site) throws IOException;
+    }
+
+    /**
+     * Visits every object by address, garbage the next collection would free included.
+     * The words of an object start at its address.
+     */
+    void objects(ObjectVisitor visitor) throws IOException {
+        for (int block = 1; block < top; block += size(block)) {
+            int header = words[block];
+            int kind = header >>> KIND_SHIFT & 7;
+
+            if (kind == STRUCT) {
+                boolean[] layout = maps.layout((header & SIZE_MASK) >> LAYOUT_SHIFT);
+                visitor.object(BASE + block + 1, kind, header & FIELD_COUNT_MASK, size(block), layout, sites.site(block));
+            } else if (kind != FREE) {
+                visitor.object(BASE + block + 2, kind, words[block + 1], size(block), null, sites.site(block));
+            }
+        }
+    }
+
+    void collect() {
+        collections++;
+
+        int[] globals = vm.globalData;
+        for (int i = 0; i < globals.length; i++) {
+            if (maps.isReferenceGlobal(i)) mark(globals[i]);
+        }
+
+        for (int i = 0; i < vm.esp; i++) mark(vm.estack[i]);
+        for (int i = 0; i < vm.fsp; i++) mark(vm.fstack[i]);
+
+        while (pendingCount > 0) {
+            scan(pending[--pendingCount]);
+        }
+
+        sweep();
+    }
+
+    /**
+     * Marks the object at address, if there is one
+     */
+    private void mark(int address) {
+        int index = address - BASE;
+        int block;
+
+        if (index <= 1 || index >= top) {
+            return;
+        } else if (starts.get(index - 1) && (words[index - 1] >>> KIND_SHIFT & 7) == STRUCT) {
+            block = index - 1;
+        } else if (starts.get(index - 2) && (words[index - 2] >>> KIND_SHIFT & 7) > STRUCT) {
+            block = index - 2;
+        } else {
+            return;
+        }
+
+        if ((words[block] & MARK) != 0) return;
+        words[block] |= MARK;
+
+        if (pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount * 2);
+        pending[pendingCount++] = block;
+    }
+
+    private void scan(int block) {
+        int header = words[block];
+
+        switch (header >>> KIND_SHIFT & 7) {
+            case STRUCT:
+                int fieldCount = header & FIELD_COUNT_MASK;
+                boolean[] layout = maps.layout((header & SIZE_MASK) >> LAYOUT_SHIFT);
+
+                for (int i = 0; i < fieldCount; i++) {
+                    if (layout == null || layout[i]) mark(words[block + 1 + i]);
+                }
+                break;
+
+            case REFERENCES:
+                int length = words[block + 1];
+                for (int i = 0; i < length; i++) mark(words[block + 2 + i]);
+                break;
+        }
+    }
+
+    /**
+     * Frees unmarked blocks, joining neighbours, a free run at the end goes back to the untouched part
+     */
+    private void sweep() {
+        int last = 0;       // Last block in the free list
+        int run = 0;        // Start of the current run of free blocks, 0 outside of one
+
+        free = 0;
+        live = 0;
+        Arrays.fill(classes, 0);
+
+        for (int block = 1; block < top; ) {
+            int size = size(block);
+
+            if ((words[block] & MARK) != 0) {
+                words[block] &= ~MARK;
+                live += size;
+
+                if (run != 0) {
+                    last = release(run, block, last);
+                    run = 0;
+                }
+            } else {
+                if ((words[block] >>> KIND_SHIFT & 7) != FREE) sites.released(block, size);
+                starts.clear(block);
+                if (run == 0) run = block;
+            }
+
+            block += size;
+        }
+
+        if (run != 0) {
+            Arrays.fill(words, run, top, 0);
+            top = run;
+        }
+
+        used = live;
+    }
+
+    /**
+     * Makes [start, end) free blocks in front of the list of their size class,
+     * or after last in the list of big blocks, in front of it if last is 0
+     */
+    private int release(int start, int end, int last) {
+        while (start < end) {
+            int size = Math.min(end - start, SIZE_MASK);
+            words[start] = FREE << KIND_SHIFT | size;
+
+            if (size < MIN_BLOCK) {
+                // A word too small for a list, the next sweep joins it with its neighbours
+            } else if (size < SIZE_CLASSES) {
+                words[start + 1] = classes[size];
+                classes[size] = start;
+            } else if (last == 0) {
+                words[start + 1] = free;
+                free = start;
+                last = start;
+            } else {
+                words[start + 1] = words[last + 1];
+                words[last + 1] = start;
+                last = start;
+            }
+
+            start += size;
+        }
+
+        return last;
+    }
+}
@@ -0,0 +1,352 @@
+package vm;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Reads a heap dump and reports objects by type, what they retain and the largest arrays.
+ *
+ * References are found as the collector finds them: stack words and reference globals, fields and elements
+ * are references when they are the address of an object. The object an object is reached through on every path
+ * from the roots dominates it, and the retained size of an object is its words and the words of every object
+ * it dominates, what a collection would free without it.
+ * A type is its kind, structs are told apart by which of their fields are references.
+ */
+public final class HeapAnalyzer {
+    private static final int SHOWN_ARRAYS = 10;
+    private static final int PREVIEW = 24;          // Characters of char arrays shown
+
+    private final HeapDump dump;
+    private final int objects;
+    private final int root;                         // Stands for the roots, after the objects
+
+    /* References from each object, and from root, in CSR form */
+    private int[] firstReference;
+    private int[] references;
+
+    private final int[] order;                      // Reachable objects, root first, in reverse postorder
+    private final int[] idom;                       // Immediate dominator, -1 for unreachable objects
+    private final long[] retained;
+
+    private final List<String> typeNames = new ArrayList<>();
+    private final int[] types;
+
+    private HeapAnalyzer(HeapDump dump) {
+        this.dump = dump;
+        this.objects = dump.addresses.length;
+        this.root = objects;
+        this.types = new int[objects];
+        this.idom = new int[objects + 1];
+        this.retained = new long[objects + 1];
+
+        references();
+        order = reversePostorder();
+        dominators();
+
+        // Children come after their dominators in the order
+        for (int i = order.length - 1; i > 0; i--) {
+            int object = order[i];
+            retained[object] += dump.sizes[object];
+            retained[idom[object]] += retained[object];
+        }
+
+        Map<String, Integer> indices = new HashMap<>();
+        for (int object = 0; object < objects; object++) {
+            types[object] = indices.computeIfAbsent(typeName(object), name -> {
+                typeNames.add(name);
+                return typeNames.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Reports on the heap dump at path
+     */
+    public static void analyze(String path, PrintStream out) throws IOException {
+        new HeapAnalyzer(HeapDump.read(path)).report(out);
+    }
+
+    /**
+     * Object at address, -1 if there is none
+     */
+    private int object(int address) {
+        int object = Arrays.binarySearch(dump.addresses, address);
+        return object >= 0 ? object : -1;
+    }
+
+    private void references() {
+        List<Integer> roots = new ArrayList<>();
+
+        for (int i = 0; i < dump.globals.length; i++) {
+            if (dump.referenceGlobals[i]) roots.add(dump.globals[i]);
+        }
+        for (int word : dump.estack) roots.add(word);
+        for (int word : dump.fstack) roots.add(word);
+
+        firstReference = new int[objects + 2];
+        int[] found = new int[64];
+        int count = 0;
+
+        for (int object = 0; object <= objects; object++) {
+            firstReference[object] = count;
+
+            if (object == root) {
+                for (int address : roots) {
+                    int target = object(address);
+                    if (target < 0) continue;
+
+                    if (count == found.length) found = Arrays.copyOf(found, 2 * count);
+                    found[count++] = target;
+                }
+
+                continue;
+            }
+
+            byte kind = dump.kinds[object];
+            if (kind != Heap.STRUCT && kind != Heap.REFERENCES) continue;
+
+            for (int i = 0; i < dump.counts[object]; i++) {
+                if (kind == Heap.STRUCT && !dump.references[object][i]) continue;
+
+                int target = object(dump.word(object, i));
+                if (target < 0) continue;
+
+                if (count == found.length) found = Arrays.copyOf(found, 2 * count);
+                found[count++] = target;
+            }
+        }
+
+        firstReference[objects + 1] = count;
+        references = Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Depth first from root without recursion, heaps are deeper than the JVM stack
+     */
+    private int[] reversePostorder() {
+        int[] postorder = new int[objects + 1];
+        int finished = 0;
+
+        boolean[] visited = new boolean[objects + 1];
+        int[] stack = new int[objects + 1];
+        int[] next = new int[objects + 1];             // Next reference to follow of each object on the stack
+        int depth = 0;
+
+        stack[depth++] = root;
+        visited[root] = true;
+        next[root] = firstReference[root];
+
+        while (depth > 0) {
+            int object = stack[depth - 1];
+
+            if (next[object] < firstReference[object + 1]) {
+                int target = references[next[object]++];
+
+                if (!visited[target]) {
+                    visited[target] = true;
+                    next[target] = firstReference[target];
+                    stack[depth++] = target;
+                }
+            } else {
+                postorder[finished++] = object;
+                depth--;
+            }
+        }
+
+        int[] order = new int[finished];
+        for (int i = 0; i < finished; i++) order[i] = postorder[finished - 1 - i];
+        return order;
+    }
+
+    /**
+     * Iterative dominators of Cooper, Harvey and Kennedy, over the reverse postorder until nothing changes
+     */
+    private void dominators() {
+        int[] position = new int[objects + 1];          // In the order, -1 if unreachable
+        Arrays.fill(position, -1);
+        for (int i = 0; i < order.length; i++) position[order[i]] = i;
+
+        // Referrers of reachable objects
+        int[] firstReferrer = new int[objects + 2];
+        for (int object : order) {
+            for (int i = firstReference[object]; i < firstReference[object + 1]; i++) firstReferrer[references[i] + 1]++;
+        }
+        for (int i = 0; i <= objects; i++) firstReferrer[i + 1] += firstReferrer[i];
+
+        int[] referrers = new int[firstReferrer[objects + 1]];
+        int[] filled = Arrays.copyOf(firstReferrer, objects + 1);
+        for (int object : order) {
+            for (int i = firstReference[object]; i < firstReference[object + 1]; i++) referrers[filled[references[i]]++] = object;
+        }
+
+        Arrays.fill(idom, -1);
+        idom[root] = root;
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+
+            for (int i = 1; i < order.length; i++) {
+                int object = order[i];
+                int dominator = -1;
+
+                for (int j = firstReferrer[object]; j < firstReferrer[object + 1]; j++) {
+                    int referrer = referrers[j];
+                    if (idom[referrer] < 0) continue;
+
+                    dominator = dominator < 0 ? referrer : intersect(referrer, dominator, position);
+                }
+
+                if (idom[object] != dominator) {
+                    idom[object] = dominator;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private int intersect(int a, int b, int[] position) {
+        while (a != b) {
+            while (position[a] > position[b]) a = idom[a];
+            while (position[b] > position[a]) b = idom[b];
+        }
+
+        return a;
+    }
+
+    private String typeName(int object) {
+        switch (dump.kinds[object]) {
+            case Heap.WORDS:      return "int[]";
+            case Heap.CHARS:      return "char[]";
+            case Heap.REFERENCES: return "ref[]";
+        }
+
+        StringBuilder name = new StringBuilder("struct{");
+        boolean[] fields = dump.references[object];
+
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) name.append(',');
+            name.append(fields[i] ? "ref" : "int");
+        }
+
+        return name.append('}').toString();
+    }
+
+    /**
+     * Retained words of the instances of every type together, an instance dominated by another one is in its size
+     */
+    private long[] typeRetained() {
+        long[] sizes = new long[typeNames.size()];
+        int[] active = new int[typeNames.size()];          // Instances on the path from root
+
+        // Dominator tree, children of each object in CSR form
+        int[] firstChild = new int[objects + 2];
+        for (int i = 1; i < order.length; i++) firstChild[idom[order[i]] + 1]++;
+        for (int i = 0; i <= objects; i++) firstChild[i + 1] += firstChild[i];
+
+        int[] children = new int[order.length];
+        int[] filled = Arrays.copyOf(firstChild, objects + 1);
+        for (int i = 1; i < order.length; i++) children[filled[idom[order[i]]]++] = order[i];
+
+        int[] stack = new int[order.length];
+        int[] next = new int[objects + 1];
+        int depth = 0;
+
+        stack[depth++] = root;
+        next[root] = firstChild[root];
+
+        while (depth > 0) {
+            int object = stack[depth - 1];
+
+            if (next[object] < firstChild[object + 1]) {
+                int child = children[next[object]++];
+                int type = types[child];
+
+                if (active[type]++ == 0) sizes[type] += retained[child];
+
+                next[child] = firstChild[child];
+                stack[depth++] = child;
+            } else {
+                if (object != root) active[types[object]]--;
+                depth--;
+            }
+        }
+
+        return sizes;
+    }
+
+    private void report(PrintStream out) {
+        long words = Arrays.stream(dump.sizes).asLongStream().sum();
+        long reachableWords = Arrays.stream(order).skip(1).mapToLong(o -> dump.sizes[o]).sum();
+
+        out.printf("Heap dump: %,d objects in %,d words, %,d reachable in %,d words%n", objects, words, order.length - 1, reachableWords);
+        out.printf("Roots: %,d globals, %,d expression stack words, %,d frame stack words%n%n",
+                dump.globals.length, dump.estack.length, dump.fstack.length);
+
+        int[] counts = new int[typeNames.size()];
+        long[] shallow = new long[typeNames.size()];
+        for (int object = 0; object < objects; object++) {
+            counts[types[object]]++;
+            shallow[types[object]] += dump.sizes[object];
+        }
+
+        long[] typeRetained = typeRetained();
+
+        out.printf("%-32s %12s %14s %14s%n", "type", "objects", "words", "retained");
+        sorted(typeNames.size(), typeRetained, shallow).forEach(t -> out.printf("%-32s %,12d %,14d %,14d%n",
+                typeNames.get(t), counts[t], shallow[t], typeRetained[t]));
+
+        out.printf("%n%-12s %-10s %12s %14s %14s  %s%n", "address", "type", "length", "words", "retained", "site");
+        long[] sizes = Arrays.stream(dump.sizes).asLongStream().toArray();
+        sorted(objects, sizes, retained)
+                .filter(o -> dump.kinds[o] != Heap.STRUCT)
+                .limit(SHOWN_ARRAYS)
+                .forEach(o -> out.printf("%-12d %-10s %,12d %,14d %,14d  %s%n",
+                        dump.addresses[o], typeNames.get(types[o]), dump.counts[o], dump.sizes[o], retained[o], describe(o)));
+
+        out.flush();
+    }
+
+    /**
+     * Where the object was allocated, and what a char array says
+     */
+    private String describe(int object) {
+        StringBuilder text = new StringBuilder();
+        int site = dump.sites[object];
+
+        if (site >= 0) {
+            text.append(String.format("%03d in %s", site, dump.functions.getOrDefault(site, "?")));
+        }
+
+        if (dump.kinds[object] == Heap.CHARS) {
+            int length = Math.min(dump.counts[object], PREVIEW);
+            if (text.length() > 0) text.append(' ');
+            text.append('"');
+
+            for (int i = 0; i < length; i++) {
+                char c = (char) (dump.word(object, i / 4) >> 8 * (3 - i % 4) & 0xff);
+                text.append(c >= ' ' && c < 127 ? c : '.');
+            }
+
+            text.append(dump.counts[object] > length ? "\"..." : "\"");
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Indices by value, highest first, ties by the other values
+     */
+    private static IntStream sorted(int length, long[] values, long[] ties) {
+        return IntStream.range(0, length)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer i) -> values[i]).thenComparingLong(i -> ties[i]).reversed())
+                .mapToInt(Integer::intValue);
+    }
+}
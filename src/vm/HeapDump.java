@@ -0,0 +1,257 @@
+package vm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Heap and roots of a VM in a file, written at a point of a run and read back by HeapAnalyzer.
+ * Ints are big endian, bitmaps have a byte for every 8 flags, first flag in the highest bit.
+ *
+ * 'M' 'H' version
+ * globals, their values, bitmap of the ones holding references
+ * expression stack size, its values
+ * frame stack size, its values
+ * objects, each one: address, kind, count, block words, site or -1, [bitmap of reference fields], data words
+ * sites, each one: address, name length, UTF-8 name of its function
+ *
+ * Objects are in address order, garbage included. Count is fields of a struct, elements of an array,
+ * a struct with an unknown layout has every field marked as a reference.
+ * Sites are only known when the run tracked allocations.
+ */
+final class HeapDump {
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    final int[] globals;
+    final boolean[] referenceGlobals;
+    final int[] estack;
+    final int[] fstack;
+
+    /* By object */
+    final int[] addresses;
+    final byte[] kinds;
+    final int[] counts;
+    final int[] sizes;
+    final int[] sites;
+    final boolean[][] references;   // Of structs
+    final int[] data;               // Position of its words in the file
+
+    final Map<Integer, String> functions;   // By site
+    private final ByteBuffer file;
+
+    private HeapDump(ByteBuffer file, int[] globals, boolean[] referenceGlobals, int[] estack, int[] fstack, int objects) {
+        this.file = file;
+        this.globals = globals;
+        this.referenceGlobals = referenceGlobals;
+        this.estack = estack;
+        this.fstack = fstack;
+        this.addresses = new int[objects];
+        this.kinds = new byte[objects];
+        this.counts = new int[objects];
+        this.sizes = new int[objects];
+        this.sites = new int[objects];
+        this.references = new boolean[objects][];
+        this.data = new int[objects];
+        this.functions = new LinkedHashMap<>();
+    }
+
+    /**
+     * Word of an object, index is in its data words
+     */
+    int word(int object, int index) {
+        return file.getInt(data[object] + 4 * index);
+    }
+
+    static int dataWords(int kind, int count) {
+        return kind == Heap.CHARS ? (count + 3) / 4 : count;
+    }
+
+    /**
+     * Writes the heap and the roots of the VM to path, stacks up to their tops
+     */
+    static void write(MijaVM vm, String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), CREATE, TRUNCATE_EXISTING, WRITE)) {
+            ChannelWriter out = new ChannelWriter(channel);
+            Heap heap = vm.heap;
+
+            out.putByte('M');
+            out.putByte('H');
+            out.putByte(VERSION);
+
+            int[] globals = vm.globalData;
+            boolean[] referenceGlobals = new boolean[globals.length];
+            for (int i = 0; i < globals.length; i++) referenceGlobals[i] = vm.image.maps.isReferenceGlobal(i);
+
+            out.putInt(globals.length);
+            out.putInts(globals, 0, globals.length);
+            out.putBitmap(referenceGlobals, globals.length);
+
+            out.putInt(vm.esp);
+            out.putInts(vm.estack, 0, vm.esp);
+            out.putInt(vm.fsp);
+            out.putInts(vm.fstack, 0, vm.fsp);
+
+            int[] objects = new int[1];
+            heap.objects((address, kind, count, size, references, site) -> objects[0]++);
+            out.putInt(objects[0]);
+
+            List<Integer> sites = new ArrayList<>();
+            boolean[] seen = new boolean[vm.image.codeData.length];
+
+            heap.objects((address, kind, count, size, references, site) -> {
+                out.putInt(address);
+                out.putByte(kind);
+                out.putInt(count);
+                out.putInt(size);
+                out.putInt(site);
+
+                if (kind == Heap.STRUCT) {
+                    boolean[] fields = new boolean[count];
+                    for (int i = 0; i < count; i++) fields[i] = references == null || references[i];
+                    out.putBitmap(fields, count);
+                }
+
+                out.putInts(heap.words, address - Heap.BASE, dataWords(kind, count));
+
+                if (site >= 0 && !seen[site]) {
+                    seen[site] = true;
+                    sites.add(site);
+                }
+            });
+
+            out.putInt(sites.size());
+            for (int site : sites) {
+                byte[] name = vm.heap.sites.function(site).getBytes(StandardCharsets.UTF_8);
+                out.putInt(site);
+                out.putInt(name.length);
+                out.putBytes(name);
+            }
+
+            out.flush();
+        }
+    }
+
+    /**
+     * Maps the dump at path
+     *
+     * @throws IllegalArgumentException if it is not a heap dump
+     */
+    static HeapDump read(String path) throws IOException {
+        ByteBuffer in;
+
+        try (FileChannel channel = FileChannel.open(Path.of(path), READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (in.get() != 'M' || in.get() != 'H' || in.get() != VERSION) {
+                throw new IllegalArgumentException();
+            }
+
+            int[] globals = getInts(in, in.getInt());
+            boolean[] referenceGlobals = getBitmap(in, globals.length);
+            int[] estack = getInts(in, in.getInt());
+            int[] fstack = getInts(in, in.getInt());
+
+            HeapDump dump = new HeapDump(in, globals, referenceGlobals, estack, fstack, in.getInt());
+
+            for (int i = 0; i < dump.addresses.length; i++) {
+                dump.addresses[i] = in.getInt();
+                dump.kinds[i] = in.get();
+                dump.counts[i] = in.getInt();
+                dump.sizes[i] = in.getInt();
+                dump.sites[i] = in.getInt();
+
+                if (dump.kinds[i] == Heap.STRUCT) dump.references[i] = getBitmap(in, dump.counts[i]);
+
+                dump.data[i] = in.position();
+                in.position(in.position() + 4 * dataWords(dump.kinds[i], dump.counts[i]));
+            }
+
+            for (int sites = in.getInt(); sites > 0; sites--) {
+                int site = in.getInt();
+                byte[] name = new byte[in.getInt()];
+                in.get(name);
+                dump.functions.put(site, new String(name, StandardCharsets.UTF_8));
+            }
+
+            return dump;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(path + " is not a heap dump");
+        }
+    }
+
+    private static int[] getInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * count);
+        return values;
+    }
+
+    private static boolean[] getBitmap(ByteBuffer in, int count) {
+        boolean[] flags = new boolean[count];
+        byte[] bytes = new byte[(count + 7) / 8];
+        in.get(bytes);
+
+        for (int i = 0; i < count; i++) {
+            flags[i] = (bytes[i / 8] & 0x80 >>> i % 8) != 0;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Buffers what goes to the channel
+     */
+    private static final class ChannelWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        ChannelWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putByte(int value) throws IOException {
+            if (!buffer.hasRemaining()) flush();
+            buffer.put((byte) value);
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4) flush();
+            buffer.putInt(value);
+        }
+
+        void putInts(int[] values, int from, int count) throws IOException {
+            for (int i = from; i < from + count; i++) putInt(values[i]);
+        }
+
+        void putBytes(byte[] values) throws IOException {
+            for (byte value : values) putByte(value);
+        }
+
+        void putBitmap(boolean[] flags, int count) throws IOException {
+            for (int i = 0; i < count; i += 8) {
+                int bits = 0;
+                for (int j = 0; j < 8; j++) {
+                    if (i + j < count && flags[i + j]) bits |= 0x80 >>> j;
+                }
+                putByte(bits);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
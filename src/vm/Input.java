@@ -0,0 +1,132 @@
+package vm;
+
+import codegen.Error;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Input of a VM, split into numbers at whitespace and parsed byte by byte without allocating.
+ * Files are mapped into memory a window at a time, other streams are read through a buffer.
+ */
+final class Input {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long WINDOW_SIZE = 1 << 30;
+
+    private final InputStream stream;   // Null when the input is mapped
+    private final FileChannel channel;  // Null when the input is read from the stream
+    private long position;              // Of the next window in the channel
+    private ByteBuffer buffer;
+
+    private Input(InputStream stream, FileChannel channel, long position) {
+        this.stream = stream;
+        this.channel = channel;
+        this.position = position;
+        this.buffer = ByteBuffer.allocate(channel == null ? BUFFER_SIZE : 0);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Input of a file stream is mapped from where the stream is, pipes and terminals have no size and are read
+     */
+    static Input of(InputStream stream) {
+        if (stream instanceof FileInputStream) {
+            try {
+                FileChannel channel = ((FileInputStream) stream).getChannel();
+                if (channel.size() > 0) return new Input(null, channel, channel.position());
+            } catch (IOException e) {
+                // Read as a stream
+            }
+        }
+
+        return new Input(stream, null, 0);
+    }
+
+    int nextInt() {
+        return (int) next(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    byte nextByte() {
+        return (byte) next(Byte.MIN_VALUE, Byte.MAX_VALUE);
+    }
+
+    /**
+     * Next whitespace separated decimal number, it has to be in [min, max]
+     */
+    private long next(long min, long max) {
+        int c = read();
+        while (c >= 0 && isWhitespace(c)) c = read();
+
+        if (c < 0) throw new VMException(Error.RUNTIME, "No more input");
+
+        boolean negative = c == '-';
+        if (c == '-' || c == '+') c = read();
+
+        long value = 0;
+        int digits = 0;
+
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > max + 1) throw new VMException(Error.RUNTIME, "Number out of range");
+
+            digits++;
+            c = read();
+        }
+
+        if (digits == 0 || c >= 0 && !isWhitespace(c)) return mismatch(c);
+
+        value = negative ? -value : value;
+        if (value < min || value > max) throw new VMException(Error.RUNTIME, "Number out of range " + value);
+
+        return value;
+    }
+
+    private long mismatch(int c) {
+        StringBuilder token = new StringBuilder();
+
+        while (c >= 0 && !isWhitespace(c)) {
+            token.append((char) c);
+            c = read();
+        }
+
+        throw new VMException(Error.RUNTIME, "Expected a number, got " + token);
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == 0x0b;
+    }
+
+    /**
+     * Next byte, -1 at the end of input
+     */
+    private int read() {
+        if (!buffer.hasRemaining() && !fill()) return -1;
+        return buffer.get() & 0xff;
+    }
+
+    private boolean fill() {
+        try {
+            if (channel != null) {
+                long size = Math.min(channel.size() - position, WINDOW_SIZE);
+                if (size <= 0) return false;
+
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                position += size;
+                return true;
+            }
+
+            int count = stream.read(buffer.array(), 0, buffer.capacity());
+            if (count <= 0) return false;
+
+            buffer.position(0);
+            buffer.limit(count);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package vm;
+
+import codegen.Error;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Tiered compilation of an image. Functions start in the decoded interpreter, which counts their calls
+ * and the back edges of their loops. A function that gets hot is compiled to a JVM method by JitCompiler,
+ * later calls go to the compiled method and loops running in the interpreter continue in it.
+ * Compiled code is shared by all VMs running the image, it gets the VM as its first argument.
+ */
+final class Jit {
+    static final int CALL_THRESHOLD = 1_000;
+    static final int BACK_EDGE_THRESHOLD = 10_000;
+
+    /* Call site handles for the class being initialized, read by its static initializer */
+    private static final ThreadLocal<MethodHandle[]> linking = new ThreadLocal<>();
+
+    private static final MethodHandle INTERPRET;
+
+    static {
+        try {
+            INTERPRET = MethodHandles.lookup().findVirtual(MijaVM.class, "interpret",
+                    MethodType.methodType(int.class, int.class, boolean.class, int[].class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final DecodedCode decoded;
+    final ReferenceMaps maps;
+    private final FunctionInfo[] functions;
+
+    private final int[] calls;                      // By index of ENTER
+    private final int[] backEdges;                  // By index of the loop header
+    private final CompiledFunction[] compiled;      // By index of ENTER
+    private final CompiledFunction[] loops;         // By index of the loop header
+    private final MutableCallSite[] callSites;      // By index of ENTER, for calls from compiled code
+    private final boolean[] failed;
+
+    Jit(DecodedCode decoded, ReferenceMaps maps) {
+        int size = decoded.code.length;
+
+        this.decoded = decoded;
+        this.maps = maps;
+        this.functions = FunctionInfo.analyzeEach(decoded);
+        this.calls = new int[size];
+        this.backEdges = new int[size];
+        this.compiled = new CompiledFunction[size];
+        this.loops = new CompiledFunction[size];
+        this.callSites = new MutableCallSite[size];
+        this.failed = new boolean[size];
+    }
+
+    /**
+     * Counts a call from the interpreter
+     *
+     * @return compiled function to call instead of interpreting it, or null
+     */
+    CompiledFunction call(int entry) {
+        CompiledFunction function = compiled[entry];
+
+        if (function == null && ++calls[entry] == CALL_THRESHOLD) {
+            function = compile(entry);
+        }
+
+        return function;
+    }
+
+    /**
+     * Counts a jump back to a loop header in the interpreter
+     *
+     * @return compiled function that can continue the loop, or null
+     */
+    CompiledFunction backEdge(int header) {
+        CompiledFunction function = loops[header];
+
+        if (function == null && ++backEdges[header] == BACK_EDGE_THRESHOLD) {
+            compile(FunctionInfo.find(functions, header).start);
+            function = loops[header];
+        }
+
+        return function;
+    }
+
+    /**
+     * Functions that fail to compile stay in the interpreter
+     */
+    private synchronized CompiledFunction compile(int entry) {
+        if (compiled[entry] != null || failed[entry]) {
+            return compiled[entry];
+        }
+
+        try {
+            CompiledFunction function = JitCompiler.compile(this, decoded, FunctionInfo.find(functions, entry), functions);
+
+            compiled[entry] = function;
+            for (int header : function.loopHeaders()) loops[header] = function;
+
+            if (callSites[entry] != null) {
+                callSites[entry].setTarget(function.run);
+            }
+
+            return function;
+        } catch (IllegalArgumentException | LinkageError | ReflectiveOperationException e) {
+            failed[entry] = true;
+            return null;
+        }
+    }
+
+    /**
+     * Handle compiled code calls the function through, it interprets the function until it gets compiled
+     */
+    synchronized MethodHandle callSite(FunctionInfo function) {
+        MutableCallSite site = callSites[function.start];
+
+        if (site == null) {
+            MethodHandle target = compiled[function.start] != null
+                    ? compiled[function.start].run
+                    : MethodHandles.insertArguments(INTERPRET, 1, function.start, function.returnsValue)
+                            .asCollector(int[].class, function.params);
+
+            site = new MutableCallSite(target);
+            callSites[function.start] = site;
+        }
+
+        return site.dynamicInvoker();
+    }
+
+    /**
+     * Defines and initializes a compiled class, its static initializer takes call site handles from linkedHandles()
+     */
+    static MethodHandles.Lookup define(byte[] classFile, MethodHandle[] handles) throws IllegalAccessException {
+        linking.set(handles);
+        try {
+            return MethodHandles.lookup().defineHiddenClass(classFile, true);
+        } finally {
+            linking.remove();
+        }
+    }
+
+
+    /* Called by compiled code, operands of an instruction come before the VM and its immediate operands after it */
+
+    static MethodHandle[] linkedHandles() {
+        return linking.get();
+    }
+
+    static int loadField(int address, MijaVM vm, int field) {
+        return vm.loadField(address, field);
+    }
+
+    static void storeField(int address, int value, MijaVM vm, int field) {
+        vm.storeField(address, field, value);
+    }
+
+    static int newStruct(MijaVM vm, int fieldCount, int site) {
+        return vm.newStruct(fieldCount, site);
+    }
+
+    static int newArray(int length, MijaVM vm, int elementSize, int site) {
+        return vm.newArray(length, elementSize, site);
+    }
+
+    static int arrayLoad(int address, int index, MijaVM vm) {
+        return vm.arrayLoad(address, index);
+    }
+
+    static void arrayStore(int address, int index, int value, MijaVM vm) {
+        vm.arrayStore(address, index, value);
+    }
+
+    static int barrayLoad(int address, int index, MijaVM vm) {
+        return vm.barrayLoad(address, index);
+    }
+
+    static void barrayStore(int address, int index, int value, MijaVM vm) {
+        vm.barrayStore(address, index, value);
+    }
+
+    static int length(int address, MijaVM vm) {
+        return vm.length(address);
+    }
+
+    static int loadString(MijaVM vm, int string, int site) {
+        DecodedCode decoded = vm.image.decoded;
+        return vm.newString(decoded.strings[string], decoded.stringLengths[string], site);
+    }
+
+    static int read(MijaVM vm) {
+        return vm.in().nextInt();
+    }
+
+    static int bread(MijaVM vm) {
+        return vm.in().nextByte();
+    }
+
+    static void print(int value, MijaVM vm) {
+        vm.out.print(value);
+    }
+
+    static void bprint(int value, MijaVM vm) {
+        vm.out.print((char) value);
+    }
+
+    static void prints(int address, MijaVM vm) {
+        vm.printString(address);
+    }
+
+    static int rand(int bound, MijaVM vm) {
+        return vm.random(bound);
+    }
+
+    static void free(int address, MijaVM vm) {
+        vm.heap.free(address);
+    }
+
+    static void dump(MijaVM vm) {
+        vm.dumpHeap();
+    }
+
+    /**
+     * Values under the operands of an instruction that may collect the heap go on the expression stack,
+     * where the collector finds them
+     */
+    static void root(int value, MijaVM vm) {
+        vm.root(value);
+    }
+
+    static void unroot(MijaVM vm, int count) {
+        vm.unroot(count);
+    }
+
+    static RuntimeException trap(int error) {
+        return new VMException(Error.values()[error]);
+    }
+}
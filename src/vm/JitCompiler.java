@@ -0,0 +1,474 @@
+package vm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static vm.ClassWriter.*;
+
+/**
+ * Compiles a function of decoded code into a hidden class. Locals of the function become JVM locals
+ * and its expression stack becomes the JVM operand stack, FunctionInfo has checked the depths agree.
+ *
+ * The class has run, the function itself, bridge, which takes arguments from the expression stack
+ * for the interpreter, and a loop method for every loop header with an empty stack, which takes locals
+ * from an interpreted frame and continues at the header.
+ *
+ * The collector only sees the VM stacks. Before an instruction that may collect the heap, reference locals
+ * are copied to the frame of the function on the frame stack and values under the operands of the instruction
+ * are pushed on the expression stack. A compiled frame takes as many words as an interpreted one, so the frame stack
+ * limits recursion the same, and the reference locals are copied to its first words.
+ */
+final class JitCompiler {
+    private static final String CLASS = "vm/Compiled";
+    private static final String VM = "vm/MijaVM";
+    private static final String VM_TYPE = "Lvm/MijaVM;";
+    private static final String RUNTIME = "vm/Jit";
+    private static final String HANDLE = "java/lang/invoke/MethodHandle";
+    private static final String HANDLE_TYPE = "Ljava/lang/invoke/MethodHandle;";
+
+    private static final String ENTRY_DESCRIPTOR = "(" + VM_TYPE + "[II)I";
+
+    /* JVM comparison for each condition, in the order of Op.JEQ to Op.JGE */
+    private static final int[] COMPARE = { IF_ICMPEQ, IF_ICMPNE, IF_ICMPGT, IF_ICMPLE, IF_ICMPLT, IF_ICMPGE };
+
+    private final Jit jit;
+    private final DecodedCode decoded;
+    private final FunctionInfo function;
+    private final FunctionInfo[] functions;
+    private final int[] code;
+
+    private final ClassWriter writer = new ClassWriter(CLASS);
+    private final ArrayList<FunctionInfo> callees = new ArrayList<>();  // Called through call sites, not the function itself
+    private final boolean[] references;                                 // Locals the collector has to see
+    private final int[] slots;                                          // Word of each reference local in a compiled frame
+    private final int frameSize;                                        // Words of a frame, with the return address and base pointer
+    private int maxArguments;
+
+    private JitCompiler(Jit jit, DecodedCode decoded, FunctionInfo function, FunctionInfo[] functions) {
+        this.jit = jit;
+        this.decoded = decoded;
+        this.function = function;
+        this.functions = functions;
+        this.code = decoded.code;
+        boolean[] map = jit.maps.locals(decoded.sourceAddress[function.start]);
+        if (map == null || map.length != function.params + function.locals) {
+            map = new boolean[function.params + function.locals];
+            Arrays.fill(map, true);
+        }
+        this.references = map;
+
+        this.slots = new int[map.length];
+        int size = 0;
+        for (int local = 0; local < map.length; local++) {
+            if (map[local]) slots[local] = size++;
+        }
+        this.frameSize = function.params + function.locals + 2;
+    }
+
+    static CompiledFunction compile(Jit jit, DecodedCode decoded, FunctionInfo function, FunctionInfo[] functions)
+            throws IllegalAccessException, NoSuchMethodException {
+        if (!function.isValid()) {
+            throw new IllegalArgumentException("Stack depths of the function do not agree");
+        }
+
+        return new JitCompiler(jit, decoded, function, functions).compile();
+    }
+
+    private CompiledFunction compile() throws IllegalAccessException, NoSuchMethodException {
+        findCallees();
+
+        int[] headers = loopHeaders();
+        String runDescriptor = runDescriptor(function.params);
+
+        body(writer.method(ACC_STATIC, "run", runDescriptor, labels()), -1);
+        bridge(runDescriptor);
+        for (int header : headers) {
+            body(writer.method(ACC_STATIC, "loop" + header, ENTRY_DESCRIPTOR, labels()), header);
+        }
+        linkCallees();
+
+        MethodHandle[] handles = new MethodHandle[callees.size()];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = jit.callSite(callees.get(i));
+        }
+
+        MethodHandles.Lookup lookup = Jit.define(writer.toByteArray(), handles);
+        Class<?> compiledClass = lookup.lookupClass();
+        MethodType entryType = MethodType.methodType(int.class, MijaVM.class, int[].class, int.class);
+
+        MethodHandle[] loops = new MethodHandle[headers.length];
+        for (int i = 0; i < headers.length; i++) {
+            loops[i] = lookup.findStatic(compiledClass, "loop" + headers[i], entryType);
+        }
+
+        return new CompiledFunction(
+                function,
+                lookup.findStatic(compiledClass, "run", runType(function.params)),
+                lookup.findStatic(compiledClass, "bridge", entryType),
+                headers,
+                loops);
+    }
+
+    private void findCallees() {
+        for (int i = function.start; i < function.end; i += Op.size(code[i])) {
+            if (code[i] != Op.CALL || !function.isReachable(i)) continue;
+
+            FunctionInfo callee = FunctionInfo.find(functions, code[i + 1]);
+            maxArguments = Math.max(maxArguments, callee.params);
+
+            if (callee != function && !callees.contains(callee)) {
+                callees.add(callee);
+            }
+        }
+    }
+
+    /**
+     * Targets of backward jumps with nothing on the stack, where a running loop can move to compiled code
+     */
+    private int[] loopHeaders() {
+        int[] headers = new int[0];
+
+        for (int i = function.start; i < function.end; i += Op.size(code[i])) {
+            if (!Op.isJump(code[i]) || !function.isReachable(i)) continue;
+
+            int target = code[i + 1];
+            if (target <= i && function.depthAt(target) == 0 && Arrays.stream(headers).noneMatch(h -> h == target)) {
+                headers = Arrays.copyOf(headers, headers.length + 1);
+                headers[headers.length - 1] = target;
+            }
+        }
+
+        return headers;
+    }
+
+    private int labels() {
+        return function.end - function.start;
+    }
+
+    private int label(int index) {
+        return index - function.start;
+    }
+
+    /**
+     * Function code for run, or for the loop method of header when it is not negative
+     */
+    private void body(ClassWriter.Method method, int header) {
+        boolean loop = header >= 0;
+        int base = loop ? 3 : 1;                            // JVM local of the first MJ local
+        int temps = base + function.params + function.locals;
+        int spills = temps + maxArguments;                  // Operand stack while its bottom is rooted
+        int frame = loop ? 2 : spills + function.maxDepth();  // Index of the frame on the frame stack
+
+        if (loop) {
+            for (int i = 0; i < function.params + function.locals; i++) {
+                method.local(ALOAD, 1);
+                method.local(ILOAD, 2);
+                method.constant(i);
+                method.op(IADD);
+                method.op(IALOAD);
+                method.local(ISTORE, base + i);
+            }
+
+            method.branch(GOTO, label(header));
+        }
+
+        for (int i = function.start; i < function.end; i += Op.size(code[i])) {
+            method.mark(label(i));
+            if (!function.isReachable(i)) continue;
+
+            int op = code[i];
+            int operand = Op.size(op) > 1 ? code[i + 1] : 0;
+            int rooted = 0;
+
+            if (collects(op)) {
+                int operands = op == Op.CALL ? FunctionInfo.find(functions, operand).params : Op.pops(op);
+
+                spillLocals(method, base, frame, loop);
+                rooted = root(method, function.depthAt(i), operands, spills);
+            }
+
+            switch (op) {
+                case Op.NOP:
+                case Op.EXIT:
+                    break;
+
+                case Op.ENTER:
+                    if (loop) break;
+
+                    method.local(ALOAD, 0);
+                    method.constant(frameSize);
+                    method.constant(decoded.sourceAddress[i]);
+                    method.member(INVOKEVIRTUAL, writer.methodRef(VM, "reserveFrame", "(II)I"));
+                    method.local(ISTORE, frame);
+
+                    for (int local = function.params; local < function.params + function.locals; local++) {
+                        method.op(ICONST_0);
+                        method.local(ISTORE, base + local);
+                    }
+                    break;
+
+                case Op.CONST:  method.constant(operand); break;
+                case Op.LOAD:   method.local(ILOAD, base + operand); break;
+                case Op.STORE:  method.local(ISTORE, base + operand); break;
+
+                case Op.LOAD_GLOBAL:
+                    method.local(ALOAD, 0);
+                    method.member(GETFIELD, writer.fieldRef(VM, "globalData", "[I"));
+                    method.constant(operand);
+                    method.op(IALOAD);
+                    break;
+
+                case Op.STORE_GLOBAL:
+                    method.local(ALOAD, 0);
+                    method.member(GETFIELD, writer.fieldRef(VM, "globalData", "[I"));
+                    method.op(SWAP);
+                    method.constant(operand);
+                    method.op(SWAP);
+                    method.op(IASTORE);
+                    break;
+
+                case Op.LOAD_FIELD:     runtime("loadField", "(I" + VM_TYPE + "I)I", method, operand); break;
+                case Op.STORE_FIELD:    runtime("storeField", "(II" + VM_TYPE + "I)V", method, operand); break;
+                case Op.NEW:            runtime("newStruct", "(" + VM_TYPE + "II)I", method, operand, decoded.sourceAddress[i]); break;
+                case Op.NEW_ARRAY:      runtime("newArray", "(I" + VM_TYPE + "II)I", method, operand, decoded.sourceAddress[i]); break;
+                case Op.LOAD_STRING:    runtime("loadString", "(" + VM_TYPE + "II)I", method, operand, decoded.sourceAddress[i]); break;
+                case Op.ARRAY_LOAD:     runtime("arrayLoad", "(II" + VM_TYPE + ")I", method); break;
+                case Op.ARRAY_STORE:    runtime("arrayStore", "(III" + VM_TYPE + ")V", method); break;
+                case Op.BARRAY_LOAD:    runtime("barrayLoad", "(II" + VM_TYPE + ")I", method); break;
+                case Op.BARRAY_STORE:   runtime("barrayStore", "(III" + VM_TYPE + ")V", method); break;
+                case Op.LENGTH:         runtime("length", "(I" + VM_TYPE + ")I", method); break;
+                case Op.READ:           runtime("read", "(" + VM_TYPE + ")I", method); break;
+                case Op.BREAD:          runtime("bread", "(" + VM_TYPE + ")I", method); break;
+                case Op.PRINT:          runtime("print", "(I" + VM_TYPE + ")V", method); break;
+                case Op.BPRINT:         runtime("bprint", "(I" + VM_TYPE + ")V", method); break;
+                case Op.PRINTS:         runtime("prints", "(I" + VM_TYPE + ")V", method); break;
+                case Op.RAND:           runtime("rand", "(I" + VM_TYPE + ")I", method); break;
+                case Op.FREE:           runtime("free", "(I" + VM_TYPE + ")V", method); break;
+                case Op.DUMP:           runtime("dump", "(" + VM_TYPE + ")V", method); break;
+
+                case Op.ADD: method.op(IADD); break;
+                case Op.SUB: method.op(ISUB); break;
+                case Op.MUL: method.op(IMUL); break;
+                case Op.DIV: method.op(IDIV); break;
+                case Op.REM: method.op(IREM); break;
+                case Op.NEG: method.op(INEG); break;
+                case Op.SHL: method.op(ISHL); break;
+                case Op.SHR: method.op(ISHR); break;
+                case Op.POP: method.op(POP); break;
+                case Op.DUP: method.op(DUP); break;
+                case Op.DUP2: method.op(DUP2); break;
+                case Op.INC: method.increment(base + operand, code[i + 2]); break;
+
+                case Op.LOAD_FIELD_LOCAL:
+                    method.local(ILOAD, base + operand);
+                    runtime("loadField", "(I" + VM_TYPE + "I)I", method, code[i + 2]);
+                    break;
+
+                case Op.JMP: method.branch(GOTO, label(operand)); break;
+                case Op.JEQ: method.branch(IF_ICMPEQ, label(operand)); break;
+                case Op.JNE: method.branch(IF_ICMPNE, label(operand)); break;
+                case Op.JGT: method.branch(IF_ICMPGT, label(operand)); break;
+                case Op.JLE: method.branch(IF_ICMPLE, label(operand)); break;
+                case Op.JLT: method.branch(IF_ICMPLT, label(operand)); break;
+                case Op.JGE: method.branch(IF_ICMPGE, label(operand)); break;
+                case Op.JZ:  method.branch(IFEQ, label(operand)); break;
+                case Op.JNZ: method.branch(IFNE, label(operand)); break;
+
+                case Op.JEQ_LC: case Op.JNE_LC: case Op.JGT_LC: case Op.JLE_LC: case Op.JLT_LC: case Op.JGE_LC:
+                    method.local(ILOAD, base + code[i + 2]);
+                    method.constant(code[i + 3]);
+                    method.branch(COMPARE[op - Op.JEQ_LC], label(operand));
+                    break;
+
+                case Op.CALL:
+                    call(method, FunctionInfo.find(functions, operand), temps);
+                    break;
+
+                case Op.RETURN:
+                    // Loop methods leave the frame to the interpreter
+                    if (!loop) {
+                        method.local(ALOAD, 0);
+                        method.constant(frameSize);
+                        method.member(INVOKEVIRTUAL, writer.methodRef(VM, "releaseFrame", "(I)V"));
+                    }
+
+                    if (!function.returnsValue) method.op(ICONST_0);
+                    method.op(IRETURN);
+                    break;
+
+                case Op.TRAP:
+                    method.constant(operand);
+                    method.member(INVOKESTATIC, writer.methodRef(RUNTIME, "trap", "(I)Ljava/lang/RuntimeException;"));
+                    method.op(ATHROW);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Cannot compile " + Op.name(op));
+            }
+
+            if (rooted > 0) {
+                method.local(ALOAD, 0);
+                method.constant(rooted);
+                method.member(INVOKESTATIC, writer.methodRef(RUNTIME, "unroot", "(" + VM_TYPE + "I)V"));
+            }
+        }
+
+        // Helpers take up to three operands, the VM and two immediate operands, calls a handle, the VM and arguments,
+        // copying a local takes four
+        method.end(Math.max(function.maxDepth() + 4, maxArguments + 2) + 2, spills + function.maxDepth() + (loop ? 0 : 1));
+    }
+
+    /**
+     * Instructions that may collect the heap
+     */
+    private static boolean collects(int op) {
+        return op == Op.NEW || op == Op.NEW_ARRAY || op == Op.LOAD_STRING || op == Op.CALL || op == Op.DUMP;
+    }
+
+    /**
+     * Loop methods copy into the interpreted frame they came from, which has every local.
+     * The frame stack is loaded from the VM every time, calls may have grown it.
+     */
+    private void spillLocals(ClassWriter.Method method, int base, int frame, boolean loop) {
+        for (int local = 0; local < references.length; local++) {
+            if (!references[local]) continue;
+
+            method.local(ALOAD, 0);
+            method.member(GETFIELD, writer.fieldRef(VM, "fstack", "[I"));
+            method.local(ILOAD, frame);
+            method.constant(loop ? local : slots[local]);
+            method.op(IADD);
+            method.local(ILOAD, base + local);
+            method.op(IASTORE);
+        }
+    }
+
+    /**
+     * Pushes values under the operands on the expression stack, the operand stack is taken apart and put back
+     *
+     * @return number of values pushed
+     */
+    private int root(ClassWriter.Method method, int depth, int operands, int spills) {
+        int below = depth - operands;
+        if (below == 0) return 0;
+
+        for (int k = depth - 1; k >= 0; k--) {
+            method.local(ISTORE, spills + k);
+        }
+
+        for (int k = 0; k < depth; k++) {
+            method.local(ILOAD, spills + k);
+
+            if (k < below) {
+                method.op(DUP);
+                runtime("root", "(I" + VM_TYPE + ")V", method);
+            }
+        }
+
+        return below;
+    }
+
+    /**
+     * Arguments go through temporary locals so the handle or the VM can go below them
+     */
+    private void call(ClassWriter.Method method, FunctionInfo callee, int temps) {
+        for (int i = callee.params - 1; i >= 0; i--) {
+            method.local(ISTORE, temps + i);
+        }
+
+        String descriptor = runDescriptor(callee.params);
+
+        if (callee == function) {
+            method.local(ALOAD, 0);
+            for (int i = 0; i < callee.params; i++) method.local(ILOAD, temps + i);
+            method.member(INVOKESTATIC, writer.methodRef(CLASS, "run", descriptor));
+        } else {
+            method.member(GETSTATIC, writer.fieldRef(CLASS, callSiteField(callee), HANDLE_TYPE));
+            method.local(ALOAD, 0);
+            for (int i = 0; i < callee.params; i++) method.local(ILOAD, temps + i);
+            method.member(INVOKEVIRTUAL, writer.methodRef(HANDLE, "invokeExact", descriptor));
+        }
+
+        if (!callee.returnsValue) method.op(POP);
+    }
+
+    private void runtime(String name, String descriptor, ClassWriter.Method method) {
+        method.local(ALOAD, 0);
+        method.member(INVOKESTATIC, writer.methodRef(RUNTIME, name, descriptor));
+    }
+
+    private void runtime(String name, String descriptor, ClassWriter.Method method, int operand) {
+        method.local(ALOAD, 0);
+        method.constant(operand);
+        method.member(INVOKESTATIC, writer.methodRef(RUNTIME, name, descriptor));
+    }
+
+    private void runtime(String name, String descriptor, ClassWriter.Method method, int operand, int other) {
+        method.local(ALOAD, 0);
+        method.constant(operand);
+        method.constant(other);
+        method.member(INVOKESTATIC, writer.methodRef(RUNTIME, name, descriptor));
+    }
+
+    /**
+     * bridge(vm, estack, sp) calls run with arguments estack[sp] and up
+     */
+    private void bridge(String runDescriptor) {
+        ClassWriter.Method method = writer.method(ACC_STATIC, "bridge", ENTRY_DESCRIPTOR, 0);
+
+        method.local(ALOAD, 0);
+        for (int i = 0; i < function.params; i++) {
+            method.local(ALOAD, 1);
+            method.local(ILOAD, 2);
+            method.constant(i);
+            method.op(IADD);
+            method.op(IALOAD);
+        }
+
+        method.member(INVOKESTATIC, writer.methodRef(CLASS, "run", runDescriptor));
+        method.op(IRETURN);
+        method.end(function.params + 4, 3);
+    }
+
+    /**
+     * Call site handles are static final fields, so HotSpot can inline through them
+     */
+    private void linkCallees() {
+        if (callees.isEmpty()) return;
+
+        ClassWriter.Method method = writer.method(ACC_STATIC, "<clinit>", "()V", 0);
+        method.member(INVOKESTATIC, writer.methodRef(RUNTIME, "linkedHandles", "()[" + HANDLE_TYPE));
+        method.local(ASTORE, 0);
+
+        for (int i = 0; i < callees.size(); i++) {
+            String field = callSiteField(callees.get(i));
+            writer.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, field, HANDLE_TYPE);
+
+            method.local(ALOAD, 0);
+            method.constant(i);
+            method.op(AALOAD);
+            method.member(PUTSTATIC, writer.fieldRef(CLASS, field, HANDLE_TYPE));
+        }
+
+        method.op(ClassWriter.RETURN);
+        method.end(2, 1);
+    }
+
+    private static String callSiteField(FunctionInfo callee) {
+        return "call" + callee.start;
+    }
+
+    private static String runDescriptor(int params) {
+        return "(" + VM_TYPE + "I".repeat(params) + ")I";
+    }
+
+    private static MethodType runType(int params) {
+        Class<?>[] types = new Class<?>[1 + params];
+        types[0] = MijaVM.class;
+        Arrays.fill(types, 1, types.length, int.class);
+        return MethodType.methodType(int.class, types);
+    }
+}
@@ -0,0 +1,64 @@
+package vm;
+
+/**
+ * Limits of the stacks and the heap of a VM, in words. They start small and grow up to their limits,
+ * the heap when collecting does not leave enough room, so a large limit costs nothing until a program needs it.
+ * Global data is not here, it is sized for the globals the program uses.
+ */
+public final class MemorySizes {
+    public static final MemorySizes DEFAULT = new MemorySizes(100_000, 1 << 20, 1 << 20);
+
+    static final int MAX_WORDS = Integer.MAX_VALUE - 8; // Largest int[] JVMs allow
+
+    final int heap;
+    final int frameStack;
+    final int expressionStack;
+
+    public MemorySizes(int heap, int frameStack, int expressionStack) {
+        // Main gets a frame of two words before anything runs
+        if (heap < 2 || frameStack < 2 || expressionStack < 1) {
+            throw new IllegalArgumentException("Memory sizes too small");
+        }
+
+        if (heap > Heap.MAX_SIZE || frameStack > MAX_WORDS || expressionStack > MAX_WORDS) {
+            throw new IllegalArgumentException("Memory sizes too large");
+        }
+
+        this.heap = heap;
+        this.frameStack = frameStack;
+        this.expressionStack = expressionStack;
+    }
+
+    public MemorySizes withHeap(int words) {
+        return new MemorySizes(words, frameStack, expressionStack);
+    }
+
+    public MemorySizes withFrameStack(int words) {
+        return new MemorySizes(heap, words, expressionStack);
+    }
+
+    public MemorySizes withExpressionStack(int words) {
+        return new MemorySizes(heap, frameStack, words);
+    }
+
+    /**
+     * Number of words, k and m multiply it by 1024 and 1024 * 1024
+     */
+    public static int parse(String size) {
+        long multiplier = 1;
+        String digits = size;
+
+        if (size.endsWith("k") || size.endsWith("K")) multiplier = 1024;
+        if (size.endsWith("m") || size.endsWith("M")) multiplier = 1024 * 1024;
+        if (multiplier > 1) digits = size.substring(0, size.length() - 1);
+
+        try {
+            long words = Long.parseLong(digits) * multiplier;
+            if (words < 0 || words > MAX_WORDS) throw new NumberFormatException();
+
+            return (int) words;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal size " + size);
+        }
+    }
+}
@@ -3,73 +3,318 @@ package vm;
 import codegen.Error;
 import codegen.Instruction;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Scanner;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import javax.management.ObjectName;
+
+/**
+ * One run of a program image. State of the run lives in the instance, so any number of
+ * VMs can run the same image on different threads.
+ */
 public class MijaVM {
-    private static int pc;
-    private static int fbp, fsp, esp;
-    private static int freep = 1; // 0 is reserved for null
+    private int pc;
+    int fbp;                         // The decoded loop stores it at every call and return, for the sampler
+    int fsp, esp;                    // Loops keeping them in locals store them before anything that may collect the heap
+
+    private static final int INITIAL_STACK_SIZE = 1 << 10;
+    private static final long JVM_STACK_BYTES_PER_WORD = 64;
+    private static final String DEFAULT_DUMP = "heap.hdump";
+
+
+    final ProgramImage image;
+    private final byte[] codeData;
+    final int[]  globalData;
+    private final MemorySizes sizes;
+    int[]  estack;                   // Stacks are replaced when they grow
+    int[]  fstack;
+    final Heap   heap;
+
+    private final InputStream input;
+    private Input in;
+    final Output out;
+    private final PrintStream err;
+    final Random rand = new Random();
+
+    private Instruction instruction; // Current instruction
+    private int start;               // Address of the current instruction, errors are reported there
+    private Jit jit;                 // Null unless running with Engine.JIT
+
+    IntConsumer tracer;              // Gets the address of every instruction the switch loop dispatches
+
+    String dumpPath = DEFAULT_DUMP;  // Where dump() writes the heap
+    private boolean dumpAtEnd;
+
+    /* Metrics of the run, written by the thread running it and read by VMMetrics from any thread */
+    long instructions;               // Loops running stack code add their count at calls, jumps and when they exit
+    long calls;
+    int peakFrameStack;              // Words, seen at calls
+    int peakExpressionStack;
+    long started, finished;          // Nanoseconds, finished is 0 while running
+    private boolean printMetrics;
+
+    public MijaVM(ProgramImage image) {
+        this(image, System.in, System.out, System.err);
+    }
 
-    private static final int HEAP_SIZE_WORDS = 100_000;
-    private static final int FSTACK_SIZE_WORDS = 400;
-    private static final int ESTACK_SIZE_WORDS = 100;
-    private static final int GLOBAL_DATA_SIZE_WORDS = 200;
+    public MijaVM(ProgramImage image, InputStream input, PrintStream out, PrintStream err) {
+        this(image, MemorySizes.DEFAULT, input, out, err);
+    }
 
-    private static final int WORD_BYTES = 4;
-    private static final int SHORT_BYTES = 2;
+    public MijaVM(ProgramImage image, MemorySizes sizes, InputStream input, PrintStream out, PrintStream err) {
+        this.image = image;
+        this.codeData = image.codeData;
+        this.sizes = sizes;
+        this.globalData = new int[image.globals];
+        this.estack = new int[Math.min(sizes.expressionStack, INITIAL_STACK_SIZE)];
+        this.fstack = new int[Math.min(sizes.frameStack, INITIAL_STACK_SIZE)];
+        this.heap = new Heap(sizes.heap, image.maps, new AllocationSites(image), this);
+        this.input = input;
+        this.out = new Output(out);
+        this.err = err;
+    }
 
-    private static byte[] codeData;
-    private static final int[]  globalData  = new int[200];
-    private static final int[]  heap        = new int[HEAP_SIZE_WORDS];
-    private static final int[]  estack      = new int[ESTACK_SIZE_WORDS];
-    private static final int[]  fstack      = new int[FSTACK_SIZE_WORDS];
+    public static void runFromFile(String filePath) throws IOException, InterruptedException {
+        runFromFile(filePath, RunOptions.DEFAULT);
+    }
 
-    private static Scanner in;
-    private static Random rand;
+    /**
+     * Input from a FileInputStream is mapped into memory. Compiled functions call each other on the JVM stack,
+     * so the program runs on a thread with a stack deep enough for the frame stack limit.
+     * The metrics are an MBean while the program runs, with metrics or if the JVM runs a JMX agent.
+     */
+    public static void runFromFile(String filePath, RunOptions options) throws IOException, InterruptedException {
+        Engine engine = options.engine;
+        MijaVM vm = new MijaVM(ProgramImage.load(filePath), options.sizes, options.input, System.out, System.err);
+        if (options.allocations) vm.heap.sites.track();
+        vm.printMetrics = options.metrics;
+
+        if (options.dumpPath != null) {
+            vm.dumpPath = options.dumpPath;
+            vm.dumpAtEnd = true;
+        }
+        int[] status = new int[1];
+        Throwable[] failure = new Throwable[1];
+
+        Thread thread = new Thread(null, () -> {
+            try {
+                status[0] = vm.run(engine);
+            } catch (RuntimeException | java.lang.Error e) {
+                failure[0] = e;
+            }
+        }, "mijavm", JVM_STACK_BYTES_PER_WORD * options.sizes.frameStack);
+
+        Sampler sampler = options.samplesPath != null ? Sampler.start(vm, engine) : null;
+        ObjectName bean = VMMetrics.register(vm, filePath, options.metrics);
+
+        try {
+            thread.start();
+            thread.join();
+        } finally {
+            VMMetrics.unregister(bean);
+        }
 
-    private static Instruction instruction; // Current instruction
+        if (sampler != null) {
+            sampler.stop();
+
+            try (PrintStream samples = new PrintStream(new BufferedOutputStream(new FileOutputStream(options.samplesPath)))) {
+                sampler.write(samples);
+            }
+        }
 
-    public static void runFromFile(String filePath) throws IOException {
-        File inputFile = new File(filePath);
-        InputStream fileInputStream = new FileInputStream(inputFile);
-        long inputFileSize = inputFile.length();
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof java.lang.Error) throw (java.lang.Error) failure[0];
 
-        if (inputFileSize > 3000) {
-            throw new IllegalArgumentException("File to large");
+        if (status[0] != 0) {
+            System.exit(status[0]);
         }
+    }
+
+    /**
+     * Runs object files on the executor, a file given more than once is loaded once and its image shared.
+     * Runs get no input, their output is buffered and printed in the order of files.
+     * Allocations and metrics are reported by each run as they are for a single one, input, samples and dump
+     * of the options are not used.
+     *
+     * @return highest status of the runs
+     */
+    public static int runAll(List<String> filePaths, RunOptions options, ExecutorService executor)
+            throws IOException, InterruptedException {
+        Map<String, ProgramImage> images = new HashMap<>();
+        List<Future<String[]>> runs = new ArrayList<>();
+
+        for (String filePath : filePaths) {
+            ProgramImage image = images.get(filePath);
+
+            if (image == null) {
+                image = ProgramImage.load(filePath);
+                images.put(filePath, image);
+            }
+
+            ProgramImage program = image;
+            runs.add(executor.submit(() -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayOutputStream err = new ByteArrayOutputStream();
 
-        codeData = new byte[(int) inputFileSize];
-        fileInputStream.read(codeData);
-        fileInputStream.close();
+                MijaVM vm = new MijaVM(program, options.sizes, InputStream.nullInputStream(), new PrintStream(out), new PrintStream(err));
+                if (options.allocations) vm.heap.sites.track();
+                vm.printMetrics = options.metrics;
 
-        char M = (char) getByte(0);
-        char J = (char) getByte(1);
+                ObjectName bean = VMMetrics.register(vm, filePath, options.metrics);
+                int status;
 
-        if (M != 'M' || J != 'J') {
-            throw new IllegalArgumentException("Illegal file format");
+                try {
+                    status = vm.run(options.engine);
+                } finally {
+                    VMMetrics.unregister(bean);
+                }
+
+                return new String[] { out.toString(), err.toString(), Integer.toString(status) };
+            }));
+        }
+
+        int status = 0;
+
+        for (Future<String[]> run : runs) {
+            try {
+                String[] result = run.get();
+                System.out.print(result[0]);
+                System.err.print(result[1]);
+                status = Math.max(status, Integer.parseInt(result[2]));
+            } catch (ExecutionException e) {
+                System.err.println(e.getCause());
+                status = Math.max(status, Error.RUNTIME.status);
+            }
         }
 
-        pc = getWord(2);
-        getWord(4);
+        System.out.flush();
+        return status;
+    }
+
+    /**
+     * Runs main of the image, runtime errors are reported to the error stream of this VM
+     *
+     * @return 0, or status of the error that stopped the program
+     */
+    public int run(Engine engine) {
+        reset();
+        jit = engine == Engine.JIT ? image.jit() : null;
+        int status = 0;
+
+        IntConsumer traced = tracer;
+        Profiler profiler = engine == Engine.PROFILE ? new Profiler(image) : null;
+        if (profiler != null) tracer = profiler;
+
+        try {
+            switch (engine) {
+                case SWITCH:   execute(); break;
+                case PROFILE:  execute(); break;
+                case DECODED:  executeDecoded(); break;
+                case JIT:      executeDecoded(image.decoded, image.decoded.entry); break;
+                case REGISTER: RegisterInterpreter.execute(this, image.registerCode()); break;
+                case CLOSURE:  executeClosures(); break;
+            }
+        } catch (VMException e) {
+            out.flush(); // Output of the program comes before the error
+
+            if (e.getMessage() != null) {
+                err.println(e.getMessage());
+            }
+
+            e.error.report(err, e.address, e.instruction);
+
+            // Tracked allocations are all reported below
+            if (e.error == Error.HEAP_OVERFLOW && !heap.sites.isTracking()) {
+                heap.sites.report(err, AllocationSites.SHOWN_SITES);
+            }
+
+            status = e.error.status;
+            return status;
+        } finally {
+            out.flush();
+            finished = System.nanoTime();
+
+            if (dumpAtEnd) {
+                try {
+                    HeapDump.write(this, dumpPath);
+                } catch (IOException e) {
+                    err.println("Cannot write the heap dump: " + e.getMessage());
+                }
+            }
+
+            if (heap.sites.isTracking()) {
+                heap.sites.report(err, Integer.MAX_VALUE);
+            }
+
+            // The profile comes after the error
+            if (profiler != null) {
+                tracer = traced;
+                profiler.finish();
+                profiler.report(err);
+            }
+
+            if (printMetrics) {
+                err.println(new VMMetrics(this).json(engine, status));
+                err.flush();
+            }
+        }
 
-        in = new Scanner(System.in);
-        rand = new Random();
+        return 0;
+    }
 
-        execute();
+    /* Clean state left by a previous run */
+    private void reset() {
+        heap.reset();
+        Arrays.fill(globalData, 0);
+        fbp = fsp = esp = 0;
+        pc = image.main;
+
+        instructions = calls = 0;
+        peakFrameStack = peakExpressionStack = 0;
+        finished = 0;
+        started = System.nanoTime();
+    }
 
-        in.close();
+    /**
+     * Counts a call, fp and sp are the tops of the stacks when it is made
+     */
+    void called(int fp, int sp) {
+        calls++;
+        if (fp > peakFrameStack) peakFrameStack = fp;
+        if (sp > peakExpressionStack) peakExpressionStack = sp;
     }
 
-    private static void execute() {
+    private void execute() {
         var instructions = Instruction.values();
 
+        try {
+            run(instructions);
+        } catch (VMException e) {
+            throw e.at(start, instruction.niceName);
+        } catch (ArithmeticException e) {
+            throw new VMException(Error.DIVISION_BY_ZERO).at(start, instruction.niceName);
+        }
+    }
+
+    private void run(Instruction[] instructions) {
         while (true) {
+            if (tracer != null) tracer.accept(pc);
+            start = pc;
             instruction = instructions[getByte()];
+            this.instructions++;
 
             switch (instruction) {
                 /* Loading and storing */
@@ -84,7 +329,7 @@ public class MijaVM {
 
 
                 case LOAD:
-                    epush(fstack[fbp + getByte()]);
+                    epush(fstack[fbp + (getByte() & 0xff)]);
                     break;
 
                 case NOP:
@@ -96,7 +341,7 @@ public class MijaVM {
 
 
                 case STORE:
-                    fstack[fbp + getShort()] = epop();
+                    fstack[fbp + (getByte() & 0xff)] = epop();
                     break;
 
                 case STORE_0: case STORE_1: case STORE_2: case STORE_3: case STORE_4: case STORE_5:
@@ -119,135 +364,39 @@ public class MijaVM {
                 case NEW_ARRAY:
                     int length = epop();
                     int elementSize = getByte();
-
-                    if (length < 0) {
-                        System.err.println("Cannot initialize array with <0 elements");
-                        Error.exit(Error.RUNTIME, pc, instruction.niceName);
-                    }
-
-                    heap[freep] = length;
-                    heap[freep + 1] = elementSize;
-                    malloc(WORD_BYTES, 2);
-
-                    epush(malloc(elementSize , length));
+                    epush(newArray(length, elementSize, pc - 2));
                     break;
 
                 case ARRAY_LOAD:
                     int index = epop();
-                    address = epop();
-
-                    if (address == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-
-                    length = heap[address - 2];
-
-                    if (index < 0 || index >= length) {
-                        System.err.printf("Index %d for length %d%n", index, length);
-                        Error.exit(Error.INDEX_OUT_OF_BOUNDS, pc, instruction.niceName);
-                    }
-
-                    elementSize = heap[address - 1];
-
-                    epush(heap[address + index * elementSize]);
+                    epush(arrayLoad(epop(), index));
                     break;
 
                 case ARRAY_STORE:
                     int value = epop();
                     index = epop();
-                    address = epop();
-
-                    if (address == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-
-                    length = heap[address - 2];
-                    elementSize = heap[address - 1];
-
-                    if (index < 0 || index >= length) {
-                        System.err.printf("Index %d for length %d%n", index, length);
-                        Error.exit(Error.INDEX_OUT_OF_BOUNDS, pc, instruction.niceName);
-                    }
-
-                    heap[address + index * elementSize] = value;
+                    arrayStore(epop(), index, value);
                     break;
 
                 case BARRAY_LOAD:
                     index = epop();
-                    address = epop();
-
-                    if (address == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-
-                    length = heap[address - 2];
-
-                    if (index < 0 || index >= length) {
-                        System.err.printf("Index %d for length %d%n", index, length);
-                        Error.exit(Error.INDEX_OUT_OF_BOUNDS, pc, instruction.niceName);
-                    }
-
-                    int word = heap[address + index / 4];
-                    int shiftAmount = 8 * (3 - index % 4);
-                    word >>= shiftAmount;
-
-                    epush((byte) word);
+                    epush(barrayLoad(epop(), index));
                     break;
 
                 case BARRAY_STORE:
-                    byte b = (byte) epop();
+                    value = epop();
                     index = epop();
-                    address = epop();
-
-                    if (address == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-
-                    length = heap[address - 2];
-
-                    if (index < 0 || index >= length) {
-                        System.err.printf("Index %d for length %d%n", index, length);
-                        Error.exit(Error.INDEX_OUT_OF_BOUNDS, pc, instruction.niceName);
-                    }
-
-                    word = heap[address + index / 4];
-                    shiftAmount = 8 * (3 - index % 4);
-
-                    int insertValue = b << shiftAmount;
-                    int clearByteMask = ~(0xff << shiftAmount);
-
-                    heap[address + index / 4] = word & clearByteMask | insertValue;
+                    barrayStore(epop(), index, value);
                     break;
 
                 case LENGTH:
-                    address = epop() - 2;
-                    if (address < 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-                    epush(heap[address]);
+                    epush(length(epop()));
                     break;
 
                 case LOAD_STRING:
                     length = getWord();
-                    malloc(WORD_BYTES, 2); // 2 words for length and element size
-                    address = malloc(1, length);
-
-                    heap[address++] = length;
-                    heap[address++] = 1;
-
-                    epush(address);
-
-                    index = address;
-                    while (length >= 4) {
-                        heap[index] = (getByte() << 24) | (getByte() << 16) | (getByte() << 8) | getByte();
-                        length -= 4;
-                        index++;
-                    }
-
-                    while (length --> 0) {
-                        heap[index] |= (getByte() << (8 * (length + 1)));
-                    }
-
+                    epush(newString(DecodedCode.packString(codeData, pc, length), length, pc - 5));
+                    pc += length; // '\0' after the string is executed as nop
                     break;
 
 
@@ -255,38 +404,72 @@ public class MijaVM {
 
                 case NEW:
                     int fieldCount = getByte() & 0xff;
-                    epush(malloc(WORD_BYTES, fieldCount));
+                    epush(newStruct(fieldCount, pc - 2));
                     break;
 
                 case STORE_FIELD:
                     value = epop();
-                    address = epop();
-
-                    if (address == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-
-                    index = getByte() & 0xff;
-                    heap[address + index] = value;
+                    storeField(epop(), getByte() & 0xff, value);
                     break;
 
                 case LOAD_FIELD:
-                    address = epop();
-                    if (address == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
+                    epush(loadField(epop(), getByte() & 0xff));
+                    break;
 
-                    index = getByte();
-                    epush(heap[address + index]);
+                case LOAD_FIELD_LOCAL:
+                    address = fstack[fbp + (getByte() & 0xff)];
+                    epush(loadField(address, getByte() & 0xff));
                     break;
 
                 /* Operations */
 
+                case INC:
+                    address = fbp + (getByte() & 0xff);
+                    fstack[address] += getByte();
+                    break;
+
+                case DUP:
+                    value = epop();
+                    epush(value);
+                    epush(value);
+                    break;
+
+                case DUP2:
+                    index = epop();
+                    value = epop();
+                    epush(value);
+                    epush(index);
+                    epush(value);
+                    epush(index);
+                    break;
+
                 case ADD: epush(epop() + epop()); break;
-                case SUB: epush(epop() - epop()); break;
                 case MUL: epush(epop() * epop()); break;
-                case DIV: epush(epop() / epop()); break;
-                case REM: epush(epop() % epop()); break;
+
+                case SUB:
+                    value = epop();
+                    epush(epop() - value);
+                    break;
+
+                case DIV:
+                    value = epop();
+                    epush(epop() / value);
+                    break;
+
+                case REM:
+                    value = epop();
+                    epush(epop() % value);
+                    break;
+
+                case SHL:
+                    value = epop();
+                    epush(epop() << value);
+                    break;
+
+                case SHR:
+                    value = epop();
+                    epush(epop() >> value);
+                    break;
 
 
                 /* Jumps */
@@ -326,48 +509,41 @@ public class MijaVM {
                     if (epop() <= epop()) pc += jumpAmount - 3;
                     break;
 
+                case JZ:
+                    jumpAmount = getShort();
+                    if (epop() == 0) pc += jumpAmount - 3;
+                    break;
+
+                case JNZ:
+                    jumpAmount = getShort();
+                    if (epop() != 0) pc += jumpAmount - 3;
+                    break;
+
+                case JCMP_LOCAL:
+                    jumpAmount = getShort();
+                    value = fstack[fbp + (getByte() & 0xff)];
+                    Instruction condition = instructions[Instruction.JEQ.ordinal() + getByte()];
+                    if (compare(condition, value, getWord())) pc += jumpAmount - 9;
+                    break;
+
 
                 /* IO */
 
                 case BPRINT:
-                    System.out.print((char) epop());
+                    out.print((char) epop());
                     break;
 
                 case PRINT:
-                    System.out.print(epop());
+                    out.print(epop());
                     break;
 
                 case PRINTS:
-                    int stringAddress = epop();
-
-                    if (stringAddress == 0) {
-                        Error.exit(Error.NULL_POINTER, pc, instruction.niceName);
-                    }
-
-                    int len = heap[stringAddress - 2];
-                    int currentWordAddress = stringAddress;
-
-                    while (len >= 4) {
-                        int wordToPrint = heap[currentWordAddress];
-
-                        for (int i = 3; i >= 0; i--)
-                            System.out.printf("%c", wordToPrint >> (8 * i) & 0xff);
-
-                        len -= 4;
-                        currentWordAddress++;
-                    }
-
-
-                    while (len > 0) {
-                        char c = (char) ((heap[currentWordAddress] >> (8 * len)) & 0xff);
-                        System.out.print(c);
-                        len--;
-                    }
-
+                    printString(epop());
                     break;
 
                 case CALL:
                     int callAddress = getShort();
+                    if (fsp == fstack.length) growFrameStackForCall(fsp + 1, callAddress);
                     fpush(pc);
                     pc = callAddress;
                     break;
@@ -378,6 +554,7 @@ public class MijaVM {
                     break;
 
                 case ENTER:
+                    called(fsp, esp);
                     int paramsCount = getByte();
                     int localsCount = getByte();
 
@@ -385,8 +562,9 @@ public class MijaVM {
                     fbp = fsp;   // base pointer is at top of old stack frame
 
                     // Space for locals and parameters
-                    for (int i = 0; i < paramsCount; i++) fpush(0);
-                    for (int i = 0; i < localsCount; i++) fpush(0);
+                    if (fsp + paramsCount + localsCount > fstack.length) growFrameStack(fsp + paramsCount + localsCount);
+                    Arrays.fill(fstack, fsp, fsp + paramsCount + localsCount, 0);
+                    fsp += paramsCount + localsCount;
 
                     // Loading parameters from estack in reverse
                     for (int i = paramsCount - 1; i >= 0; i--) fstack[fbp + i] = epop();
@@ -401,15 +579,23 @@ public class MijaVM {
                 case POP: epop(); break;
 
                 case READ:
-                    epush(in.nextInt());
+                    epush(in().nextInt());
                     break;
 
                 case BREAD:
-                    epush(in.nextByte());
+                    epush(in().nextByte());
                     break;
 
                 case RAND:
-                    epush(rand.nextInt(epop()));
+                    epush(random(epop()));
+                    break;
+
+                case FREE:
+                    heap.free(epop());
+                    break;
+
+                case DUMP:
+                    dumpHeap();
                     break;
 
                 case NEG:
@@ -417,76 +603,738 @@ public class MijaVM {
                     break;
 
                 case TRAP:
-                    Error.exit(Error.values()[getByte()], pc, instruction.niceName);
-                    break;
+                    throw new VMException(Error.values()[getByte()]);
             }
         }
     }
 
-    private static void error(String msg) {
-        System.err.println("Error: " + msg);
-        System.exit(1);
+    /**
+     * Loops keeping the stack tops in locals store them first, so the dump has every root
+     */
+    void dumpHeap() {
+        try {
+            HeapDump.write(this, dumpPath);
+        } catch (IOException e) {
+            throw new VMException(Error.RUNTIME, "Cannot write the heap dump: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Code that did not pass the Verifier runs on the checked decoded loop
+     */
+    private void executeClosures() {
+        ClosureCode code = image.closureCode();
+
+        if (code != null) {
+            code.execute(this);
+        } else {
+            executeDecoded(image.decoded, image.decoded.entry);
+        }
+    }
+
+    private void executeDecoded() {
+        if (image.maxDepths != null) {
+            VerifiedInterpreter.execute(this, image.decoded, image.maxDepths);
+        } else {
+            executeDecoded(image.decoded, image.decoded.entry);
+        }
+    }
+
+    /**
+     * Runs pre-decoded code from entry, stack pointers are kept in locals and written back when the loop exits.
+     * The loop also exits on a return to address -1, that is how compiled code calls interpreted functions.
+     * With the JIT, calls and loop back edges are counted and go to compiled code once it exists.
+     */
+    private void executeDecoded(DecodedCode decoded, int entry) {
+        int[] estack = this.estack;     // Reloaded after growing and after calls to compiled code, which may grow them
+        int[] fstack = this.fstack;
+        final int[] code = decoded.code;
+        final int[] strings = decoded.stringLengths;
+        final Jit jit = this.jit;
+
+        int ip = entry;
+        int at = ip;    // Start of the current instruction
+        int sp = esp;
+        int bp = fbp;
+        int fp = fsp;
+        long executed = 0;
+
+        try {
+            while (true) {
+                at = ip;
+                executed++;
+
+                switch (code[ip++]) {
+                    /* Loading and storing */
+
+                    case Op.NOP:
+                        break;
+
+                    case Op.CONST:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp++] = code[ip++];
+                        break;
+
+                    case Op.LOAD:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp++] = fstack[bp + code[ip++]];
+                        break;
+
+                    case Op.STORE:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        fstack[bp + code[ip++]] = estack[--sp];
+                        break;
+
+                    case Op.LOAD_GLOBAL:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp++] = globalData[code[ip++]];
+                        break;
+
+                    case Op.STORE_GLOBAL:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        globalData[code[ip++]] = estack[--sp];
+                        break;
+
+                    /* Structs */
+
+                    case Op.LOAD_FIELD:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        estack[sp - 1] = loadField(estack[sp - 1], code[ip++]);
+                        break;
+
+                    case Op.STORE_FIELD:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        storeField(estack[sp], code[ip++], estack[sp + 1]);
+                        break;
+
+                    case Op.LOAD_FIELD_LOCAL:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp++] = loadField(fstack[bp + code[ip]], code[ip + 1]);
+                        ip += 2;
+                        break;
+
+                    case Op.NEW:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        esp = sp;
+                        fsp = fp;
+                        estack[sp++] = newStruct(code[ip++], decoded.sourceAddress[at]);
+                        break;
+
+                    /* Arrays */
+
+                    case Op.NEW_ARRAY:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        esp = sp;
+                        fsp = fp;
+                        estack[sp - 1] = newArray(estack[sp - 1], code[ip++], decoded.sourceAddress[at]);
+                        break;
+
+                    case Op.ARRAY_LOAD:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] = arrayLoad(estack[sp - 1], estack[sp]);
+                        break;
+
+                    case Op.ARRAY_STORE:
+                        if (sp < 3) error("Tried to pop empty expression stack");
+                        sp -= 3;
+                        arrayStore(estack[sp], estack[sp + 1], estack[sp + 2]);
+                        break;
+
+                    case Op.BARRAY_LOAD:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] = barrayLoad(estack[sp - 1], estack[sp]);
+                        break;
+
+                    case Op.BARRAY_STORE:
+                        if (sp < 3) error("Tried to pop empty expression stack");
+                        sp -= 3;
+                        barrayStore(estack[sp], estack[sp + 1], estack[sp + 2]);
+                        break;
+
+                    case Op.LENGTH:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        estack[sp - 1] = length(estack[sp - 1]);
+                        break;
+
+                    case Op.LOAD_STRING:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        int string = code[ip++];
+                        esp = sp;
+                        fsp = fp;
+                        estack[sp++] = newString(decoded.strings[string], strings[string], decoded.sourceAddress[at]);
+                        break;
+
+                    /* Operations */
+
+                    case Op.ADD:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] += estack[sp];
+                        break;
+
+                    case Op.SUB:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] -= estack[sp];
+                        break;
+
+                    case Op.MUL:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] *= estack[sp];
+                        break;
+
+                    case Op.DIV:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] /= estack[sp];
+                        break;
+
+                    case Op.REM:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] %= estack[sp];
+                        break;
+
+                    case Op.SHL:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] <<= estack[sp];
+                        break;
+
+                    case Op.SHR:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp--;
+                        estack[sp - 1] >>= estack[sp];
+                        break;
+
+                    case Op.NEG:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        estack[sp - 1] = -estack[sp - 1];
+                        break;
+
+                    case Op.INC:
+                        fstack[bp + code[ip]] += code[ip + 1];
+                        ip += 2;
+                        break;
+
+                    case Op.DUP:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp] = estack[sp - 1];
+                        sp++;
+                        break;
+
+                    case Op.DUP2:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        if (sp > estack.length - 2) estack = growExpressionStack(sp + 2);
+                        estack[sp] = estack[sp - 2];
+                        estack[sp + 1] = estack[sp - 1];
+                        sp += 2;
+                        break;
+
+                    case Op.POP:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        sp--;
+                        break;
+
+                    /* Jumps */
+
+                    case Op.JMP:
+                        instructions += executed;
+                        executed = 0;
+
+                        if (jit != null && code[ip] < ip) {
+                            CompiledFunction function = jit.backEdge(code[ip]);
+
+                            if (function != null) {
+                                esp = sp;
+                                fbp = bp;
+                                fsp = fp;
+
+                                int value = function.enterLoop(code[ip], this, fstack, bp);
+                                estack = this.estack;
+                                fstack = this.fstack;
+
+                                if (function.returnsValue) {
+                                    if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                                    estack[sp++] = value;
+                                }
+
+                                // Exit and return of the function
+                                fp = bp;
+                                bp = fstack[--fp];
+                                if (fp == 0) return;
+                                ip = fstack[--fp];
+                                if (ip < 0) return;
+                                break;
+                            }
+                        }
+
+                        ip = code[ip];
+                        break;
+
+                    case Op.JEQ:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        ip = estack[sp] == estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JNE:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        ip = estack[sp] != estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JGT:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        ip = estack[sp] >  estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JLE:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        ip = estack[sp] <= estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JLT:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        ip = estack[sp] <  estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JGE:
+                        if (sp < 2) error("Tried to pop empty expression stack");
+                        sp -= 2;
+                        ip = estack[sp] >= estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JZ:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        ip = estack[--sp] == 0 ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JNZ:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        ip = estack[--sp] != 0 ? code[ip] : ip + 1;
+                        break;
+
+                    /* Local compared with a constant */
+
+                    case Op.JEQ_LC:
+                        ip = fstack[bp + code[ip + 1]] == code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JNE_LC:
+                        ip = fstack[bp + code[ip + 1]] != code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JGT_LC:
+                        ip = fstack[bp + code[ip + 1]] >  code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JLE_LC:
+                        ip = fstack[bp + code[ip + 1]] <= code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JLT_LC:
+                        ip = fstack[bp + code[ip + 1]] <  code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JGE_LC:
+                        ip = fstack[bp + code[ip + 1]] >= code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    /* Functions */
+
+                    case Op.CALL:
+                        if (jit != null) {
+                            CompiledFunction function = jit.call(code[ip]);
+
+                            if (function != null) {
+                                if (sp < function.params) error("Tried to pop empty expression stack");
+                                sp -= function.params;
+
+                                esp = sp;
+                                fbp = bp;
+                                fsp = fp;
+
+                                int value = function.invoke(this, estack, sp);
+                                estack = this.estack;
+                                fstack = this.fstack;
+
+                                if (function.returnsValue) {
+                                    if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                                    estack[sp++] = value;
+                                }
+
+                                ip++;
+                                break;
+                            }
+                        }
+
+                        if (fp == fstack.length) fstack = growFrameStackForCall(fp + 1, decoded.sourceAddress[code[ip]]);
+                        fstack[fp++] = ip + 1;
+                        ip = code[ip];
+                        break;
+
+                    case Op.RETURN:
+                        if (fp == 0) return; // no caller = main, exit
+                        ip = fstack[--fp];
+                        if (ip < 0) return;
+                        break;
+
+                    case Op.ENTER:
+                        called(fp, sp);
+                        instructions += executed;
+                        executed = 0;
+
+                        int paramsCount = code[ip++];
+                        int frameSize = paramsCount + code[ip++];
+
+                        if (fp + 1 + frameSize > fstack.length) fstack = growFrameStack(fp + 1 + frameSize);
+                        if (sp < paramsCount) error("Tried to pop empty expression stack");
+
+                        fstack[fp++] = bp;  // save base pointer
+                        bp = fp;
+
+                        // Parameters come from estack, the rest of the frame is zeroed
+                        sp -= paramsCount;
+                        System.arraycopy(estack, sp, fstack, fp, paramsCount);
+                        Arrays.fill(fstack, fp + paramsCount, fp + frameSize, 0);
+                        fp += frameSize;
+                        fbp = bp;
+                        break;
+
+                    case Op.EXIT:
+                        fp = bp;
+                        bp = fstack[--fp];
+                        fbp = bp;
+                        break;
+
+                    /* IO */
+
+                    case Op.READ:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp++] = in().nextInt();
+                        break;
+
+                    case Op.BREAD:
+                        if (sp == estack.length) estack = growExpressionStack(sp + 1);
+                        estack[sp++] = in().nextByte();
+                        break;
+
+                    case Op.PRINT:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        out.print(estack[--sp]);
+                        break;
+
+                    case Op.BPRINT:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        out.print((char) estack[--sp]);
+                        break;
+
+                    case Op.PRINTS:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        printString(estack[--sp]);
+                        break;
+
+                    case Op.RAND:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        estack[sp - 1] = random(estack[sp - 1]);
+                        break;
+
+                    case Op.FREE:
+                        if (sp == 0) error("Tried to pop empty expression stack");
+                        heap.free(estack[--sp]);
+                        break;
+
+                    case Op.DUMP:
+                        esp = sp;
+                        fsp = fp;
+                        dumpHeap();
+                        break;
+
+                    case Op.TRAP:
+                        throw new VMException(Error.values()[code[ip]]);
+                }
+            }
+        } catch (VMException e) {
+            throw e.at(decoded.sourceAddress[at], Op.name(code[at]));
+        } catch (ArithmeticException e) {
+            // Division by zero, in compiled code too
+            throw new VMException(Error.DIVISION_BY_ZERO).at(decoded.sourceAddress[at], Op.name(code[at]));
+        } catch (StackOverflowError e) {
+            // Compiled code recursed deeper than the JVM stack goes
+            throw new VMException(Error.STACK_OVERFLOW, "Frame stack overflow").at(decoded.sourceAddress[at], Op.name(code[at]));
+        } finally {
+            esp = sp;
+            fbp = bp;
+            fsp = fp;
+            instructions += executed;
+        }
+    }
+
+    /**
+     * Runs an interpreted function for compiled code, on top of the stacks the caller left
+     */
+    int interpret(int entry, boolean returnsValue, int[] args) {
+        if (esp + args.length > estack.length) growExpressionStack(esp + args.length);
+        if (fsp == fstack.length) growFrameStack(fsp + 1);
+
+        System.arraycopy(args, 0, estack, esp, args.length);
+        esp += args.length;
+
+        // It may have been compiled since the call site was linked
+        CompiledFunction function = jit.call(entry);
+        if (function != null) {
+            esp -= args.length;
+            return function.invoke(this, estack, esp);
+        }
+
+        fstack[fsp++] = -1;
+        executeDecoded(image.decoded, entry);
+
+        return returnsValue ? estack[--esp] : 0;
+    }
+
+    /**
+     * Compiled functions keep their frames on the JVM stack, they take the same space here so
+     * recursion overflows where it would in the interpreter, at the ENTER at address, and copy their references
+     * into it for the collector
+     *
+     * @return start of the frame
+     */
+    int reserveFrame(int size, int address) {
+        if (fsp + size > fstack.length) {
+            try {
+                growFrameStack(fsp + size);
+            } catch (VMException e) {
+                throw e.at(address, "enter");
+            }
+        }
+
+        Arrays.fill(fstack, fsp, fsp + size, 0);
+        fsp += size;
+        return fsp - size;
+    }
+
+    void releaseFrame(int size) {
+        fsp -= size;
+    }
+
+    void root(int value) {
+        epush(value);
+    }
+
+    void unroot(int count) {
+        esp -= count;
+    }
+
+    /**
+     * Input of the program, output so far is flushed so prompts show before it blocks
+     */
+    Input in() {
+        out.flush();
+
+        if (in == null) {
+            in = Input.of(input);
+        }
+
+        return in;
+    }
+
+    /**
+     * Stacks grow on demand up to their limits, engines keeping a stack in a local take the one returned
+     *
+     * @return stack with room for size words
+     */
+    int[] growFrameStack(int size) {
+        if (size > sizes.frameStack) overflow("Frame stack overflow");
+        fstack = Arrays.copyOf(fstack, grownSize(fstack.length, size, sizes.frameStack));
+        return fstack;
+    }
+
+    /**
+     * Value of rand(bound), from 0 up to the bound, which has to be positive
+     */
+    int random(int bound) {
+        if (bound <= 0) throw new VMException(Error.INVALID_ARGUMENT, "Bound of rand has to be positive, it was " + bound);
+        return rand.nextInt(bound);
+    }
+
+    /**
+     * Grows the frame stack for a call to the function at address, an overflow is reported at its ENTER
+     * as every engine reports a frame that does not fit
+     */
+    int[] growFrameStackForCall(int size, int address) {
+        try {
+            return growFrameStack(size);
+        } catch (VMException e) {
+            throw e.at(address, "enter");
+        }
+    }
+
+    int[] growExpressionStack(int size) {
+        if (size > sizes.expressionStack) overflow("Expression stack overflow");
+        estack = Arrays.copyOf(estack, grownSize(estack.length, size, sizes.expressionStack));
+        return estack;
+    }
+
+    private static int grownSize(int length, int size, int limit) {
+        return (int) Math.min(limit, Math.max(size, 2L * length));
     }
 
-    private static void epush(int x) {
-        if (esp == ESTACK_SIZE_WORDS) error("Expression stack overflow");
+    static void overflow(String msg) {
+        throw new VMException(Error.STACK_OVERFLOW, msg);
+    }
+
+    static void error(String msg) {
+        throw new VMException(Error.RUNTIME, msg);
+    }
+
+    private void epush(int x) {
+        if (esp == estack.length) growExpressionStack(esp + 1);
         estack[esp++] = x;
     }
 
-    private static int epop() {
+    private int epop() {
         if (esp == 0) error("Tried to pop empty expression stack");
         return estack[--esp];
     }
 
-    private static void fpush(int x) {
-        if (fsp == FSTACK_SIZE_WORDS) error("Frame stack overflow");
+    private void fpush(int x) {
+        if (fsp == fstack.length) growFrameStack(fsp + 1);
         fstack[fsp++] = x;
     }
 
-    private static int fpop() {
+    private int fpop() {
         if (fsp == 0) error("Tried to pop empty frame stack");
         return fstack[--fsp];
     }
 
 
-    private static byte getByte() {
+    private byte getByte() {
         return codeData[pc++];
     }
 
-    private static byte getByte(int address) {
-        return codeData[address];
-    }
-
-    private static short getShort() {
+    private short getShort() {
         return (short) (((short) getByte() << 8) | (getByte() & 0b11111111));
     }
 
-    private static short getShort(int address) {
-        return (short) (((short) getByte(address) << 8) | (getByte(address + 1) & 0b11111111));
-    }
-
-    private static int getWord() {
+    private int getWord() {
         return (getShort() << 16) | (getShort() & 0b11111111_11111111);
     }
 
-    private static int getWord(int address) {
-        return (getShort(address) << 16) | (getShort(address + 2) & 0b11111111_11111111);
+    /* Condition of a jump, a is the first operand */
+    private static boolean compare(Instruction jump, int a, int b) {
+        switch (jump) {
+            case JEQ: return a == b;
+            case JNE: return a != b;
+            case JGT: return a > b;
+            case JLE: return a <= b;
+            case JLT: return a < b;
+            case JGE: return a >= b;
+            default:
+                error("Illegal jump condition " + jump.niceName);
+                return false;
+        }
     }
 
+
+    /* Heap, shared by all engines */
+
     /**
-     * Allocate n blocks of memory, size bytes each
+     * Word arrays have an element per word, char arrays pack 4 elements in a word.
+     * Site is the address of the allocating instruction, its reference map tells if the elements are references.
      */
-    private static int malloc(int size, int n) {
-        int address = freep;
-        int bytes = size * n;
-        int words = (bytes + 3) / 4;
+    int newArray(int length, int elementSize, int site) {
+        if (length < 0) {
+            throw new VMException(Error.RUNTIME, "Cannot initialize array with <0 elements");
+        }
 
-        freep += words;
+        int kind = elementSize == 1 ? Heap.CHARS
+                : image.maps.site(site) == 0 ? Heap.WORDS
+                : Heap.REFERENCES;
 
-        if (freep >= HEAP_SIZE_WORDS) {
-            Error.exit(Error.HEAP_OVERFLOW, pc, instruction.niceName);
-        }
+        return heap.newArray(length, kind, site);
+    }
 
+    int newString(int[] words, int length, int site) {
+        int address = heap.newArray(length, Heap.CHARS, site);
+        System.arraycopy(words, 0, heap.words, address - Heap.BASE, words.length);
         return address;
     }
+
+    int newStruct(int fieldCount, int site) {
+        return heap.newStruct(fieldCount, image.maps.site(site), site);
+    }
+
+    int loadField(int address, int field) {
+        if (address == 0) throw new VMException(Error.NULL_POINTER);
+        return heap.words[address - Heap.BASE + field];
+    }
+
+    void storeField(int address, int field, int value) {
+        if (address == 0) throw new VMException(Error.NULL_POINTER);
+        heap.words[address - Heap.BASE + field] = value;
+    }
+
+    int arrayLoad(int address, int index) {
+        checkIndex(address, index);
+        return heap.words[address - Heap.BASE + index];
+    }
+
+    void arrayStore(int address, int index, int value) {
+        checkIndex(address, index);
+        heap.words[address - Heap.BASE + index] = value;
+    }
+
+    int barrayLoad(int address, int index) {
+        checkIndex(address, index);
+
+        int word = heap.words[address - Heap.BASE + index / 4];
+        int shiftAmount = 8 * (3 - index % 4);
+
+        return (byte) (word >> shiftAmount);
+    }
+
+    void barrayStore(int address, int index, int value) {
+        checkIndex(address, index);
+
+        int word = heap.words[address - Heap.BASE + index / 4];
+        int shiftAmount = 8 * (3 - index % 4);
+
+        int insertValue = (value & 0xff) << shiftAmount;
+        int clearByteMask = ~(0xff << shiftAmount);
+
+        heap.words[address - Heap.BASE + index / 4] = word & clearByteMask | insertValue;
+    }
+
+    int length(int address) {
+        if (address == 0) throw new VMException(Error.NULL_POINTER);
+        return heap.words[address - Heap.BASE - 1];
+    }
+
+    private void checkIndex(int address, int index) {
+        if (address == 0) throw new VMException(Error.NULL_POINTER);
+
+        int length = heap.words[address - Heap.BASE - 1];
+
+        if (index < 0 || index >= length) {
+            throw new VMException(Error.INDEX_OUT_OF_BOUNDS, String.format("Index %d for length %d", index, length));
+        }
+    }
+
+    void printString(int address) {
+        int len = length(address);
+
+        for (int i = 0; i < len; i++) {
+            out.print((char) (heap.words[address - Heap.BASE + i / 4] >> (8 * (3 - i % 4)) & 0xff));
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package vm;
+
+/**
+ * Instruction set of pre-decoded code.
+ * Every instruction is an opcode followed by its operands, already widened to ints.
+ * Jump and call targets are absolute indices into the decoded code.
+ */
+final class Op {
+    static final int NOP = 0;
+    static final int CONST = 1;            // value
+    static final int LOAD = 2;             // local
+    static final int STORE = 3;            // local
+    static final int LOAD_GLOBAL = 4;      // global
+    static final int STORE_GLOBAL = 5;     // global
+    static final int LOAD_FIELD = 6;       // field
+    static final int STORE_FIELD = 7;      // field
+    static final int NEW = 8;              // field count
+    static final int NEW_ARRAY = 9;        // element size
+    static final int ARRAY_LOAD = 10;
+    static final int ARRAY_STORE = 11;
+    static final int BARRAY_LOAD = 12;
+    static final int BARRAY_STORE = 13;
+    static final int LENGTH = 14;
+    static final int LOAD_STRING = 15;     // string index
+    static final int ADD = 16;
+    static final int SUB = 17;
+    static final int MUL = 18;
+    static final int DIV = 19;
+    static final int REM = 20;
+    static final int NEG = 21;
+    static final int POP = 22;
+    static final int JMP = 23;             // target
+    static final int JEQ = 24;             // target
+    static final int JNE = 25;             // target
+    static final int JGT = 26;             // target
+    static final int JLE = 27;             // target
+    static final int JLT = 28;             // target
+    static final int JGE = 29;             // target
+    static final int CALL = 30;            // target
+    static final int RETURN = 31;
+    static final int ENTER = 32;           // parameters, locals
+    static final int EXIT = 33;
+    static final int READ = 34;
+    static final int PRINT = 35;
+    static final int BREAD = 36;
+    static final int BPRINT = 37;
+    static final int PRINTS = 38;
+    static final int RAND = 39;
+    static final int TRAP = 40;            // error
+
+    /* Superinstructions */
+    static final int INC = 41;             // local, delta
+    static final int DUP = 42;
+    static final int DUP2 = 43;
+    static final int JZ = 44;              // target
+    static final int JNZ = 45;             // target
+    static final int JEQ_LC = 46;          // target, local, value
+    static final int JNE_LC = 47;          // target, local, value
+    static final int JGT_LC = 48;          // target, local, value
+    static final int JLE_LC = 49;          // target, local, value
+    static final int JLT_LC = 50;          // target, local, value
+    static final int JGE_LC = 51;          // target, local, value
+    static final int LOAD_FIELD_LOCAL = 52; // local, field
+
+    static final int FREE = 53;
+    static final int DUMP = 54;
+    static final int SHL = 55;
+    static final int SHR = 56;
+
+    private static final String[] NAMES = {
+            "nop", "const", "load", "store", "lglobal", "sglobal", "lfield", "sfield",
+            "new", "newarr", "aload", "astore", "baload", "bastore", "length", "load_string",
+            "add", "sub", "mul", "div", "rem", "neg", "pop",
+            "jmp", "jeq", "jne", "jgt", "jle", "jlt", "jge",
+            "call", "return", "enter", "exit",
+            "read", "print", "bread", "bprint", "prints", "rand", "trap",
+            "inc", "dup", "dup2", "jz", "jnz",
+            "jeql", "jnel", "jgtl", "jlel", "jltl", "jgel", "lfieldl",
+            "free", "dump", "shl", "shr"
+    };
+
+    private static final int[] OPERANDS = {
+            0, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 0, 0, 0, 0, 0, 1,
+            0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 1, 1, 1,
+            1, 0, 2, 0,
+            0, 0, 0, 0, 0, 0, 1,
+            2, 0, 0, 1, 1,
+            3, 3, 3, 3, 3, 3, 2,
+            0, 0, 0, 0
+    };
+
+    /* Values taken from and left on the expression stack, call depends on the callee */
+    private static final int[] POPS = {
+            0, 0, 0, 1, 0, 1, 1, 2,
+            0, 1, 2, 3, 2, 3, 1, 0,
+            2, 2, 2, 2, 2, 1, 1,
+            0, 2, 2, 2, 2, 2, 2,
+            0, 0, 0, 0,
+            0, 1, 0, 1, 1, 1, 0,
+            0, 1, 2, 1, 1,
+            0, 0, 0, 0, 0, 0, 0,
+            1, 0, 2, 2
+    };
+
+    private static final int[] PUSHES = {
+            0, 1, 1, 0, 1, 0, 1, 0,
+            1, 1, 1, 0, 1, 0, 1, 1,
+            1, 1, 1, 1, 1, 1, 0,
+            0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0,
+            1, 0, 1, 0, 0, 1, 0,
+            0, 2, 4, 0, 0,
+            0, 0, 0, 0, 0, 0, 1,
+            0, 0, 1, 1
+    };
+
+    private Op() {}
+
+    static String name(int op) {
+        return NAMES[op];
+    }
+
+    /**
+     * Number of code slots the instruction takes, opcode included
+     */
+    static int size(int op) {
+        return 1 + OPERANDS[op];
+    }
+
+    static int pops(int op) {
+        return POPS[op];
+    }
+
+    static int pushes(int op) {
+        return PUSHES[op];
+    }
+
+    /**
+     * Target of a jump is its first operand
+     */
+    static boolean isJump(int op) {
+        return op >= JMP && op <= JGE || op >= JZ && op <= JGE_LC;
+    }
+
+    /**
+     * Execution never continues to the next instruction
+     */
+    static boolean endsFlow(int op) {
+        return op == JMP || op == RETURN || op == TRAP;
+    }
+}
@@ -0,0 +1,82 @@
+package vm;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+/**
+ * Output of a VM. Numbers and characters are written into a buffer without allocating,
+ * the stream gets the buffer when it is full, before the program reads input and when it stops.
+ */
+final class Output {
+    private static final int SIZE = 1 << 16;
+    private static final int MAX_INT_LENGTH = 11;   // "-2147483648"
+
+    private final PrintStream stream;
+    private final Charset charset;
+    private final byte[] buffer = new byte[SIZE];
+    private int count;
+
+    Output(PrintStream stream) {
+        this.stream = stream;
+        this.charset = Charset.defaultCharset(); // What PrintStream encodes characters with
+    }
+
+    void print(int value) {
+        if (count + MAX_INT_LENGTH > SIZE) flushBuffer();
+
+        if (value < 0) {
+            buffer[count++] = '-';
+        }
+
+        // Digits of a negative value, so MIN_VALUE has no positive counterpart to overflow
+        int negative = value < 0 ? value : -value;
+        int end = count + digits(negative);
+
+        for (int i = end - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' - negative % 10);
+            negative /= 10;
+        }
+
+        count = end;
+    }
+
+    private static int digits(int negative) {
+        int digits = 1;
+
+        while (negative <= -10) {
+            negative /= 10;
+            digits++;
+        }
+
+        return digits;
+    }
+
+    void print(char c) {
+        if (c < 0x80) {
+            if (count == SIZE) flushBuffer();
+            buffer[count++] = (byte) c;
+            return;
+        }
+
+        byte[] bytes = String.valueOf(c).getBytes(charset);
+        if (count + bytes.length > SIZE) flushBuffer();
+
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Writes the buffer to the stream and flushes the stream
+     */
+    void flush() {
+        flushBuffer();
+        stream.flush();
+    }
+
+    private void flushBuffer() {
+        if (count == 0) return;
+
+        stream.write(buffer, 0, count);
+        count = 0;
+    }
+}
@@ -0,0 +1,145 @@
+package vm;
+
+import codegen.Instruction;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Exact profile of a run of the switch loop, which gives it the address of every instruction it dispatches.
+ * Instructions are counted by opcode and by address, functions get their calls, instructions and time.
+ * Inclusive time has the callees in it, exclusive time does not, a recursive function counts its outermost calls.
+ * Time is measured at every call and return, so it includes the cost of profiling.
+ */
+final class Profiler implements IntConsumer {
+    private static final int ENTER = Instruction.ENTER.ordinal();
+    private static final int RETURN = Instruction.RETURN.ordinal();
+    private static final int SHOWN_ADDRESSES = 20;
+
+    private final FunctionNames names;
+    private final byte[] codeData;
+    private final Instruction[] instructions = Instruction.values();
+
+    private final long[] opcodes = new long[instructions.length];
+    private final long[] addresses;         // By address
+    private final int[] owners;             // Function of each address
+
+    /* By address of ENTER */
+    private final long[] calls;
+    private final long[] executed;          // Instructions of the function itself
+    private final long[] inclusive;
+    private final long[] exclusive;
+    private final int[] active;             // Calls on the stack
+
+    /* Calls that did not return */
+    private int[] stack = new int[64];
+    private long[] entered = new long[64];
+    private long[] callees = new long[64];  // Inclusive time of their callees
+    private int depth;
+
+    private final long start = System.nanoTime();
+    private long end;
+    private long total;
+
+    Profiler(ProgramImage image) {
+        int size = image.codeData.length;
+
+        this.names = image.names;
+        this.codeData = image.codeData;
+        this.addresses = new long[size];
+        this.owners = new int[size];
+        this.calls = new long[size];
+        this.executed = new long[size];
+        this.inclusive = new long[size];
+        this.exclusive = new long[size];
+        this.active = new int[size];
+    }
+
+    @Override
+    public void accept(int address) {
+        int op = codeData[address] & 0xff;
+        if (op >= opcodes.length) return; // The loop reports it
+
+        total++;
+        opcodes[op]++;
+        addresses[address]++;
+
+        if (op == ENTER) enter(address, System.nanoTime());
+
+        if (depth > 0) {
+            int function = stack[depth - 1];
+            executed[function]++;
+            owners[address] = function;
+        }
+
+        if (op == RETURN && depth > 0) leave(System.nanoTime());
+    }
+
+    private void enter(int function, long now) {
+        if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+            entered = Arrays.copyOf(entered, depth * 2);
+            callees = Arrays.copyOf(callees, depth * 2);
+        }
+
+        stack[depth] = function;
+        entered[depth] = now;
+        callees[depth] = 0;
+        depth++;
+
+        calls[function]++;
+        active[function]++;
+    }
+
+    private void leave(long now) {
+        depth--;
+
+        int function = stack[depth];
+        long time = now - entered[depth];
+
+        exclusive[function] += time - callees[depth];
+        if (--active[function] == 0) inclusive[function] += time;
+        if (depth > 0) callees[depth - 1] += time;
+    }
+
+    /**
+     * Ends calls a runtime error or the end of main left on the stack
+     */
+    void finish() {
+        end = System.nanoTime();
+        while (depth > 0) leave(end);
+    }
+
+    void report(PrintStream out) {
+        long time = Math.max(1, end - start);
+
+        out.printf("%nProfile: %,d instructions in %.3f ms%n%n", total, time / 1e6);
+
+        out.printf("%-24s %12s %14s %14s %8s %16s%n", "function", "calls", "inclusive ms", "exclusive ms", "%", "instructions");
+        sorted(calls.length, exclusive).filter(f -> calls[f] > 0).forEach(f -> out.printf("%-24s %,12d %14.3f %14.3f %7.1f%% %,16d%n",
+                names.name(f), calls[f], inclusive[f] / 1e6, exclusive[f] / 1e6, 100.0 * exclusive[f] / time, executed[f]));
+
+        out.printf("%n%-24s %16s %8s%n", "instruction", "count", "%");
+        sorted(opcodes.length, opcodes).filter(op -> opcodes[op] > 0).forEach(op -> out.printf("%-24s %,16d %7.1f%%%n",
+                instructions[op].niceName, opcodes[op], 100.0 * opcodes[op] / total));
+
+        out.printf("%n%-8s %-24s %-16s %16s %8s%n", "address", "function", "instruction", "count", "%");
+        sorted(addresses.length, addresses).filter(a -> addresses[a] > 0).limit(SHOWN_ADDRESSES).forEach(a -> out.printf("%03d      %-24s %-16s %,16d %7.1f%%%n",
+                a, names.name(owners[a]), instructions[codeData[a]].niceName, addresses[a], 100.0 * addresses[a] / total));
+
+        out.flush();
+    }
+
+    /**
+     * Indices of values, highest value first
+     */
+    private static IntStream sorted(int length, long[] values) {
+        return IntStream.range(0, length)
+                .boxed()
+                .sorted(Comparator.comparingLong((Integer i) -> values[i]).reversed())
+                .mapToInt(Integer::intValue);
+    }
+}
@@ -0,0 +1,124 @@
+package vm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Loaded and validated program. It is never modified after loading,
+ * so any number of VMs can run the same image at the same time.
+ */
+public final class ProgramImage {
+    static final int CODE_START_ADDRESS = 10; // After header
+    private static final int HEADER_MAIN_ADDRESS = 2;
+    private static final int HEADER_SIZE_ADDRESS = 6;
+    private static final int MAX_CODE_SIZE = 3000;    // The maps after the code may take the file past it
+
+    final byte[] codeData;
+    final int main;
+    final int codeEnd;
+    final DecodedCode decoded;
+    final ReferenceMaps maps;      // After the code
+    final FunctionNames names;     // After the maps
+    final int globals;             // Words of global data the code uses
+    final int[] maxDepths;         // By ENTER of each function, null unless the code passed the Verifier
+
+    private volatile RegisterCode registerCode;
+    private volatile ClosureCode closureCode;
+    private Jit jit;
+
+    private ProgramImage(byte[] codeData) {
+        if (codeData.length < CODE_START_ADDRESS || codeData[0] != 'M' || codeData[1] != 'J') {
+            throw new IllegalArgumentException("Illegal file format");
+        }
+
+        this.codeData = codeData;
+        this.main = DecodedCode.getWord(codeData, HEADER_MAIN_ADDRESS);
+        this.codeEnd = Math.min(DecodedCode.getWord(codeData, HEADER_SIZE_ADDRESS) + 1, codeData.length);
+
+        if (codeEnd > MAX_CODE_SIZE) {
+            throw new IllegalArgumentException("File to large");
+        }
+
+        this.decoded = DecodedCode.decode(codeData, CODE_START_ADDRESS, codeEnd, main);
+        this.maps = ReferenceMaps.read(codeData, codeEnd, codeEnd);
+        this.names = FunctionNames.read(codeData, maps.isKnown() ? maps.end : codeEnd, codeEnd);
+        this.globals = globals(decoded);
+        this.maxDepths = verify(decoded);
+    }
+
+    /**
+     * Code that fails verification still runs, on loops that check the stacks
+     */
+    private static int[] verify(DecodedCode decoded) {
+        try {
+            return Verifier.verify(decoded);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int globals(DecodedCode decoded) {
+        int[] code = decoded.code;
+        int globals = 0;
+
+        for (int i = 0; i < code.length; i += Op.size(code[i])) {
+            if (code[i] != Op.LOAD_GLOBAL && code[i] != Op.STORE_GLOBAL) continue;
+
+            if (code[i + 1] < 0) {
+                throw new IllegalArgumentException("Illegal global at " + decoded.sourceAddress[i]);
+            }
+
+            globals = Math.max(globals, code[i + 1] + 1);
+        }
+
+        return globals;
+    }
+
+    public static ProgramImage load(String filePath) throws IOException {
+        return new ProgramImage(Files.readAllBytes(new File(filePath).toPath()));
+    }
+
+    public static ProgramImage of(byte[] objectFile) {
+        return new ProgramImage(objectFile.clone());
+    }
+
+    /**
+     * Translated on first use, racing threads translate the same code and either result is fine
+     */
+    RegisterCode registerCode() {
+        RegisterCode code = registerCode;
+
+        if (code == null) {
+            code = RegisterCode.translate(decoded);
+            registerCode = code;
+        }
+
+        return code;
+    }
+
+    /**
+     * Compiled on first use like register code, null if the code did not pass the Verifier
+     */
+    ClosureCode closureCode() {
+        ClosureCode code = closureCode;
+
+        if (code == null && maxDepths != null) {
+            code = ClosureCode.compile(decoded);
+            closureCode = code;
+        }
+
+        return code;
+    }
+
+    /**
+     * Compiled code and the counters that lead to it are shared by all VMs running the image
+     */
+    synchronized Jit jit() {
+        if (jit == null) {
+            jit = new Jit(decoded, maps);
+        }
+
+        return jit;
+    }
+}
@@ -0,0 +1,137 @@
+package vm;
+
+import java.util.Arrays;
+
+/**
+ * Reference maps the compiler writes after the code, see codegen.ReferenceMap for the format.
+ * Object files without them get NONE, then every word may be a reference.
+ */
+final class ReferenceMaps {
+    static final ReferenceMaps NONE = new ReferenceMaps(null, new boolean[0][], new int[0], new boolean[0][], new boolean[0], 0);
+
+    static final int UNKNOWN = -1;
+
+    private final boolean[] globals;
+    private final boolean[][] layouts;
+    private final int[] sites;                  // By address of NEW and NEW_ARRAY
+    private final boolean[][] locals;           // By address of ENTER
+    private final boolean[] returnsReference;   // By address of ENTER
+    final int end;                              // Address after the maps
+
+    private ReferenceMaps(boolean[] globals, boolean[][] layouts, int[] sites, boolean[][] locals, boolean[] returnsReference,
+                          int end) {
+        this.globals = globals;
+        this.layouts = layouts;
+        this.sites = sites;
+        this.locals = locals;
+        this.returnsReference = returnsReference;
+        this.end = end;
+    }
+
+    /**
+     * Reads the maps at address, code is in [CODE_START_ADDRESS, codeEnd)
+     */
+    static ReferenceMaps read(byte[] data, int address, int codeEnd) {
+        if (address + 2 > data.length || data[address] != 'R' || data[address + 1] != 'M') {
+            return NONE;
+        }
+
+        try {
+            Reader in = new Reader(data, address + 2);
+
+            boolean[] globals = in.bitmap(in.getShort());
+
+            boolean[][] layouts = new boolean[in.getShort()][];
+            for (int i = 0; i < layouts.length; i++) {
+                layouts[i] = in.bitmap(in.getByte());
+            }
+
+            int[] sites = new int[codeEnd];
+            Arrays.fill(sites, UNKNOWN);
+            for (int i = in.getShort(); i > 0; i--) {
+                int site = in.getShort();
+                int info = in.getShort();
+                if (site >= codeEnd || info >= Math.max(layouts.length, 2)) throw new IllegalArgumentException();
+                sites[site] = info;
+            }
+
+            boolean[][] locals = new boolean[codeEnd][];
+            boolean[] returnsReference = new boolean[codeEnd];
+            for (int i = in.getShort(); i > 0; i--) {
+                int function = in.getShort();
+                if (function >= codeEnd) throw new IllegalArgumentException();
+                returnsReference[function] = in.getByte() != 0;
+                locals[function] = in.bitmap(in.getByte());
+            }
+
+            return new ReferenceMaps(globals, layouts, sites, locals, returnsReference, in.address);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Illegal reference maps");
+        }
+    }
+
+    boolean isKnown() {
+        return globals != null;
+    }
+
+    /**
+     * Unknown globals may all be references
+     */
+    boolean isReferenceGlobal(int global) {
+        return globals == null || global < globals.length && globals[global];
+    }
+
+    /**
+     * Layout index of a NEW, or kind of elements of a NEW_ARRAY: 1 references, 0 not, UNKNOWN when there are no maps
+     */
+    int site(int address) {
+        return address < sites.length ? sites[address] : UNKNOWN;
+    }
+
+    /**
+     * Which fields of a struct with the layout are references, null if the layout is unknown
+     */
+    boolean[] layout(int layout) {
+        return layout >= 0 && layout < layouts.length ? layouts[layout] : null;
+    }
+
+    /**
+     * Which parameters and locals of the function at address are references, null if it is unknown
+     */
+    boolean[] locals(int function) {
+        return function < locals.length ? locals[function] : null;
+    }
+
+    boolean returnsReference(int function) {
+        return function >= locals.length || locals[function] == null || returnsReference[function];
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int address;
+
+        Reader(byte[] data, int address) {
+            this.data = data;
+            this.address = address;
+        }
+
+        int getByte() {
+            return data[address++] & 0xff;
+        }
+
+        int getShort() {
+            return getByte() << 8 | getByte();
+        }
+
+        boolean[] bitmap(int length) {
+            boolean[] bits = new boolean[length];
+
+            for (int i = 0; i < length; i++) {
+                bits[i] = (data[address + i / 8] >> (i % 8) & 1) != 0;
+            }
+
+            address += (length + 7) / 8;
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package vm;
+
+/**
+ * Instruction set of register code, operands d, a, b, s are registers of the current frame:
+ * parameters, then locals, then one register for every expression stack slot.
+ * Instructions ending with I take an int value in place of their last register.
+ */
+final class RegOp {
+    static final int MOV = 0;          // d s
+    static final int MOVI = 1;         // d value
+    static final int LDG = 2;          // d global
+    static final int STG = 3;          // global s
+    static final int LDF = 4;          // d a field
+    static final int STF = 5;          // a field s
+    static final int NEW = 6;          // d field count
+    static final int NEWA = 7;         // d length element size
+    static final int ALD = 8;          // d array index
+    static final int AST = 9;          // array index s
+    static final int BALD = 10;        // d array index
+    static final int BAST = 11;        // array index s
+    static final int LEN = 12;         // d array
+    static final int LDS = 13;         // d string
+    static final int ADD = 14;         // d a b
+    static final int ADDI = 15;        // d a value
+    static final int SUB = 16;
+    static final int SUBI = 17;
+    static final int MUL = 18;
+    static final int MULI = 19;
+    static final int DIV = 20;
+    static final int DIVI = 21;
+    static final int REM = 22;
+    static final int REMI = 23;
+    static final int NEG = 24;         // d a
+    static final int JMP = 25;         // target
+    static final int JEQ = 26;         // a b target
+    static final int JEQI = 27;        // a value target
+    static final int JNE = 28;
+    static final int JNEI = 29;
+    static final int JGT = 30;
+    static final int JGTI = 31;
+    static final int JLE = 32;
+    static final int JLEI = 33;
+    static final int JLT = 34;
+    static final int JLTI = 35;
+    static final int JGE = 36;
+    static final int JGEI = 37;
+    static final int CALL = 38;        // target first argument argument count d
+    static final int ENTER = 39;       // frame size parameters
+    static final int RET = 40;         // s
+    static final int RETI = 41;        // value
+    static final int RETV = 42;
+    static final int READ = 43;        // d
+    static final int BREAD = 44;       // d
+    static final int PRINT = 45;       // s
+    static final int BPRINT = 46;      // s
+    static final int PRINTS = 47;      // s
+    static final int RAND = 48;        // d a
+    static final int TRAP = 49;        // error
+    static final int FREE = 50;        // s
+    static final int DUMP = 51;
+    static final int SHL = 52;         // d a b
+    static final int SHLI = 53;        // d a value
+    static final int SHR = 54;
+    static final int SHRI = 55;
+
+    private static final int[] OPERANDS = {
+            2, 2, 2, 2, 3, 3, 2, 3,
+            3, 3, 3, 3, 2, 2,
+            3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2,
+            1, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
+            4, 2, 1, 1, 0,
+            1, 1, 1, 1, 1, 2, 1, 1, 0,
+            3, 3, 3, 3
+    };
+
+    private RegOp() {}
+
+    static int size(int op) {
+        return 1 + OPERANDS[op];
+    }
+}
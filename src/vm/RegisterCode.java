@@ -0,0 +1,550 @@
+package vm;
+
+import java.util.Arrays;
+
+/**
+ * Register code translated from decoded stack code, one function at a time.
+ *
+ * Every expression stack slot of a function gets a frame register after its locals.
+ * Constants and locals are not copied to those registers until something needs them there,
+ * so {@code i = i + 1} becomes a single {@code addi i i 1} instead of four stack instructions.
+ * Values are in their slot registers wherever control flow meets and before calls.
+ */
+final class RegisterCode {
+    final int[] code;
+    final int[] source;         // Register code index -> decoded index it was translated from
+    final int entry;
+    final DecodedCode decoded;
+
+    private RegisterCode(int[] code, int[] source, int entry, DecodedCode decoded) {
+        this.code = code;
+        this.source = source;
+        this.entry = entry;
+        this.decoded = decoded;
+    }
+
+    static RegisterCode translate(DecodedCode decoded) {
+        return new Translator(decoded, FunctionInfo.analyze(decoded)).translate();
+    }
+
+    private static final class Translator {
+        /* Where the value of an expression stack slot is */
+        private static final int SLOT = 0;      // Its own register
+        private static final int LOCAL = 1;     // Still in a local
+        private static final int VALUE = 2;     // Constant, not loaded anywhere yet
+
+        private final DecodedCode decoded;
+        private final FunctionInfo[] functions;
+
+        private int[] code = new int[256];
+        private int[] source = new int[256];
+        private int size;
+
+        private final int[] index;              // Decoded index -> register code index
+        private int[] fixups = new int[64];     // Operand positions holding decoded jump targets
+        private int fixupCount;
+
+        private FunctionInfo function;
+        private int slotBase;                   // Register of the first stack slot
+        private int current;                    // Decoded index being translated
+
+        private int[] kind = new int[0];
+        private int[] value = new int[0];
+        private int depth;
+
+        private int producer = -1;              // Last instruction that wrote the top slot register
+
+        Translator(DecodedCode decoded, FunctionInfo[] functions) {
+            this.decoded = decoded;
+            this.functions = functions;
+
+            index = new int[decoded.code.length + 1];
+            Arrays.fill(index, -1);
+        }
+
+        RegisterCode translate() {
+            int[] dcode = decoded.code;
+            boolean[] leader = new boolean[dcode.length + 1];
+
+            for (int i = 0; i < dcode.length; i += Op.size(dcode[i])) {
+                if (Op.isJump(dcode[i])) leader[dcode[i + 1]] = true;
+            }
+
+            for (FunctionInfo f : functions) {
+                function = f;
+                slotBase = f.params + f.locals;
+                kind = new int[f.maxDepth() + 2];     // Fused compares push their operands here
+                value = new int[f.maxDepth() + 2];
+
+                boolean flowing = false;
+
+                for (int i = f.start; i < f.end; i += Op.size(dcode[i])) {
+                    if (!f.isReachable(i)) {
+                        flowing = false;
+                        continue;
+                    }
+
+                    if (flowing && leader[i]) {
+                        spillAll();
+                    }
+
+                    if (!flowing || leader[i]) {
+                        depth = f.depthAt(i);
+                        Arrays.fill(kind, 0, depth, SLOT);
+                        producer = -1;
+                    }
+
+                    current = i;
+                    index[i] = size;
+                    instruction(dcode, i, leader);
+
+                    flowing = !Op.endsFlow(dcode[i]);
+                }
+            }
+
+            for (int i = 0; i < fixupCount; i++) {
+                int at = fixups[i];
+                code[at] = index[code[at]];
+            }
+
+            return new RegisterCode(Arrays.copyOf(code, size), Arrays.copyOf(source, size), index[decoded.entry], decoded);
+        }
+
+        private void instruction(int[] dcode, int i, boolean[] leader) {
+            int op = dcode[i];
+            int operand = Op.size(op) > 1 ? dcode[i + 1] : 0;
+
+            switch (op) {
+                case Op.NOP:
+                    break;
+
+                case Op.CONST:
+                    push(VALUE, operand);
+                    break;
+
+                case Op.LOAD:
+                    push(LOCAL, operand);
+                    break;
+
+                case Op.STORE:
+                    store(operand);
+                    break;
+
+                case Op.LOAD_GLOBAL:
+                    result(RegOp.LDG, operand);
+                    break;
+
+                case Op.STORE_GLOBAL:
+                    int s = register(depth - 1);
+                    pop(1);
+                    emit(RegOp.STG, operand, s);
+                    break;
+
+                case Op.LOAD_FIELD:
+                    int a = register(depth - 1);
+                    pop(1);
+                    result(RegOp.LDF, a, operand);
+                    break;
+
+                case Op.STORE_FIELD:
+                    s = register(depth - 1);
+                    a = register(depth - 2);
+                    pop(2);
+                    emit(RegOp.STF, a, operand, s);
+                    break;
+
+                case Op.NEW:
+                    result(RegOp.NEW, operand);
+                    break;
+
+                case Op.NEW_ARRAY:
+                    a = register(depth - 1);
+                    pop(1);
+                    result(RegOp.NEWA, a, operand);
+                    break;
+
+                case Op.ARRAY_LOAD:
+                case Op.BARRAY_LOAD:
+                    int b = register(depth - 1);
+                    a = register(depth - 2);
+                    pop(2);
+                    result(op == Op.ARRAY_LOAD ? RegOp.ALD : RegOp.BALD, a, b);
+                    break;
+
+                case Op.ARRAY_STORE:
+                case Op.BARRAY_STORE:
+                    s = register(depth - 1);
+                    b = register(depth - 2);
+                    a = register(depth - 3);
+                    pop(3);
+                    emit(op == Op.ARRAY_STORE ? RegOp.AST : RegOp.BAST, a, b, s);
+                    break;
+
+                case Op.LENGTH:
+                    a = register(depth - 1);
+                    pop(1);
+                    result(RegOp.LEN, a);
+                    break;
+
+                case Op.LOAD_STRING:
+                    result(RegOp.LDS, operand);
+                    break;
+
+                case Op.ADD: case Op.SUB: case Op.MUL: case Op.DIV: case Op.REM: case Op.SHL: case Op.SHR:
+                    arithmetic(op);
+                    break;
+
+                case Op.NEG:
+                    if (kind[depth - 1] == VALUE) {
+                        value[depth - 1] = -value[depth - 1];
+                    } else {
+                        a = register(depth - 1);
+                        pop(1);
+                        result(RegOp.NEG, a);
+                    }
+                    break;
+
+                case Op.POP:
+                    pop(1);
+                    break;
+
+                case Op.INC:
+                    release(operand);
+                    emit(RegOp.ADDI, operand, operand, dcode[i + 2]);
+                    producer = -1;
+                    break;
+
+                case Op.DUP:
+                    duplicate(depth - 1);
+                    break;
+
+                case Op.DUP2:
+                    duplicate(depth - 2);
+                    duplicate(depth - 2);
+                    break;
+
+                case Op.LOAD_FIELD_LOCAL:
+                    result(RegOp.LDF, operand, dcode[i + 2]);
+                    break;
+
+                case Op.JZ: case Op.JNZ:
+                    push(VALUE, 0);
+                    branch(op == Op.JZ ? Op.JEQ : Op.JNE, operand);
+                    break;
+
+                case Op.JEQ_LC: case Op.JNE_LC: case Op.JGT_LC: case Op.JLE_LC: case Op.JLT_LC: case Op.JGE_LC:
+                    push(LOCAL, dcode[i + 2]);
+                    push(VALUE, dcode[i + 3]);
+                    branch(Op.JEQ + op - Op.JEQ_LC, operand);
+                    break;
+
+                case Op.JMP:
+                    spillAll();
+                    emit(RegOp.JMP, operand);
+                    fixup(size - 1);
+                    break;
+
+                case Op.JEQ: case Op.JNE: case Op.JGT: case Op.JLE: case Op.JLT: case Op.JGE:
+                    branch(op, operand);
+                    break;
+
+                case Op.CALL:
+                    FunctionInfo callee = FunctionInfo.find(functions, operand);
+                    int first = depth - callee.params;
+
+                    for (int k = first; k < depth; k++) spill(k);
+                    pop(callee.params);
+
+                    emit(RegOp.CALL, operand, slotBase + first, callee.params, callee.returnsValue ? slotBase + first : -1);
+                    fixup(size - 4);
+
+                    if (callee.returnsValue) push(SLOT, 0);
+                    break;
+
+                case Op.ENTER:
+                    emit(RegOp.ENTER, slotBase + function.maxDepth(), function.params);
+                    break;
+
+                case Op.EXIT:
+                    int next = i + Op.size(op);
+                    if (next >= dcode.length || dcode[next] != Op.RETURN || leader[next]) {
+                        throw new IllegalArgumentException("Exit not followed by return at " + decoded.sourceAddress[i]);
+                    }
+
+                    if (!function.returnsValue) {
+                        emit(RegOp.RETV);
+                    } else if (kind[depth - 1] == VALUE) {
+                        emit(RegOp.RETI, value[depth - 1]);
+                    } else {
+                        emit(RegOp.RET, register(depth - 1));
+                    }
+                    break;
+
+                case Op.RETURN:
+                    if (dcode[i - 1] != Op.EXIT) {
+                        throw new IllegalArgumentException("Return without exit at " + decoded.sourceAddress[i]);
+                    }
+                    break;
+
+                case Op.READ:
+                    result(RegOp.READ);
+                    break;
+
+                case Op.BREAD:
+                    result(RegOp.BREAD);
+                    break;
+
+                case Op.PRINT: case Op.BPRINT: case Op.PRINTS:
+                    s = register(depth - 1);
+                    pop(1);
+                    emit(op == Op.PRINT ? RegOp.PRINT : op == Op.BPRINT ? RegOp.BPRINT : RegOp.PRINTS, s);
+                    break;
+
+                case Op.RAND:
+                    a = register(depth - 1);
+                    pop(1);
+                    result(RegOp.RAND, a);
+                    break;
+
+                case Op.FREE:
+                    s = register(depth - 1);
+                    pop(1);
+                    emit(RegOp.FREE, s);
+                    break;
+
+                case Op.DUMP:
+                    emit(RegOp.DUMP);
+                    break;
+
+                case Op.TRAP:
+                    emit(RegOp.TRAP, operand);
+                    break;
+            }
+        }
+
+        private void store(int local) {
+            int top = depth - 1;
+            int k = kind[top];
+            int v = value[top];
+            pop(1);
+            release(local);
+
+            if (k == VALUE) {
+                emit(RegOp.MOVI, local, v);
+            } else if (k == LOCAL) {
+                if (v != local) emit(RegOp.MOV, local, v);
+            } else if (producer >= 0 && code[producer + 1] == slotBase + top && producer + RegOp.size(code[producer]) == size) {
+                code[producer + 1] = local; // Result goes straight to the local
+            } else {
+                emit(RegOp.MOV, local, slotBase + top);
+            }
+
+            producer = -1;
+        }
+
+        private void arithmetic(int op) {
+            int b = depth - 1;
+            int a = depth - 2;
+
+            if (kind[a] == VALUE && kind[b] == VALUE && (op != Op.DIV && op != Op.REM || value[b] != 0)) {
+                value[a] = fold(op, value[a], value[b]);
+                pop(1);
+                return;
+            }
+
+            int registerOp = op == Op.SHL ? RegOp.SHL : op == Op.SHR ? RegOp.SHR : RegOp.ADD + 2 * (op - Op.ADD);
+
+            if (kind[b] == VALUE) {
+                int v = value[b];
+                int ra = register(a);
+                pop(2);
+                result(registerOp + 1, ra, v);
+            } else if (kind[a] == VALUE && (op == Op.ADD || op == Op.MUL)) {
+                int v = value[a];
+                int rb = register(b);
+                pop(2);
+                result(registerOp + 1, rb, v);
+            } else {
+                int rb = register(b);
+                int ra = register(a);
+                pop(2);
+                result(registerOp, ra, rb);
+            }
+        }
+
+        /**
+         * Slots still waiting for the old value of a local that is about to change get it now
+         */
+        private void release(int local) {
+            for (int i = 0; i < depth; i++) {
+                if (kind[i] == LOCAL && value[i] == local) spill(i);
+            }
+        }
+
+        /**
+         * Pushes a copy of stack slot i, a copy of a slot register refers to that register
+         */
+        private void duplicate(int i) {
+            if (kind[i] == SLOT) {
+                push(LOCAL, slotBase + i);
+            } else {
+                push(kind[i], value[i]);
+            }
+        }
+
+        private static int fold(int op, int a, int b) {
+            switch (op) {
+                case Op.ADD: return a + b;
+                case Op.SUB: return a - b;
+                case Op.MUL: return a * b;
+                case Op.DIV: return a / b;
+                case Op.SHL: return a << b;
+                case Op.SHR: return a >> b;
+                default:     return a % b;
+            }
+        }
+
+        private void branch(int op, int target) {
+            int b = depth - 1;
+            int a = depth - 2;
+
+            if (kind[a] == VALUE && kind[b] == VALUE) {
+                boolean taken = compare(op, value[a], value[b]);
+                pop(2);
+                spillAll();
+
+                if (taken) {
+                    emit(RegOp.JMP, target);
+                    fixup(size - 1);
+                }
+                return;
+            }
+
+            int registerOp = RegOp.JEQ + 2 * (op - Op.JEQ);
+            int ra, rb;
+
+            if (kind[b] == VALUE) {
+                rb = value[b];
+                ra = register(a);
+                registerOp++;
+            } else if (kind[a] == VALUE) {
+                rb = value[a];
+                ra = register(b);
+                registerOp = RegOp.JEQ + 2 * (swapped(op) - Op.JEQ) + 1;
+            } else {
+                rb = register(b);
+                ra = register(a);
+            }
+
+            pop(2);
+            spillAll();
+
+            emit(registerOp, ra, rb, target);
+            fixup(size - 1);
+        }
+
+        private static boolean compare(int op, int a, int b) {
+            switch (op) {
+                case Op.JEQ: return a == b;
+                case Op.JNE: return a != b;
+                case Op.JGT: return a >  b;
+                case Op.JLE: return a <= b;
+                case Op.JLT: return a <  b;
+                default:     return a >= b;
+            }
+        }
+
+        /**
+         * Jump with operands in the other order, a < b is b > a
+         */
+        private static int swapped(int op) {
+            switch (op) {
+                case Op.JGT: return Op.JLT;
+                case Op.JLE: return Op.JGE;
+                case Op.JLT: return Op.JGT;
+                case Op.JGE: return Op.JLE;
+                default:     return op;
+            }
+        }
+
+        /**
+         * Register holding the value of stack slot i, constants are loaded to the slot register
+         */
+        private int register(int i) {
+            switch (kind[i]) {
+                case LOCAL:
+                    return value[i];
+
+                case VALUE:
+                    emit(RegOp.MOVI, slotBase + i, value[i]);
+                    kind[i] = SLOT;
+                    return slotBase + i;
+
+                default:
+                    return slotBase + i;
+            }
+        }
+
+        /**
+         * Moves the value of stack slot i to the slot register
+         */
+        private void spill(int i) {
+            if (kind[i] == LOCAL) {
+                emit(RegOp.MOV, slotBase + i, value[i]);
+                kind[i] = SLOT;
+            } else {
+                register(i);
+            }
+        }
+
+        /**
+         * Where control flow meets values have to be in their slot registers
+         */
+        private void spillAll() {
+            for (int i = 0; i < depth; i++) spill(i);
+        }
+
+        private void push(int k, int v) {
+            kind[depth] = k;
+            value[depth] = v;
+            depth++;
+        }
+
+        private void pop(int n) {
+            depth -= n;
+        }
+
+        /**
+         * Emits an instruction that writes the next free slot register
+         */
+        private void result(int op, int... operands) {
+            int[] instruction = new int[operands.length + 1];
+            instruction[0] = slotBase + depth;
+            System.arraycopy(operands, 0, instruction, 1, operands.length);
+
+            emit(op, instruction);
+            producer = size - RegOp.size(op);
+            push(SLOT, 0);
+        }
+
+        private void emit(int op, int... operands) {
+            if (size + operands.length + 1 > code.length) {
+                code = Arrays.copyOf(code, code.length * 2);
+                source = Arrays.copyOf(source, source.length * 2);
+            }
+
+            source[size] = current;
+            code[size++] = op;
+
+            for (int operand : operands) {
+                source[size] = current;
+                code[size++] = operand;
+            }
+        }
+
+        private void fixup(int at) {
+            if (fixupCount == fixups.length) fixups = Arrays.copyOf(fixups, fixupCount * 2);
+            fixups[fixupCount++] = at;
+        }
+    }
+}
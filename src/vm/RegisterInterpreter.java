@@ -0,0 +1,248 @@
+package vm;
+
+import codegen.Error;
+
+import java.util.Arrays;
+
+
+/**
+ * Runs register code. Frames on the frame stack have the same shape as the ones ENTER builds:
+ * return address, saved base pointer, then registers, so the base pointer points at register 0.
+ */
+final class RegisterInterpreter {
+    private RegisterInterpreter() {}
+
+    static void execute(MijaVM vm, RegisterCode registerCode) {
+        final int[] code = registerCode.code;
+        int[] fs = vm.fstack;           // Reloaded after it grows
+        final int[] globalData = vm.globalData;
+        final DecodedCode decoded = registerCode.decoded;
+
+        int ip = registerCode.entry;
+        int at = ip;
+
+        // Main has nowhere to return to
+        fs[0] = -1;
+        fs[1] = 0;
+        int bp = 2;
+        int fp = 2;
+
+        try {
+            while (true) {
+                at = ip;
+
+                switch (code[ip]) {
+                    case RegOp.MOV:
+                        fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]];
+                        ip += 3;
+                        break;
+
+                    case RegOp.MOVI:
+                        fs[bp + code[ip + 1]] = code[ip + 2];
+                        ip += 3;
+                        break;
+
+                    case RegOp.LDG:
+                        fs[bp + code[ip + 1]] = globalData[code[ip + 2]];
+                        ip += 3;
+                        break;
+
+                    case RegOp.STG:
+                        globalData[code[ip + 1]] = fs[bp + code[ip + 2]];
+                        ip += 3;
+                        break;
+
+                    case RegOp.LDF:
+                        fs[bp + code[ip + 1]] = vm.loadField(fs[bp + code[ip + 2]], code[ip + 3]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.STF:
+                        vm.storeField(fs[bp + code[ip + 1]], code[ip + 2], fs[bp + code[ip + 3]]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.NEW:
+                        vm.fsp = fp;
+                        fs[bp + code[ip + 1]] = vm.newStruct(code[ip + 2], decoded.sourceAddress[registerCode.source[at]]);
+                        ip += 3;
+                        break;
+
+                    case RegOp.NEWA:
+                        vm.fsp = fp;
+                        fs[bp + code[ip + 1]] = vm.newArray(fs[bp + code[ip + 2]], code[ip + 3], decoded.sourceAddress[registerCode.source[at]]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.ALD:
+                        fs[bp + code[ip + 1]] = vm.arrayLoad(fs[bp + code[ip + 2]], fs[bp + code[ip + 3]]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.AST:
+                        vm.arrayStore(fs[bp + code[ip + 1]], fs[bp + code[ip + 2]], fs[bp + code[ip + 3]]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.BALD:
+                        fs[bp + code[ip + 1]] = vm.barrayLoad(fs[bp + code[ip + 2]], fs[bp + code[ip + 3]]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.BAST:
+                        vm.barrayStore(fs[bp + code[ip + 1]], fs[bp + code[ip + 2]], fs[bp + code[ip + 3]]);
+                        ip += 4;
+                        break;
+
+                    case RegOp.LEN:
+                        fs[bp + code[ip + 1]] = vm.length(fs[bp + code[ip + 2]]);
+                        ip += 3;
+                        break;
+
+                    case RegOp.LDS:
+                        int string = code[ip + 2];
+                        vm.fsp = fp;
+                        fs[bp + code[ip + 1]] = vm.newString(decoded.strings[string], decoded.stringLengths[string], decoded.sourceAddress[registerCode.source[at]]);
+                        ip += 3;
+                        break;
+
+                    /* Operations */
+
+                    case RegOp.ADD:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] + fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.ADDI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] + code[ip + 3];          ip += 4; break;
+                    case RegOp.SUB:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] - fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.SUBI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] - code[ip + 3];          ip += 4; break;
+                    case RegOp.MUL:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] * fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.MULI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] * code[ip + 3];          ip += 4; break;
+                    case RegOp.DIV:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] / fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.DIVI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] / code[ip + 3];          ip += 4; break;
+                    case RegOp.REM:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] % fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.REMI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] % code[ip + 3];          ip += 4; break;
+                    case RegOp.NEG:  fs[bp + code[ip + 1]] = -fs[bp + code[ip + 2]];                        ip += 3; break;
+                    case RegOp.SHL:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] << fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.SHLI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] << code[ip + 3];          ip += 4; break;
+                    case RegOp.SHR:  fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] >> fs[bp + code[ip + 3]]; ip += 4; break;
+                    case RegOp.SHRI: fs[bp + code[ip + 1]] = fs[bp + code[ip + 2]] >> code[ip + 3];          ip += 4; break;
+
+                    /* Jumps */
+
+                    case RegOp.JMP:
+                        ip = code[ip + 1];
+                        break;
+
+                    case RegOp.JEQ:  ip = fs[bp + code[ip + 1]] == fs[bp + code[ip + 2]] ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JEQI: ip = fs[bp + code[ip + 1]] == code[ip + 2]          ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JNE:  ip = fs[bp + code[ip + 1]] != fs[bp + code[ip + 2]] ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JNEI: ip = fs[bp + code[ip + 1]] != code[ip + 2]          ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JGT:  ip = fs[bp + code[ip + 1]] >  fs[bp + code[ip + 2]] ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JGTI: ip = fs[bp + code[ip + 1]] >  code[ip + 2]          ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JLE:  ip = fs[bp + code[ip + 1]] <= fs[bp + code[ip + 2]] ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JLEI: ip = fs[bp + code[ip + 1]] <= code[ip + 2]          ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JLT:  ip = fs[bp + code[ip + 1]] <  fs[bp + code[ip + 2]] ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JLTI: ip = fs[bp + code[ip + 1]] <  code[ip + 2]          ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JGE:  ip = fs[bp + code[ip + 1]] >= fs[bp + code[ip + 2]] ? code[ip + 3] : ip + 4; break;
+                    case RegOp.JGEI: ip = fs[bp + code[ip + 1]] >= code[ip + 2]          ? code[ip + 3] : ip + 4; break;
+
+                    /* Functions */
+
+                    case RegOp.CALL:
+                        int first = bp + code[ip + 2];
+                        int count = code[ip + 3];
+
+                        if (fp + 2 + count > fs.length) {
+                            int callee = decoded.sourceAddress[registerCode.source[code[ip + 1]]];
+                            fs = vm.growFrameStackForCall(fp + 2 + count, callee);
+                        }
+
+                        fs[fp] = ip + 5;    // Return address, d of the call is right before it
+                        fs[fp + 1] = bp;
+                        bp = fp + 2;
+
+                        for (int i = 0; i < count; i++) fs[bp + i] = fs[first + i];
+
+                        ip = code[ip + 1];
+                        break;
+
+                    case RegOp.ENTER:
+                        vm.called(bp, 0);
+                        int size = code[ip + 1];
+                        if (bp + size > fs.length) fs = vm.growFrameStack(bp + size);
+
+                        Arrays.fill(fs, bp + code[ip + 2], bp + size, 0);
+
+                        fp = bp + size;
+                        ip += 3;
+                        break;
+
+                    case RegOp.RET: case RegOp.RETI: case RegOp.RETV:
+                        int op = code[ip];
+                        int value = op == RegOp.RET ? fs[bp + code[ip + 1]] : op == RegOp.RETI ? code[ip + 1] : 0;
+
+                        int returnAddress = fs[bp - 2];
+                        if (returnAddress < 0) return;
+
+                        fp = bp - 2;
+                        bp = fs[bp - 1];
+
+                        int d = code[returnAddress - 1];
+                        if (d >= 0) fs[bp + d] = value;
+
+                        ip = returnAddress;
+                        break;
+
+                    /* IO */
+
+                    case RegOp.READ:
+                        fs[bp + code[ip + 1]] = vm.in().nextInt();
+                        ip += 2;
+                        break;
+
+                    case RegOp.BREAD:
+                        fs[bp + code[ip + 1]] = vm.in().nextByte();
+                        ip += 2;
+                        break;
+
+                    case RegOp.PRINT:
+                        vm.out.print(fs[bp + code[ip + 1]]);
+                        ip += 2;
+                        break;
+
+                    case RegOp.BPRINT:
+                        vm.out.print((char) fs[bp + code[ip + 1]]);
+                        ip += 2;
+                        break;
+
+                    case RegOp.PRINTS:
+                        vm.printString(fs[bp + code[ip + 1]]);
+                        ip += 2;
+                        break;
+
+                    case RegOp.RAND:
+                        fs[bp + code[ip + 1]] = vm.random(fs[bp + code[ip + 2]]);
+                        ip += 3;
+                        break;
+
+                    case RegOp.FREE:
+                        vm.heap.free(fs[bp + code[ip + 1]]);
+                        ip += 2;
+                        break;
+
+                    case RegOp.DUMP:
+                        vm.fsp = fp;
+                        vm.dumpHeap();
+                        ip++;
+                        break;
+
+                    case RegOp.TRAP:
+                        throw new VMException(Error.values()[code[ip + 1]]);
+                }
+            }
+        } catch (VMException e) {
+            int index = registerCode.source[at];
+            throw e.at(decoded.sourceAddress[index], Op.name(decoded.code[index]));
+        } catch (ArithmeticException e) {
+            int index = registerCode.source[at];
+            throw new VMException(Error.DIVISION_BY_ZERO).at(decoded.sourceAddress[index], Op.name(decoded.code[index]));
+        }
+    }
+}
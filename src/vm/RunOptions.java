@@ -0,0 +1,57 @@
+package vm;
+
+import java.io.InputStream;
+
+/**
+ * How programs run: the engine, memory limits, input and what is recorded and reported about each run
+ */
+public final class RunOptions {
+    public static final RunOptions DEFAULT = new RunOptions(Engine.DECODED, MemorySizes.DEFAULT, System.in, null, null, false, false);
+
+    final Engine engine;
+    final MemorySizes sizes;
+    final InputStream input;        // A FileInputStream is mapped into memory
+    final String samplesPath;       // Stacks are sampled into it, unless null
+    final String dumpPath;          // Heap is dumped there when the program ends and dump() writes there, unless null
+    final boolean allocations;      // Every allocation site gets its live and peak words, reported after the run
+    final boolean metrics;          // What VMMetrics has is printed as JSON to standard error when the program ends
+
+    private RunOptions(Engine engine, MemorySizes sizes, InputStream input, String samplesPath, String dumpPath,
+                       boolean allocations, boolean metrics) {
+        this.engine = engine;
+        this.sizes = sizes;
+        this.input = input;
+        this.samplesPath = samplesPath;
+        this.dumpPath = dumpPath;
+        this.allocations = allocations;
+        this.metrics = metrics;
+    }
+
+    public RunOptions withEngine(Engine engine) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+
+    public RunOptions withSizes(MemorySizes sizes) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+
+    public RunOptions withInput(InputStream input) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+
+    public RunOptions withSamples(String samplesPath) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+
+    public RunOptions withDump(String dumpPath) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+
+    public RunOptions withAllocations(boolean allocations) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+
+    public RunOptions withMetrics(boolean metrics) {
+        return new RunOptions(engine, sizes, input, samplesPath, dumpPath, allocations, metrics);
+    }
+}
@@ -0,0 +1,130 @@
+package vm;
+
+import codegen.Instruction;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples the stack of a running VM from a thread of its own and counts the stacks it sees.
+ * Every interval it reads the base pointer of the VM and walks the frames on the frame stack,
+ * the saved base pointer is under the frame and the return address of the call under that.
+ * The function of a frame is the target of the call before its return address, the last frame is main.
+ *
+ * The VM is not stopped, a frame it changes while it is walked makes the sample look wrong and it is dropped.
+ * Only the switch and the decoded loops keep their base pointer where the sampler sees it.
+ */
+final class Sampler {
+    private static final long INTERVAL = 1_000_000;    // Nanoseconds
+    private static final int MAX_DEPTH = 1024;          // Frames further down are cut off
+    private static final int ENTER = Instruction.ENTER.ordinal();
+
+    private final MijaVM vm;
+    private final boolean decoded;                      // Return addresses are decoded indices
+    private final Map<String, Long> stacks = new TreeMap<>();
+    private final int[] functions = new int[MAX_DEPTH];
+    private final StringBuilder stack = new StringBuilder();
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    private Sampler(MijaVM vm, Engine engine) {
+        this.vm = vm;
+        this.decoded = engine == Engine.DECODED;
+        this.thread = new Thread(this::run, "mijavm-sampler");
+        this.thread.setDaemon(true);
+    }
+
+    static Sampler start(MijaVM vm, Engine engine) {
+        if (engine != Engine.SWITCH && engine != Engine.DECODED && engine != Engine.PROFILE) {
+            throw new IllegalArgumentException("Sampling needs the switch or the decoded engine");
+        }
+
+        Sampler sampler = new Sampler(vm, engine);
+        sampler.thread.start();
+        return sampler;
+    }
+
+    void stop() throws InterruptedException {
+        stopped = true;
+        thread.join();
+    }
+
+    private void run() {
+        while (!stopped) {
+            LockSupport.parkNanos(INTERVAL);
+            sample();
+        }
+    }
+
+    private void sample() {
+        int[] fstack = vm.fstack;
+        int bp = vm.fbp;
+        if (bp == 0) return; // Main has not entered
+
+        int depth = 0;
+
+        while (depth < MAX_DEPTH && bp != 1) {
+            if (bp < 3 || bp > fstack.length) return;
+
+            int function = callee(fstack[bp - 2]);
+            int next = fstack[bp - 1];
+
+            if (function < 0 || next >= bp) return;
+
+            functions[depth++] = function;
+            bp = next;
+        }
+
+        ProgramImage image = vm.image;
+        stack.setLength(0);
+
+        if (bp == 1) {
+            stack.append(image.names.name(image.main));
+        } else {
+            stack.append("[truncated]");
+        }
+
+        for (int i = depth - 1; i >= 0; i--) {
+            stack.append(';').append(image.names.name(functions[i]));
+        }
+
+        stacks.merge(stack.toString(), 1L, Long::sum);
+    }
+
+    /**
+     * Address of the function a call returning to address went to, -1 if it is not a call
+     */
+    private int callee(int address) {
+        ProgramImage image = vm.image;
+        int function;
+
+        if (decoded) {
+            int[] code = image.decoded.code;
+            if (address < 1 || address > code.length || code[address - 1] < 0 || code[address - 1] >= code.length) return -1;
+
+            function = image.decoded.sourceAddress[code[address - 1]];
+        } else {
+            if (address < ProgramImage.CODE_START_ADDRESS + 2 || address > image.codeEnd) return -1;
+
+            function = DecodedCode.getShort(image.codeData, address - 2);
+        }
+
+        return function >= 0 && function < image.codeEnd && image.codeData[function] == ENTER ? function : -1;
+    }
+
+    /**
+     * Writes a line for every stack seen, functions from main up separated by ';', then the number of samples.
+     * Flame graph tools read this format.
+     */
+    void write(PrintStream out) throws IOException {
+        for (Map.Entry<String, Long> entry : stacks.entrySet()) {
+            out.println(entry.getKey() + " " + entry.getValue());
+        }
+
+        out.flush();
+        if (out.checkError()) throw new IOException("Could not write the samples");
+    }
+}
@@ -0,0 +1,35 @@
+package vm;
+
+import codegen.Error;
+
+/**
+ * Runtime error raised by the heap and IO helpers, the running loop adds the location and reports it
+ */
+final class VMException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Error error;
+    int address;
+    String instruction;
+
+    VMException(Error error) {
+        this(error, null);
+    }
+
+    VMException(Error error, String detail) {
+        super(detail, null, false, false);
+        this.error = error;
+    }
+
+    /**
+     * Nested loops rethrow the exception, the innermost location is kept
+     */
+    VMException at(int address, String instruction) {
+        if (this.instruction == null) {
+            this.address = address;
+            this.instruction = instruction;
+        }
+
+        return this;
+    }
+}
@@ -0,0 +1,103 @@
+package vm;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Figures of a run of a VM. They are read from another thread without stopping the VM, so they may lag behind it.
+ *
+ * Each VM is an MBean of its own, vm:type=MijaVM,name=program,id=n, while it runs. It is only registered
+ * when the platform MBean server already runs, as it does under a JMX agent, or the metrics were asked for.
+ * The platform MBean server takes hundreds of milliseconds to start and most runs are shorter than that.
+ */
+public final class VMMetrics implements VMMetricsMXBean {
+    private static final String NAME = "vm:type=MijaVM,name=%s,id=%d";
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final MijaVM vm;
+    private final String program;
+
+    VMMetrics(MijaVM vm, String program) {
+        this.vm = vm;
+        this.program = program;
+    }
+
+    VMMetrics(MijaVM vm) {
+        this(vm, null);
+    }
+
+    /**
+     * Registers the metrics of the VM if the platform MBean server runs, or starts it if metrics is set
+     *
+     * @return name to unregister, null if they were not registered
+     */
+    static ObjectName register(MijaVM vm, String program, boolean metrics) {
+        if (!metrics && MBeanServerFactory.findMBeanServer(null).isEmpty()) return null;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(String.format(NAME, ObjectName.quote(program), ids.incrementAndGet()));
+
+            server.registerMBean(new VMMetrics(vm, program), name);
+            return name;
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null) return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ignored) {
+            // Someone else unregistered it
+        }
+    }
+
+    @Override public String getProgram()                { return program; }
+    @Override public long getInstructions()             { return vm.instructions; }
+    @Override public long getCalls()                    { return vm.calls; }
+    @Override public long getAllocations()              { return vm.heap.sites.allocations; }
+    @Override public long getAllocatedWords()           { return vm.heap.sites.allocatedWords; }
+    @Override public long getHeapWordsInUse()           { return vm.heap.used(); }
+    @Override public long getHeapTop()                  { return vm.heap.top(); }
+    @Override public long getHeapSize()                 { return vm.heap.capacity(); }
+    @Override public long getCollections()              { return vm.heap.collections; }
+    @Override public long getPeakFrameStackWords()      { return vm.peakFrameStack; }
+    @Override public long getPeakExpressionStackWords() { return vm.peakExpressionStack; }
+
+    @Override
+    public double getSecondsRunning() {
+        long started = vm.started;
+        if (started == 0) return 0;
+
+        long finished = vm.finished;
+        return ((finished != 0 ? finished : System.nanoTime()) - started) / 1e9;
+    }
+
+    @Override
+    public double getInstructionsPerSecond() {
+        double seconds = getSecondsRunning();
+        return seconds > 0 ? getInstructions() / seconds : 0;
+    }
+
+    /**
+     * Summary of a finished run on one line
+     */
+    String json(Engine engine, int status) {
+        return String.format("{\"engine\":\"%s\",\"status\":%d,\"seconds\":%.6f,\"instructions\":%d,"
+                        + "\"instructionsPerSecond\":%.0f,\"calls\":%d,\"allocations\":%d,\"allocatedWords\":%d,"
+                        + "\"heapWordsInUse\":%d,\"heapTop\":%d,\"heapSize\":%d,\"collections\":%d,"
+                        + "\"peakFrameStackWords\":%d,\"peakExpressionStackWords\":%d}",
+                engine.name().toLowerCase(), status, getSecondsRunning(), getInstructions(),
+                getInstructionsPerSecond(), getCalls(), getAllocations(), getAllocatedWords(),
+                getHeapWordsInUse(), getHeapTop(), getHeapSize(), getCollections(),
+                getPeakFrameStackWords(), getPeakExpressionStackWords());
+    }
+}
@@ -0,0 +1,46 @@
+package vm;
+
+/**
+ * Figures of a running program, what JConsole and other JMX clients see under vm:type=MijaVM, one MBean for each running VM.
+ * Stack figures are words, heap figures are words of the heap.
+ */
+public interface VMMetricsMXBean {
+    String getProgram();
+
+    /**
+     * Instructions of stack code run so far, counted by the switch and the decoded loops,
+     * the register, closure and compiled code are not counted
+     */
+    long getInstructions();
+
+    double getInstructionsPerSecond();
+
+    /**
+     * Calls run by every engine but compiled code, calls between compiled functions are not counted
+     */
+    long getCalls();
+
+    long getAllocations();
+
+    long getAllocatedWords();
+
+    /**
+     * Words in objects, garbage the next collection frees included
+     */
+    long getHeapWordsInUse();
+
+    /**
+     * Words below the part of the heap no object was allocated in yet
+     */
+    long getHeapTop();
+
+    long getHeapSize();
+
+    long getCollections();
+
+    long getPeakFrameStackWords();
+
+    long getPeakExpressionStackWords();
+
+    double getSecondsRunning();
+}
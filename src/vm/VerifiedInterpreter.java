@@ -0,0 +1,352 @@
+package vm;
+
+import codegen.Error;
+
+import java.util.Arrays;
+
+/**
+ * Runs decoded code that passed the Verifier. It is the decoded loop without stack checks:
+ * values are never popped from an empty stack, and ENTER makes room for everything the function pushes
+ * and for the return address of its calls, so nothing else checks or grows the stacks.
+ */
+final class VerifiedInterpreter {
+    private VerifiedInterpreter() {}
+
+    static void execute(MijaVM vm, DecodedCode decoded, int[] maxDepths) {
+        int[] estack = vm.estack;       // Reloaded after growing
+        int[] fstack = vm.fstack;
+        final int[] globalData = vm.globalData;
+        final int[] code = decoded.code;
+        final int[] strings = decoded.stringLengths;
+
+        int ip = decoded.entry;
+        int at = ip;    // Start of the current instruction
+        int sp = vm.esp;
+        int bp = vm.fbp;
+        int fp = vm.fsp;
+        long executed = 0;
+
+        try {
+            while (true) {
+                at = ip;
+                executed++;
+
+                switch (code[ip++]) {
+                    /* Loading and storing */
+
+                    case Op.NOP:
+                        break;
+
+                    case Op.CONST:
+                        estack[sp++] = code[ip++];
+                        break;
+
+                    case Op.LOAD:
+                        estack[sp++] = fstack[bp + code[ip++]];
+                        break;
+
+                    case Op.STORE:
+                        fstack[bp + code[ip++]] = estack[--sp];
+                        break;
+
+                    case Op.LOAD_GLOBAL:
+                        estack[sp++] = globalData[code[ip++]];
+                        break;
+
+                    case Op.STORE_GLOBAL:
+                        globalData[code[ip++]] = estack[--sp];
+                        break;
+
+                    /* Structs */
+
+                    case Op.LOAD_FIELD:
+                        estack[sp - 1] = vm.loadField(estack[sp - 1], code[ip++]);
+                        break;
+
+                    case Op.STORE_FIELD:
+                        sp -= 2;
+                        vm.storeField(estack[sp], code[ip++], estack[sp + 1]);
+                        break;
+
+                    case Op.LOAD_FIELD_LOCAL:
+                        estack[sp++] = vm.loadField(fstack[bp + code[ip]], code[ip + 1]);
+                        ip += 2;
+                        break;
+
+                    case Op.NEW:
+                        vm.esp = sp;
+                        vm.fsp = fp;
+                        estack[sp++] = vm.newStruct(code[ip++], decoded.sourceAddress[at]);
+                        break;
+
+                    /* Arrays */
+
+                    case Op.NEW_ARRAY:
+                        vm.esp = sp;
+                        vm.fsp = fp;
+                        estack[sp - 1] = vm.newArray(estack[sp - 1], code[ip++], decoded.sourceAddress[at]);
+                        break;
+
+                    case Op.ARRAY_LOAD:
+                        sp--;
+                        estack[sp - 1] = vm.arrayLoad(estack[sp - 1], estack[sp]);
+                        break;
+
+                    case Op.ARRAY_STORE:
+                        sp -= 3;
+                        vm.arrayStore(estack[sp], estack[sp + 1], estack[sp + 2]);
+                        break;
+
+                    case Op.BARRAY_LOAD:
+                        sp--;
+                        estack[sp - 1] = vm.barrayLoad(estack[sp - 1], estack[sp]);
+                        break;
+
+                    case Op.BARRAY_STORE:
+                        sp -= 3;
+                        vm.barrayStore(estack[sp], estack[sp + 1], estack[sp + 2]);
+                        break;
+
+                    case Op.LENGTH:
+                        estack[sp - 1] = vm.length(estack[sp - 1]);
+                        break;
+
+                    case Op.LOAD_STRING:
+                        int string = code[ip++];
+                        vm.esp = sp;
+                        vm.fsp = fp;
+                        estack[sp++] = vm.newString(decoded.strings[string], strings[string], decoded.sourceAddress[at]);
+                        break;
+
+                    /* Operations */
+
+                    case Op.ADD:
+                        sp--;
+                        estack[sp - 1] += estack[sp];
+                        break;
+
+                    case Op.SUB:
+                        sp--;
+                        estack[sp - 1] -= estack[sp];
+                        break;
+
+                    case Op.MUL:
+                        sp--;
+                        estack[sp - 1] *= estack[sp];
+                        break;
+
+                    case Op.DIV:
+                        sp--;
+                        estack[sp - 1] /= estack[sp];
+                        break;
+
+                    case Op.REM:
+                        sp--;
+                        estack[sp - 1] %= estack[sp];
+                        break;
+
+                    case Op.SHL:
+                        sp--;
+                        estack[sp - 1] <<= estack[sp];
+                        break;
+
+                    case Op.SHR:
+                        sp--;
+                        estack[sp - 1] >>= estack[sp];
+                        break;
+
+                    case Op.NEG:
+                        estack[sp - 1] = -estack[sp - 1];
+                        break;
+
+                    case Op.INC:
+                        fstack[bp + code[ip]] += code[ip + 1];
+                        ip += 2;
+                        break;
+
+                    case Op.DUP:
+                        estack[sp] = estack[sp - 1];
+                        sp++;
+                        break;
+
+                    case Op.DUP2:
+                        estack[sp] = estack[sp - 2];
+                        estack[sp + 1] = estack[sp - 1];
+                        sp += 2;
+                        break;
+
+                    case Op.POP:
+                        sp--;
+                        break;
+
+                    /* Jumps */
+
+                    case Op.JMP:
+                        vm.instructions += executed;
+                        executed = 0;
+
+                        ip = code[ip];
+                        break;
+
+                    case Op.JEQ:
+                        sp -= 2;
+                        ip = estack[sp] == estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JNE:
+                        sp -= 2;
+                        ip = estack[sp] != estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JGT:
+                        sp -= 2;
+                        ip = estack[sp] >  estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JLE:
+                        sp -= 2;
+                        ip = estack[sp] <= estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JLT:
+                        sp -= 2;
+                        ip = estack[sp] <  estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JGE:
+                        sp -= 2;
+                        ip = estack[sp] >= estack[sp + 1] ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JZ:
+                        ip = estack[--sp] == 0 ? code[ip] : ip + 1;
+                        break;
+
+                    case Op.JNZ:
+                        ip = estack[--sp] != 0 ? code[ip] : ip + 1;
+                        break;
+
+                    /* Local compared with a constant */
+
+                    case Op.JEQ_LC:
+                        ip = fstack[bp + code[ip + 1]] == code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JNE_LC:
+                        ip = fstack[bp + code[ip + 1]] != code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JGT_LC:
+                        ip = fstack[bp + code[ip + 1]] >  code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JLE_LC:
+                        ip = fstack[bp + code[ip + 1]] <= code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JLT_LC:
+                        ip = fstack[bp + code[ip + 1]] <  code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    case Op.JGE_LC:
+                        ip = fstack[bp + code[ip + 1]] >= code[ip + 2] ? code[ip] : ip + 3;
+                        break;
+
+                    /* Functions */
+
+                    case Op.CALL:
+                        // The frame of the caller left room for the return address
+                        fstack[fp++] = ip + 1;
+                        ip = code[ip];
+                        break;
+
+                    case Op.RETURN:
+                        if (fp == 0) return; // no caller = main, exit
+                        ip = fstack[--fp];
+                        break;
+
+                    case Op.ENTER:
+                        vm.called(fp, sp);
+                        vm.instructions += executed;
+                        executed = 0;
+
+                        int paramsCount = code[ip++];
+                        int frameSize = paramsCount + code[ip++];
+
+                        sp -= paramsCount;
+
+                        // Room for the values of the function, and for the return address of a call it makes
+                        if (sp + maxDepths[at] > estack.length) estack = vm.growExpressionStack(sp + maxDepths[at]);
+                        if (fp + 2 + frameSize > fstack.length) fstack = vm.growFrameStack(fp + 2 + frameSize);
+
+                        fstack[fp++] = bp;  // save base pointer
+                        bp = fp;
+
+                        // Parameters come from estack, the rest of the frame is zeroed
+                        System.arraycopy(estack, sp, fstack, fp, paramsCount);
+                        Arrays.fill(fstack, fp + paramsCount, fp + frameSize, 0);
+                        fp += frameSize;
+                        vm.fbp = bp;
+                        break;
+
+                    case Op.EXIT:
+                        fp = bp;
+                        bp = fstack[--fp];
+                        vm.fbp = bp;
+                        break;
+
+                    /* IO */
+
+                    case Op.READ:
+                        estack[sp++] = vm.in().nextInt();
+                        break;
+
+                    case Op.BREAD:
+                        estack[sp++] = vm.in().nextByte();
+                        break;
+
+                    case Op.PRINT:
+                        vm.out.print(estack[--sp]);
+                        break;
+
+                    case Op.BPRINT:
+                        vm.out.print((char) estack[--sp]);
+                        break;
+
+                    case Op.PRINTS:
+                        vm.printString(estack[--sp]);
+                        break;
+
+                    case Op.RAND:
+                        estack[sp - 1] = vm.random(estack[sp - 1]);
+                        break;
+
+                    case Op.FREE:
+                        vm.heap.free(estack[--sp]);
+                        break;
+
+                    case Op.DUMP:
+                        vm.esp = sp;
+                        vm.fsp = fp;
+                        vm.dumpHeap();
+                        break;
+
+                    case Op.TRAP:
+                        throw new VMException(Error.values()[code[ip]]);
+
+                    default:
+                        throw new VMException(Error.RUNTIME, "Invalid opcode " + code[at]);
+                }
+            }
+        } catch (VMException e) {
+            throw e.at(decoded.sourceAddress[at], Op.name(code[at]));
+        } catch (ArithmeticException e) {
+            throw new VMException(Error.DIVISION_BY_ZERO).at(decoded.sourceAddress[at], Op.name(code[at]));
+        } finally {
+            vm.esp = sp;
+            vm.fbp = bp;
+            vm.fsp = fp;
+            vm.instructions += executed;
+        }
+    }
+}
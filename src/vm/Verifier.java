@@ -0,0 +1,63 @@
+package vm;
+
+import codegen.Error;
+
+/**
+ * Checks decoded code when it is loaded, so VerifiedInterpreter can run it without checking the stacks.
+ * Decoding has checked jumps land on instructions, FunctionInfo that calls go to functions, jumps stay in them
+ * and the stack has the same depth wherever paths meet, never underflows and has the value to return.
+ * This adds that locals are in the frame ENTER makes and traps have errors to report.
+ */
+final class Verifier {
+    private Verifier() {}
+
+    /**
+     * @return most values each function keeps on the expression stack, by index of its ENTER
+     * @throws IllegalArgumentException if the code fails a check
+     */
+    static int[] verify(DecodedCode decoded) {
+        int[] code = decoded.code;
+        FunctionInfo[] functions = FunctionInfo.analyze(decoded);
+        int[] maxDepths = new int[code.length];
+
+        FunctionInfo main = FunctionInfo.find(functions, decoded.entry);
+        if (main == null || main.start != decoded.entry || main.params != 0) {
+            throw new IllegalArgumentException("Main has to take no parameters");
+        }
+
+        for (FunctionInfo function : functions) {
+            maxDepths[function.start] = function.maxDepth();
+            int frame = function.params + function.locals;
+
+            for (int i = function.start; i < function.end; i += Op.size(code[i])) {
+                int local = local(code, i);
+
+                if (local >= frame) {
+                    throw new IllegalArgumentException("Local " + local + " outside of the frame at " + decoded.sourceAddress[i]);
+                }
+
+                if (code[i] == Op.TRAP && (code[i + 1] < 0 || code[i + 1] >= Error.values().length)) {
+                    throw new IllegalArgumentException("Illegal trap at " + decoded.sourceAddress[i]);
+                }
+            }
+        }
+
+        return maxDepths;
+    }
+
+    /**
+     * Local the instruction at index uses, -1 if it uses none
+     */
+    private static int local(int[] code, int index) {
+        switch (code[index]) {
+            case Op.LOAD: case Op.STORE: case Op.INC: case Op.LOAD_FIELD_LOCAL:
+                return code[index + 1];
+
+            case Op.JEQ_LC: case Op.JNE_LC: case Op.JGT_LC: case Op.JLE_LC: case Op.JLT_LC: case Op.JGE_LC:
+                return code[index + 2];
+
+            default:
+                return -1;
+        }
+    }
+}